@@ -0,0 +1,193 @@
+package com.hiveworkshop.blizzard.blp;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * DXT decode kernels using the incubating Vector API.
+ * <p>
+ * Each vector holds one row of 4 pixels from each of several adjacent blocks,
+ * so a 256 bit vector processes 2 blocks per operation. Block palettes and
+ * alpha ramps are selected with lane rearrangement instead of per pixel array
+ * lookups. Blocks left over at the end of a row use the scalar kernel.
+ * <p>
+ * This class must only be loaded reflectively when the jdk.incubator.vector
+ * module is present. It is kept in a separate source folder so that the plugin
+ * builds without the incubator module, and is compiled against the plugin
+ * classes only when the vector kernel is wanted.
+ *
+ * @author Imperial Good
+ */
+final class DXTVectorKernel extends DXTKernel {
+	/**
+	 * The vector species used.
+	 */
+	private static final VectorSpecies<Integer> SPECIES = IntVector
+			.SPECIES_PREFERRED;
+
+	/**
+	 * Number of blocks processed per vector.
+	 */
+	private final int blocksPerVector;
+
+	/**
+	 * Shuffle broadcasting each block color index word to its lanes.
+	 */
+	private final VectorShuffle<Integer> blockShuffle;
+
+	/**
+	 * Shuffle broadcasting each block alpha word for rows 0 and 1 to its lanes.
+	 */
+	private final VectorShuffle<Integer> lowWordShuffle;
+
+	/**
+	 * Shuffle broadcasting each block alpha word for rows 2 and 3 to its lanes.
+	 */
+	private final VectorShuffle<Integer> highWordShuffle;
+
+	/**
+	 * Palette offset of each lane.
+	 */
+	private final IntVector paletteBase;
+
+	/**
+	 * Ramp offset of each lane.
+	 */
+	private final IntVector rampBase;
+
+	/**
+	 * Color index shift of each lane for each row.
+	 */
+	private final IntVector[] colorShifts = new IntVector[4];
+
+	/**
+	 * Explicit alpha shift of each lane for each row.
+	 */
+	private final IntVector[] explicitShifts = new IntVector[4];
+
+	/**
+	 * Interpolated alpha index shift of each lane for each row.
+	 */
+	private final IntVector[] interpolatedShifts = new IntVector[4];
+
+	/**
+	 * Constructs a vector kernel for the preferred vector species.
+	 *
+	 * @throws UnsupportedOperationException
+	 *             if the preferred vector species is too small.
+	 */
+	public DXTVectorKernel() {
+		final int length = SPECIES.length();
+		if (length < 4 || length > PADDING)
+			throw new UnsupportedOperationException(
+					"Unsuitable vector length.");
+		blocksPerVector = length / 4;
+
+		final int[] blockMap = new int[length];
+		final int[][] wordMaps = new int[2][length];
+		final int[] paletteMap = new int[length];
+		final int[] rampMap = new int[length];
+		final int[][] shiftMaps = new int[12][length];
+		for (int lane = 0; lane < length; lane += 1) {
+			final int block = lane / 4;
+			final int px = lane % 4;
+			blockMap[lane] = block;
+			wordMaps[0][lane] = block * 2;
+			wordMaps[1][lane] = block * 2 + 1;
+			paletteMap[lane] = block * 4;
+			rampMap[lane] = block * 8;
+			for (int py = 0; py < 4; py += 1) {
+				shiftMaps[py][lane] = py * 8 + px * 2;
+				shiftMaps[4 + py][lane] = (py & 1) * 16 + px * 4;
+				shiftMaps[8 + py][lane] = (py & 1) * 12 + px * 3;
+			}
+		}
+
+		blockShuffle = VectorShuffle.fromArray(SPECIES, blockMap, 0);
+		lowWordShuffle = VectorShuffle.fromArray(SPECIES, wordMaps[0], 0);
+		highWordShuffle = VectorShuffle.fromArray(SPECIES, wordMaps[1], 0);
+		paletteBase = IntVector.fromArray(SPECIES, paletteMap, 0);
+		rampBase = IntVector.fromArray(SPECIES, rampMap, 0);
+		for (int py = 0; py < 4; py += 1) {
+			colorShifts[py] = IntVector.fromArray(SPECIES, shiftMaps[py], 0);
+			explicitShifts[py] = IntVector.fromArray(SPECIES,
+					shiftMaps[4 + py], 0);
+			interpolatedShifts[py] = IntVector.fromArray(SPECIES,
+					shiftMaps[8 + py], 0);
+		}
+	}
+
+	@Override
+	public void expandColors(int[] palettes, int[] indices, int blocks,
+			int[] pixels) {
+		final int scan = blocks * 4;
+		int b = 0;
+		for (; b + blocksPerVector <= blocks; b += blocksPerVector) {
+			final IntVector palette = IntVector.fromArray(SPECIES, palettes,
+					b * 4);
+			final IntVector bits = IntVector.fromArray(SPECIES, indices, b)
+					.rearrange(blockShuffle);
+			for (int py = 0; py < 4; py += 1) {
+				final IntVector index = bits
+						.lanewise(VectorOperators.LSHR, colorShifts[py])
+						.and(0x3).add(paletteBase);
+				palette.rearrange(index.toShuffle()).intoArray(pixels,
+						py * scan + b * 4);
+			}
+		}
+		expandColors(palettes, indices, b, blocks, pixels);
+	}
+
+	@Override
+	public void applyExplicitAlpha(int[] alpha, int blocks, int[] pixels) {
+		final int scan = blocks * 4;
+		int b = 0;
+		for (; b + blocksPerVector <= blocks; b += blocksPerVector) {
+			final IntVector words = IntVector.fromArray(SPECIES, alpha, b * 2);
+			for (int py = 0; py < 4; py += 1) {
+				final int i = py * scan + b * 4;
+				final IntVector values = words
+						.rearrange(py < 2 ? lowWordShuffle : highWordShuffle)
+						.lanewise(VectorOperators.LSHR, explicitShifts[py])
+						.and(0xF).mul(0x11).lanewise(VectorOperators.LSHL, 24);
+				IntVector.fromArray(SPECIES, pixels, i).and(0x00FFFFFF)
+						.or(values).intoArray(pixels, i);
+			}
+		}
+		applyExplicitAlpha(alpha, b, blocks, pixels);
+	}
+
+	@Override
+	public void applyInterpolatedAlpha(int[] ramps, int[] indices,
+			int blocks, int[] pixels) {
+		final int scan = blocks * 4;
+		final int lanesMask = SPECIES.length() - 1;
+		int b = 0;
+		for (; b + blocksPerVector <= blocks; b += blocksPerVector) {
+			// ramps of all blocks span 2 vectors
+			final IntVector rampsLow = IntVector.fromArray(SPECIES, ramps,
+					b * 8);
+			final IntVector rampsHigh = IntVector.fromArray(SPECIES, ramps,
+					b * 8 + lanesMask + 1);
+			final IntVector words = IntVector.fromArray(SPECIES, indices,
+					b * 2);
+			for (int py = 0; py < 4; py += 1) {
+				final int i = py * scan + b * 4;
+				final IntVector index = words
+						.rearrange(py < 2 ? lowWordShuffle : highWordShuffle)
+						.lanewise(VectorOperators.LSHR, interpolatedShifts[py])
+						.and(0x7).add(rampBase);
+				final VectorShuffle<Integer> lane = index.and(lanesMask)
+						.toShuffle();
+				final IntVector values = rampsLow.rearrange(lane).blend(
+						rampsHigh.rearrange(lane),
+						index.compare(VectorOperators.GT, lanesMask));
+				IntVector.fromArray(SPECIES, pixels, i).and(0x00FFFFFF)
+						.or(values).intoArray(pixels, i);
+			}
+		}
+		applyInterpolatedAlpha(ramps, indices, b, blocks, pixels);
+	}
+}
@@ -0,0 +1,287 @@
+package com.hiveworkshop.blizzard.blp;
+
+import static com.hiveworkshop.blizzard.blp.BLPCommon.INDEXED_PALETTE_SIZE;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.function.Consumer;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import com.hiveworkshop.lang.LocalizedFormatedString;
+
+/**
+ * A class that is responsible for processing between mipmap data and
+ * uncompressed BGRA8888 content.
+ * <p>
+ * Mipmap data is a sequence of 32 bit pixels in row major order, each made of
+ * 8 bit blue, green, red and alpha components in that byte order. This layout
+ * is a pixel interleaved byte raster with a pixel stride of 4, so mipmap data
+ * is decoded by wrapping it directly without any per pixel conversion when
+ * alpha bits is 8. When alpha bits is 0 the alpha bytes are dropped to produce
+ * a pixel interleaved BGR byte raster, as Java 2D cannot render to rasters
+ * with unused bytes.
+ * <p>
+ * Encoding an image with exactly the same layout, such as a decoded or auto
+ * generated mipmap image with alpha bits of 8, returns the raster data
+ * without copying. Other images are converted with bands interpreted as RGB or
+ * RGBA. When alpha bits is 0 pixels are written with opaque alpha.
+ * <p>
+ * During decoding if the mipmap data is of incorrect size then it is resized to
+ * fit and a warning is generated. Missing pixels decode as transparent black.
+ * <p>
+ * Version 2 files always contain a palette after the mipmap chunk table. The
+ * palette has no meaning for BGRA8888 content so is skipped when read and
+ * written as all 0 values.
+ *
+ * @author Imperial Good
+ */
+class BGRA8888MipmapProcessor extends MipmapProcessor {
+	/**
+	 * Bytes per pixel.
+	 */
+	private static final int PIXEL_BYTES = 4;
+
+	/**
+	 * Band offsets of RGBA components within a BGRA pixel.
+	 */
+	private static final int[] BAND_OFFSETS = { 2, 1, 0, 3 };
+
+	/**
+	 * Bytes per pixel of decoded images with alpha bits of 0.
+	 */
+	private static final int OPAQUE_PIXEL_BYTES = 3;
+
+	/**
+	 * The color model that the processor will use.
+	 */
+	private final ColorModel bgraColorModel;
+
+	/**
+	 * Number of bands of images.
+	 */
+	private final int bandNumber;
+
+	/**
+	 * Constructs a MipmapProcessor for BGRA8888 content.
+	 *
+	 * @param alphaBits
+	 *            the alpha component bits, if any.
+	 * @throws IllegalArgumentException
+	 *             if alphaBits is not valid.
+	 */
+	public BGRA8888MipmapProcessor(int alphaBits) {
+		if (!BLPEncodingType.BGRA8888.isAlphaBitsValid(alphaBits))
+			throw new IllegalArgumentException("Unsupported alphaBits.");
+		final boolean hasAlpha = alphaBits != 0;
+		bandNumber = hasAlpha ? 4 : 3;
+		bgraColorModel = new ComponentColorModel(
+				ColorSpace.getInstance(ColorSpace.CS_LINEAR_RGB), hasAlpha,
+				false, hasAlpha ? Transparency.TRANSLUCENT
+						: Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+		canDecode = true;
+	}
+
+	/**
+	 * Creates the pixel interleaved sample model used by images.
+	 *
+	 * @param width
+	 *            the image width in pixels.
+	 * @param height
+	 *            the image height in pixels.
+	 * @return the sample model.
+	 */
+	private PixelInterleavedSampleModel createSampleModel(int width, int height) {
+		final int pixelStride = bandNumber == 4 ? PIXEL_BYTES
+				: OPAQUE_PIXEL_BYTES;
+		return new PixelInterleavedSampleModel(DataBuffer.TYPE_BYTE, width,
+				height, pixelStride, width * pixelStride, Arrays.copyOf(
+						BAND_OFFSETS, bandNumber));
+	}
+
+	/**
+	 * Gets the raster data of an image if it already has the mipmap data
+	 * layout.
+	 *
+	 * @param img
+	 *            the image.
+	 * @return the mipmap data, or null if the image layout does not match.
+	 */
+	private ByteBuffer getDirectData(BufferedImage img) {
+		if (bandNumber != 4)
+			return null;
+		final Raster raster = img.getRaster();
+		final SampleModel sm = raster.getSampleModel();
+		final DataBuffer db = raster.getDataBuffer();
+		if (!(sm instanceof PixelInterleavedSampleModel)
+				|| !(db instanceof DataBufferByte) || db.getNumBanks() != 1
+				|| raster.getSampleModelTranslateX() != 0
+				|| raster.getSampleModelTranslateY() != 0)
+			return null;
+
+		final int width = img.getWidth();
+		final int height = img.getHeight();
+		final PixelInterleavedSampleModel pism =
+				(PixelInterleavedSampleModel) sm;
+		if (pism.getPixelStride() != PIXEL_BYTES
+				|| pism.getScanlineStride() != width * PIXEL_BYTES
+				|| !Arrays.equals(pism.getBandOffsets(),
+						BAND_OFFSETS))
+			return null;
+
+		final byte[] data = ((DataBufferByte) db).getData();
+		final int offset = db.getOffset();
+		final int length = width * height * PIXEL_BYTES;
+		if (data.length - offset < length)
+			return null;
+		return ByteBuffer.wrap(data, offset, length);
+	}
+
+	@Override
+	public ByteBuffer encodeMipmap(BufferedImage img, ImageWriteParam param,
+			Consumer<LocalizedFormatedString> handler) throws IOException {
+		// use raster data directly if possible
+		final ByteBuffer direct = getDirectData(img);
+		if (direct != null)
+			return direct;
+
+		// convert pixels
+		final int width = img.getWidth();
+		final int height = img.getHeight();
+		final byte[] dest = new byte[width * height * PIXEL_BYTES];
+		final Raster raster = img.getRaster();
+		final int srcBands = raster.getNumBands();
+		final boolean copyAlpha = bandNumber == 4;
+		if (srcBands < 3) {
+			// convert through color model
+			final int[] row = new int[width];
+			for (int y = 0, i = 0; y < height; y += 1) {
+				img.getRGB(0, y, width, 1, row, 0, width);
+				for (int x = 0; x < width; x += 1, i += PIXEL_BYTES) {
+					final int argb = row[x];
+					dest[i] = (byte) argb;
+					dest[i + 1] = (byte) (argb >>> 8);
+					dest[i + 2] = (byte) (argb >>> 16);
+					dest[i + 3] = (byte) (copyAlpha ? argb >>> 24 : 0xFF);
+				}
+			}
+		} else {
+			int[] row = null;
+			for (int y = 0, i = 0; y < height; y += 1) {
+				row = raster.getPixels(0, y, width, 1, row);
+				for (int s = 0; s < row.length; s += srcBands) {
+					dest[i] = (byte) row[s + 2];
+					dest[i + 1] = (byte) row[s + 1];
+					dest[i + 2] = (byte) row[s];
+					dest[i + 3] = (byte) (copyAlpha && srcBands > 3 ? row[s + 3]
+							: 0xFF);
+					i += PIXEL_BYTES;
+				}
+			}
+		}
+
+		return ByteBuffer.wrap(dest);
+	}
+
+	@Override
+	public BufferedImage decodeMipmap(ByteBuffer mmData, ImageReadParam param,
+			int width, int height, Consumer<LocalizedFormatedString> handler)
+			throws IOException {
+		// validate chunk size
+		final int expected = width * height * PIXEL_BYTES;
+		if (mmData.remaining() != expected)
+			handler.accept(new LocalizedFormatedString(
+					"com.hiveworkshop.text.blp", "BadBuffer",
+					mmData.remaining(), expected));
+
+		// drop unused alpha, missing pixels remain black
+		final byte[] data;
+		if (bandNumber != 4) {
+			final int pixels = Math.min(width * height,
+					mmData.remaining() / PIXEL_BYTES);
+			data = new byte[width * height * OPAQUE_PIXEL_BYTES];
+			int src = mmData.position();
+			for (int i = 0, dest = 0; i < pixels; i += 1) {
+				data[dest++] = mmData.get(src++);
+				data[dest++] = mmData.get(src++);
+				data[dest++] = mmData.get(src++);
+				src += 1;
+			}
+		} else
+			data = toImageData(mmData, expected);
+
+		// wrap image data
+		return new BufferedImage(bgraColorModel, Raster.createWritableRaster(
+				createSampleModel(width, height), new DataBufferByte(data,
+						data.length), null), false, null);
+	}
+
+	@Override
+	public boolean canDecodeDirect() {
+		// unused alpha has to be dropped otherwise
+		return bandNumber == 4;
+	}
+
+	@Override
+	public BLPDirectMipmap decodeMipmapDirect(ByteBuffer mmData, int width,
+			int height, Consumer<LocalizedFormatedString> handler)
+			throws IOException {
+		if (!canDecodeDirect())
+			throw new UnsupportedOperationException(
+					"Cannot decode directly.");
+
+		// validate chunk size
+		final int expected = width * height * PIXEL_BYTES;
+		if (mmData.remaining() != expected)
+			handler.accept(new LocalizedFormatedString(
+					"com.hiveworkshop.text.blp", "BadBuffer",
+					mmData.remaining(), expected));
+
+		// copy mipmap data, missing pixels remain transparent black
+		final BLPDirectMipmap store = BLPDirectMipmap.allocate(bgraColorModel,
+				createSampleModel(width, height), expected);
+		final ByteBuffer src = mmData.duplicate();
+		src.limit(src.position() + Math.min(src.remaining(), expected));
+		store.getData().put(src);
+		return store;
+	}
+
+	@Override
+	public Iterator<ImageTypeSpecifier> getSupportedImageTypes(int width,
+			int height) {
+		return Arrays.asList(
+				new ImageTypeSpecifier(bgraColorModel, createSampleModel(width,
+						height))).iterator();
+	}
+
+	@Override
+	public void readObject(ImageInputStream src,
+			Consumer<LocalizedFormatedString> warning) throws IOException {
+		// skip unused palette
+		src.seek(src.getStreamPosition() + INDEXED_PALETTE_SIZE * 4L);
+	}
+
+	@Override
+	public void writeObject(ImageOutputStream dst) throws IOException {
+		// write unused palette
+		dst.setByteOrder(ByteOrder.LITTLE_ENDIAN);
+		dst.writeInts(new int[INDEXED_PALETTE_SIZE], 0, INDEXED_PALETTE_SIZE);
+	}
+}
@@ -0,0 +1,402 @@
+package com.hiveworkshop.blizzard.blp;
+
+import java.awt.image.BufferedImage;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * A service for decoding many BLP files concurrently.
+ * <p>
+ * Inputs can be of any type accepted by BLPReader, such as Path, File, byte
+ * array or ByteBuffer. Each input is decoded to the full scale image, mipmap
+ * level 0, in the same way as ImageIO.read. A result holding the image or the
+ * failure together with all warnings generated is delivered for each input as
+ * soon as it completes.
+ * <p>
+ * Decoding is split into stages. Header loading and reading of mipmap data
+ * from streams run on virtual threads, which are cheap to block on I/O, when
+ * the Java runtime provides them. Otherwise a bounded pool of daemon platform
+ * threads is used. Mipmap data of BLP1 and BLP2 files from a Path or File input is
+ * read with an AsynchronousFileChannel. The CPU bound decoding of mipmap data,
+ * such as JPEG decompression, is bounded separately to a number of concurrent
+ * decodes which defaults to the number of available processors.
+ * <p>
+ * The number of inputs in flight, from header loading until decoded, is also
+ * bounded and defaults to twice the decode concurrency. Further inputs wait
+ * in a queue without holding a thread or any mipmap data, so submitting many
+ * inputs at once does not exhaust threads or memory.
+ * <p>
+ * The service must be closed when no longer needed. Decodes already submitted
+ * might fail once closed.
+ *
+ * @author Imperial Good
+ */
+public final class BLPDecodeService implements AutoCloseable {
+	/**
+	 * The decode result of an input.
+	 */
+	public static final class Result {
+		/**
+		 * The input decoded.
+		 */
+		private final Object input;
+
+		/**
+		 * The decoded image, or null if decoding failed.
+		 */
+		private final BufferedImage image;
+
+		/**
+		 * The warnings generated while decoding.
+		 */
+		private final List<String> warnings;
+
+		/**
+		 * The failure, or null if decoding succeeded.
+		 */
+		private final Throwable failure;
+
+		/**
+		 * Constructs a result.
+		 *
+		 * @param input
+		 *            the input decoded.
+		 * @param image
+		 *            the decoded image.
+		 * @param warnings
+		 *            the warnings generated.
+		 * @param failure
+		 *            the failure.
+		 */
+		private Result(Object input, BufferedImage image,
+				List<String> warnings, Throwable failure) {
+			this.input = input;
+			this.image = image;
+			this.warnings = warnings;
+			this.failure = failure;
+		}
+
+		/**
+		 * Get the input that was decoded.
+		 *
+		 * @return the input.
+		 */
+		public Object getInput() {
+			return input;
+		}
+
+		/**
+		 * Get the decoded image.
+		 *
+		 * @return the image, or null if decoding failed.
+		 */
+		public BufferedImage getImage() {
+			return image;
+		}
+
+		/**
+		 * Get the warnings generated while decoding, in the order they
+		 * occurred.
+		 *
+		 * @return an unmodifiable list of warning messages.
+		 */
+		public List<String> getWarnings() {
+			return warnings;
+		}
+
+		/**
+		 * Get the reason decoding failed.
+		 *
+		 * @return the failure, or null if decoding succeeded.
+		 */
+		public Throwable getFailure() {
+			return failure;
+		}
+
+		/**
+		 * Returns if decoding succeeded.
+		 *
+		 * @return true if an image was decoded.
+		 */
+		public boolean isSuccess() {
+			return failure == null;
+		}
+	}
+
+	/**
+	 * Provider used to create readers.
+	 */
+	private final BLPReaderSpi readerSpi = new BLPReaderSpi();
+
+	/**
+	 * Executor for header loading and mipmap data reading.
+	 */
+	private final ExecutorService ioExecutorService;
+
+	/**
+	 * Executor for decoding, if decoding does not run on virtual threads.
+	 */
+	private final ExecutorService decodeExecutorService;
+
+	/**
+	 * Executor for decoding with bounded concurrency.
+	 */
+	private final Executor decodeExecutor;
+
+	/**
+	 * Permits of inputs in flight.
+	 */
+	private final Semaphore inFlightPermits;
+
+	/**
+	 * Starts of inputs waiting for an in flight permit.
+	 */
+	private final Queue<Runnable> pendingStarts =
+			new ConcurrentLinkedQueue<Runnable>();
+
+	/**
+	 * Constructs a service with decode concurrency of the number of available
+	 * processors.
+	 */
+	public BLPDecodeService() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Constructs a service with the specified decode concurrency and up to
+	 * twice that many inputs in flight.
+	 *
+	 * @param decodeConcurrency
+	 *            the maximum number of mipmaps decoded at the same time.
+	 * @throws IllegalArgumentException
+	 *             if decodeConcurrency is not positive.
+	 */
+	public BLPDecodeService(int decodeConcurrency) {
+		this(decodeConcurrency, (int) Math.min(Integer.MAX_VALUE,
+				2L * decodeConcurrency));
+	}
+
+	/**
+	 * Constructs a service with the specified decode concurrency and maximum
+	 * number of inputs in flight. The platform thread pool used for I/O when
+	 * virtual threads are not available has as many threads as inputs in
+	 * flight.
+	 *
+	 * @param decodeConcurrency
+	 *            the maximum number of mipmaps decoded at the same time.
+	 * @param maxInFlight
+	 *            the maximum number of inputs between header loading and
+	 *            decoded.
+	 * @throws IllegalArgumentException
+	 *             if decodeConcurrency or maxInFlight is not positive.
+	 */
+	public BLPDecodeService(int decodeConcurrency, int maxInFlight) {
+		if (decodeConcurrency < 1)
+			throw new IllegalArgumentException(
+					"Decode concurrency must be positive.");
+		if (maxInFlight < 1)
+			throw new IllegalArgumentException(
+					"Maximum inputs in flight must be positive.");
+		inFlightPermits = new Semaphore(maxInFlight);
+
+		final ExecutorService virtualExecutor = createVirtualExecutor();
+		if (virtualExecutor != null) {
+			// bound decoding virtual threads with permits
+			ioExecutorService = virtualExecutor;
+			decodeExecutorService = null;
+			final Semaphore permits = new Semaphore(decodeConcurrency);
+			decodeExecutor = task -> virtualExecutor.execute(() -> {
+				permits.acquireUninterruptibly();
+				try {
+					task.run();
+				} finally {
+					permits.release();
+				}
+			});
+		} else {
+			// platform thread pools, idle I/O threads time out
+			final ThreadPoolExecutor ioPool = new ThreadPoolExecutor(
+					maxInFlight, maxInFlight, 60L, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(),
+					createThreadFactory("BLP I/O"));
+			ioPool.allowCoreThreadTimeOut(true);
+			ioExecutorService = ioPool;
+			decodeExecutorService = Executors.newFixedThreadPool(
+					decodeConcurrency, createThreadFactory("BLP decode"));
+			decodeExecutor = decodeExecutorService;
+		}
+	}
+
+	/**
+	 * Creates an executor that runs each task on a new virtual thread. Virtual
+	 * threads are looked up reflectively as they are not available in all
+	 * supported Java versions.
+	 *
+	 * @return the executor, or null if virtual threads are not available.
+	 */
+	private static ExecutorService createVirtualExecutor() {
+		try {
+			final Method factory = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// not supported or preview feature not enabled
+			return null;
+		}
+	}
+
+	/**
+	 * Creates a factory for daemon platform threads.
+	 *
+	 * @param name
+	 *            the name of threads.
+	 * @return the thread factory.
+	 */
+	private static ThreadFactory createThreadFactory(String name) {
+		return task -> {
+			final Thread thread = new Thread(task, name);
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	/**
+	 * Returns if the service uses virtual threads.
+	 *
+	 * @return true if virtual threads are used.
+	 */
+	public boolean isVirtual() {
+		return decodeExecutorService == null;
+	}
+
+	/**
+	 * Decodes an input asynchronously. The returned future always completes
+	 * normally with a result describing the outcome. If the maximum number of
+	 * inputs are in flight the input waits until one of them is decoded.
+	 *
+	 * @param input
+	 *            the input to decode.
+	 * @return a future of the decode result.
+	 */
+	public CompletableFuture<Result> decode(Object input) {
+		final CompletableFuture<Result> result =
+				new CompletableFuture<Result>();
+		pendingStarts.add(() -> {
+			CompletableFuture<Result> decoded;
+			try {
+				decoded = start(input);
+			} catch (RuntimeException e) {
+				decoded = CompletableFuture.completedFuture(new Result(input,
+						null, Collections.<String> emptyList(), e));
+			}
+			decoded.thenAccept(done -> {
+				inFlightPermits.release();
+				startPending();
+				result.complete(done);
+			});
+		});
+		startPending();
+		return result;
+	}
+
+	/**
+	 * Starts waiting inputs while in flight permits are available. Inputs are
+	 * started on the I/O executor so completions never recurse.
+	 */
+	private void startPending() {
+		while (!pendingStarts.isEmpty() && inFlightPermits.tryAcquire()) {
+			final Runnable start = pendingStarts.poll();
+			if (start == null) {
+				// taken concurrently
+				inFlightPermits.release();
+				continue;
+			}
+			try {
+				ioExecutorService.execute(start);
+			} catch (RuntimeException e) {
+				// closed, run here so the input still completes
+				start.run();
+			}
+		}
+	}
+
+	/**
+	 * Starts decoding an input which holds an in flight permit.
+	 *
+	 * @param input
+	 *            the input to decode.
+	 * @return a future of the decode result.
+	 */
+	private CompletableFuture<Result> start(Object input) {
+		final List<String> warnings = Collections
+				.synchronizedList(new ArrayList<String>());
+		final BLPReader reader = new BLPReader(readerSpi);
+		try {
+			reader.addIIOReadWarningListener((source, warning) -> warnings
+					.add(warning));
+			reader.setInput(input);
+		} catch (RuntimeException e) {
+			return CompletableFuture.completedFuture(new Result(input, null,
+					Collections.unmodifiableList(warnings), e));
+		}
+
+		return reader.readAsync(0, null, ioExecutorService, decodeExecutor)
+				.handle((image, failure) -> {
+					reader.dispose();
+					if (failure instanceof CompletionException
+							&& failure.getCause() != null)
+						failure = failure.getCause();
+					return new Result(input, image, Collections
+							.unmodifiableList(new ArrayList<String>(warnings)),
+							failure);
+				});
+	}
+
+	/**
+	 * Decodes many inputs asynchronously. The result of each input is passed
+	 * to the consumer as soon as it completes, which may be concurrently from
+	 * several threads.
+	 *
+	 * @param inputs
+	 *            the inputs to decode.
+	 * @param consumer
+	 *            the consumer of results.
+	 * @return a future that completes once all results have been consumed.
+	 */
+	public CompletableFuture<Void> decodeAll(Collection<?> inputs,
+			Consumer<? super Result> consumer) {
+		final List<CompletableFuture<Void>> decodes =
+				new ArrayList<CompletableFuture<Void>>(inputs.size());
+		for (final Object input : inputs)
+			decodes.add(decode(input).thenAccept(consumer));
+		return CompletableFuture.allOf(decodes
+				.toArray(new CompletableFuture<?>[0]));
+	}
+
+	/**
+	 * Shuts down the threads of the service. Decodes already submitted might
+	 * fail.
+	 */
+	@Override
+	public void close() {
+		ioExecutorService.shutdown();
+		if (decodeExecutorService != null)
+			decodeExecutorService.shutdown();
+	}
+}
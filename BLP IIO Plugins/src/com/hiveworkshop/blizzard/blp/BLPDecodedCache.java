@@ -0,0 +1,531 @@
+package com.hiveworkshop.blizzard.blp;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.imageio.ImageTypeSpecifier;
+
+/**
+ * A cache of decoded BLP mipmap levels shared between readers.
+ * <p>
+ * A cache is attached to reads with a BLPReadParam. Decoded images are keyed
+ * by their source, mipmap level, direct read mode, destination type and JPEG
+ * reader. File and Path inputs are identified by their path, modification
+ * time and size so a changed file is decoded again. Byte array and
+ * ByteBuffer inputs are identified by a hash of their content. Other inputs
+ * are never cached. Only reads which apply no source region, subsampling,
+ * bands, destination image or destination offset use the cache.
+ * <p>
+ * The cache is bounded by the total size in bytes of the image data held.
+ * It is split into segments, each with its own lock and least recently used
+ * eviction, so that concurrent readers rarely contend. Images larger than a
+ * segment are not cached. Hit, miss and eviction counts are kept for tuning.
+ * <p>
+ * Reads using a cache return a copy of the image held by the cache, both
+ * when the read hits and when it decodes the level and adds it, so returned
+ * images can be modified without affecting other readers. Copying is much
+ * cheaper than decoding. Reads can instead return the cached image itself by
+ * enabling cache sharing on the BLPReadParam, in which case returned images
+ * are shared with other reads and must be treated as read-only.
+ *
+ * @author Imperial Good
+ */
+public final class BLPDecodedCache {
+	/**
+	 * Default number of segments.
+	 */
+	private static final int DEFAULT_CONCURRENCY = 16;
+
+	/**
+	 * Identity of a decoded input.
+	 */
+	static final class Source {
+		/**
+		 * Normalized absolute path or content hash.
+		 */
+		private final Object id;
+
+		/**
+		 * Modification time in milliseconds, or 0 for content hashes.
+		 */
+		private final long modified;
+
+		/**
+		 * Size in bytes of the input.
+		 */
+		private final long size;
+
+		/**
+		 * Constructs a source.
+		 *
+		 * @param id
+		 *            the path or content hash.
+		 * @param modified
+		 *            the modification time.
+		 * @param size
+		 *            the input size.
+		 */
+		private Source(Object id, long modified, long size) {
+			this.id = id;
+			this.modified = modified;
+			this.size = size;
+		}
+
+		/**
+		 * Get a name uniquely identifying the input, ignoring modification
+		 * time and size.
+		 *
+		 * @return the path or content hash as a string.
+		 */
+		String getName() {
+			if (id instanceof ByteBuffer) {
+				final ByteBuffer hash = ((ByteBuffer) id).duplicate();
+				final StringBuilder name = new StringBuilder("sha256:");
+				while (hash.hasRemaining())
+					name.append(String.format("%02x", hash.get()));
+				return name.toString();
+			}
+			return "file:" + id;
+		}
+
+		/**
+		 * Get the modification time of the input.
+		 *
+		 * @return modification time in milliseconds, or 0 for content
+		 *         hashes.
+		 */
+		long getModified() {
+			return modified;
+		}
+
+		/**
+		 * Get the size of the input.
+		 *
+		 * @return the size in bytes.
+		 */
+		long getSize() {
+			return size;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Source))
+				return false;
+			final Source other = (Source) obj;
+			return modified == other.modified && size == other.size
+					&& id.equals(other.id);
+		}
+
+		@Override
+		public int hashCode() {
+			return (id.hashCode() * 31 + Long.hashCode(modified)) * 31
+					+ Long.hashCode(size);
+		}
+	}
+
+	/**
+	 * Key of a decoded mipmap level.
+	 */
+	static final class Key {
+		/**
+		 * The input identity.
+		 */
+		private final Source source;
+
+		/**
+		 * The mipmap level.
+		 */
+		private final int level;
+
+		/**
+		 * Whether the image is the direct read image.
+		 */
+		private final boolean direct;
+
+		/**
+		 * The destination type, or null for the default type.
+		 */
+		private final ImageTypeSpecifier type;
+
+		/**
+		 * Other decode settings affecting the image, such as the JPEG reader.
+		 */
+		private final String settings;
+
+		/**
+		 * Constructs a key.
+		 *
+		 * @param source
+		 *            the input identity.
+		 * @param level
+		 *            the mipmap level.
+		 * @param direct
+		 *            if the image is read in direct read mode.
+		 * @param type
+		 *            the destination type, or null for the default type.
+		 * @param settings
+		 *            other decode settings affecting the image.
+		 */
+		Key(Source source, int level, boolean direct,
+				ImageTypeSpecifier type, String settings) {
+			this.source = source;
+			this.level = level;
+			this.direct = direct;
+			this.type = type;
+			this.settings = settings;
+		}
+
+		/**
+		 * Get the input identity.
+		 *
+		 * @return the source.
+		 */
+		Source getSource() {
+			return source;
+		}
+
+		/**
+		 * Get the mipmap level.
+		 *
+		 * @return the mipmap level.
+		 */
+		int getLevel() {
+			return level;
+		}
+
+		/**
+		 * Returns if the image is read in direct read mode.
+		 *
+		 * @return true if direct read.
+		 */
+		boolean isDirect() {
+			return direct;
+		}
+
+		/**
+		 * Get the destination type.
+		 *
+		 * @return the destination type, or null for the default type.
+		 */
+		ImageTypeSpecifier getType() {
+			return type;
+		}
+
+		/**
+		 * Get the other decode settings affecting the image.
+		 *
+		 * @return the settings.
+		 */
+		String getSettings() {
+			return settings;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			final Key other = (Key) obj;
+			return level == other.level && direct == other.direct
+					&& source.equals(other.source)
+					&& Objects.equals(type, other.type)
+					&& settings.equals(other.settings);
+		}
+
+		@Override
+		public int hashCode() {
+			return (((source.hashCode() * 31 + level) * 31 + Boolean
+					.hashCode(direct)) * 31 + Objects.hashCode(type)) * 31
+					+ settings.hashCode();
+		}
+	}
+
+	/**
+	 * A least recently used segment of the cache. Accessed only while locked.
+	 */
+	private static final class Segment extends
+			LinkedHashMap<Key, BufferedImage> {
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Total size in bytes of the images held.
+		 */
+		private long size = 0;
+
+		private Segment() {
+			super(16, 0.75f, true);
+		}
+	}
+
+	/**
+	 * The segments. Length is a power of 2.
+	 */
+	private final Segment[] segments;
+
+	/**
+	 * Maximum size in bytes of each segment.
+	 */
+	private final long segmentCapacity;
+
+	/**
+	 * Number of reads served from the cache.
+	 */
+	private final LongAdder hitCount = new LongAdder();
+
+	/**
+	 * Number of reads that were not cached.
+	 */
+	private final LongAdder missCount = new LongAdder();
+
+	/**
+	 * Number of images evicted.
+	 */
+	private final LongAdder evictionCount = new LongAdder();
+
+	/**
+	 * Constructs a cache with the specified capacity and default concurrency.
+	 *
+	 * @param capacity
+	 *            the maximum total size of cached image data in bytes.
+	 * @throws IllegalArgumentException
+	 *             if capacity is negative.
+	 */
+	public BLPDecodedCache(long capacity) {
+		this(capacity, DEFAULT_CONCURRENCY);
+	}
+
+	/**
+	 * Constructs a cache with the specified capacity and concurrency. The
+	 * concurrency is rounded up to a power of 2 and is the number of segments
+	 * the capacity is divided between.
+	 *
+	 * @param capacity
+	 *            the maximum total size of cached image data in bytes.
+	 * @param concurrency
+	 *            the number of independently locked segments.
+	 * @throws IllegalArgumentException
+	 *             if capacity is negative or concurrency is not positive.
+	 */
+	public BLPDecodedCache(long capacity, int concurrency) {
+		if (capacity < 0)
+			throw new IllegalArgumentException("Capacity cannot be negative.");
+		else if (concurrency < 1)
+			throw new IllegalArgumentException(
+					"Concurrency must be positive.");
+
+		final int count = Integer.highestOneBit(Math.min(concurrency,
+				1 << 16) * 2 - 1);
+		segments = new Segment[count];
+		for (int i = 0; i < count; i += 1)
+			segments[i] = new Segment();
+		segmentCapacity = capacity / count;
+	}
+
+	/**
+	 * Obtains the identity of an input for use in keys.
+	 *
+	 * @param input
+	 *            the reader input.
+	 * @return the source, or null if the input cannot be cached.
+	 * @throws IOException
+	 *             if the modification time of a file cannot be read.
+	 */
+	static Source createSource(Object input) throws IOException {
+		if (input instanceof File)
+			input = ((File) input).toPath();
+
+		if (input instanceof Path) {
+			final Path path = ((Path) input).toAbsolutePath().normalize();
+			final BasicFileAttributes attributes = Files.readAttributes(path,
+					BasicFileAttributes.class);
+			return new Source(path, attributes.lastModifiedTime().toMillis(),
+					attributes.size());
+		} else if (input instanceof byte[]) {
+			final byte[] bytes = (byte[]) input;
+			return new Source(hash(ByteBuffer.wrap(bytes)), 0, bytes.length);
+		} else if (input instanceof ByteBuffer) {
+			final ByteBuffer buffer = ((ByteBuffer) input).duplicate();
+			return new Source(hash(buffer.duplicate()), 0,
+					buffer.remaining());
+		}
+		return null;
+	}
+
+	/**
+	 * Hashes the content of a buffer between its position and limit.
+	 *
+	 * @param content
+	 *            the content to hash.
+	 * @return a buffer holding the hash, which compares by content.
+	 */
+	private static ByteBuffer hash(ByteBuffer content) {
+		try {
+			final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(content);
+			return ByteBuffer.wrap(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			// required of all Java platforms
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Computes the size in bytes of the data of an image.
+	 *
+	 * @param img
+	 *            the image.
+	 * @return the image data size.
+	 */
+	static long sizeOf(BufferedImage img) {
+		final DataBuffer db = img.getRaster().getDataBuffer();
+		return (long) db.getSize() * db.getNumBanks()
+				* DataBuffer.getDataTypeSize(db.getDataType()) / 8;
+	}
+
+	/**
+	 * Get the segment a key belongs to.
+	 *
+	 * @param key
+	 *            the key.
+	 * @return the segment.
+	 */
+	private Segment segmentFor(Key key) {
+		final int h = key.hashCode();
+		return segments[(h ^ (h >>> 16)) & (segments.length - 1)];
+	}
+
+	/**
+	 * Get a cached image, counting a hit or miss.
+	 *
+	 * @param key
+	 *            the key.
+	 * @return the image, or null if not cached.
+	 */
+	BufferedImage get(Key key) {
+		final Segment segment = segmentFor(key);
+		final BufferedImage img;
+		synchronized (segment) {
+			img = segment.get(key);
+		}
+		if (img != null)
+			hitCount.increment();
+		else
+			missCount.increment();
+		return img;
+	}
+
+	/**
+	 * Caches an image, evicting least recently used images of the segment as
+	 * required. Images bigger than a segment are not cached.
+	 *
+	 * @param key
+	 *            the key.
+	 * @param img
+	 *            the image.
+	 */
+	void put(Key key, BufferedImage img) {
+		final long size = sizeOf(img);
+		if (size > segmentCapacity)
+			return;
+
+		final Segment segment = segmentFor(key);
+		synchronized (segment) {
+			final BufferedImage old = segment.put(key, img);
+			if (old != null)
+				segment.size -= sizeOf(old);
+			segment.size += size;
+
+			final Iterator<Map.Entry<Key, BufferedImage>> it = segment
+					.entrySet().iterator();
+			while (segment.size > segmentCapacity) {
+				final Map.Entry<Key, BufferedImage> eldest = it.next();
+				segment.size -= sizeOf(eldest.getValue());
+				it.remove();
+				evictionCount.increment();
+			}
+		}
+	}
+
+	/**
+	 * Get the maximum total size of cached image data.
+	 *
+	 * @return the capacity in bytes.
+	 */
+	public long getCapacity() {
+		return segmentCapacity * segments.length;
+	}
+
+	/**
+	 * Get the total size of cached image data.
+	 *
+	 * @return the size in bytes.
+	 */
+	public long getSize() {
+		long size = 0;
+		for (final Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.size;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Get the number of reads that were served from the cache.
+	 *
+	 * @return the hit count.
+	 */
+	public long getHitCount() {
+		return hitCount.sum();
+	}
+
+	/**
+	 * Get the number of reads that had to decode.
+	 *
+	 * @return the miss count.
+	 */
+	public long getMissCount() {
+		return missCount.sum();
+	}
+
+	/**
+	 * Get the number of images evicted to stay within capacity.
+	 *
+	 * @return the eviction count.
+	 */
+	public long getEvictionCount() {
+		return evictionCount.sum();
+	}
+
+	/**
+	 * Removes all cached images. Counts are not reset.
+	 */
+	public void clear() {
+		for (final Segment segment : segments) {
+			synchronized (segment) {
+				segment.clear();
+				segment.size = 0;
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "{BLP Decoded Cache: size = " + getSize() + ", capacity = "
+				+ getCapacity() + ", hits = " + getHitCount()
+				+ ", misses = " + getMissCount() + ", evictions = "
+				+ getEvictionCount() + "}";
+	}
+}
@@ -0,0 +1,338 @@
+package com.hiveworkshop.blizzard.blp;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A decoded mipmap level stored outside the Java heap.
+ * <p>
+ * The image data is held in native memory so that large decoded images, such
+ * as kept by texture caches, do not occupy the heap where they would lengthen
+ * garbage collection pauses. The data can be accessed as a ByteBuffer view, in
+ * the layout described by the sample model, or wrapped as a BufferedImage on
+ * request without copying.
+ * <p>
+ * The store is reference counted, starting with 1 reference. Each user that
+ * keeps the store should retain it and release it once done. When the last
+ * reference is released the store drops its native memory and further access
+ * to the store fails. Buffer views and images obtained from the store must not
+ * be used once it is released.
+ * <p>
+ * Native memory is allocated as a direct ByteBuffer. It is returned once the
+ * garbage collector collects the buffer, so memory is never freed while a
+ * view or image of it is still reachable.
+ *
+ * @author Imperial Good
+ */
+public final class BLPDirectMipmap implements AutoCloseable {
+	/**
+	 * The color model of the image.
+	 */
+	private final ColorModel colorModel;
+
+	/**
+	 * The sample model of the image data.
+	 */
+	private final SampleModel sampleModel;
+
+	/**
+	 * The number of elements in each bank.
+	 */
+	private final int bankSize;
+
+	/**
+	 * The number of banks.
+	 */
+	private final int numBanks;
+
+	/**
+	 * The native memory holding the image data, or null once released.
+	 */
+	private NativeAllocator.Block data;
+
+	/**
+	 * The number of references.
+	 */
+	private int referenceCount = 1;
+
+	/**
+	 * Constructs a store.
+	 *
+	 * @param colorModel
+	 *            the color model.
+	 * @param sampleModel
+	 *            the sample model.
+	 * @param bankSize
+	 *            the number of elements in each bank.
+	 * @param numBanks
+	 *            the number of banks.
+	 * @param data
+	 *            the native memory holding the image data.
+	 */
+	private BLPDirectMipmap(ColorModel colorModel, SampleModel sampleModel,
+			int bankSize, int numBanks, NativeAllocator.Block data) {
+		this.colorModel = colorModel;
+		this.sampleModel = sampleModel;
+		this.bankSize = bankSize;
+		this.numBanks = numBanks;
+		this.data = data;
+	}
+
+	/**
+	 * Allocates a store for image data of a single bank, with content
+	 * initialized to 0. Allows decoders to produce image data directly outside
+	 * the Java heap.
+	 * 
+	 * @param colorModel
+	 *            the color model.
+	 * @param sampleModel
+	 *            the sample model.
+	 * @param bankSize
+	 *            the number of elements in the bank.
+	 * @return the store, holding 1 reference.
+	 * @throws IllegalArgumentException
+	 *             if the data type is not supported.
+	 */
+	static BLPDirectMipmap allocate(ColorModel colorModel,
+			SampleModel sampleModel, int bankSize) {
+		final int elementSize = DirectDataBuffer.elementSize(sampleModel
+				.getDataType());
+		return new BLPDirectMipmap(colorModel, sampleModel, bankSize, 1,
+				NativeAllocator.INSTANCE.allocate(Math.multiplyExact(bankSize,
+						elementSize)));
+	}
+
+	/**
+	 * Copies an image into a new store outside the Java heap.
+	 * <p>
+	 * Image data of byte, unsigned short and int type is supported, which
+	 * includes all images decoded from BLP files.
+	 *
+	 * @param img
+	 *            the image to copy.
+	 * @return the store, holding 1 reference.
+	 * @throws IllegalArgumentException
+	 *             if the image data type is not supported.
+	 */
+	public static BLPDirectMipmap copyOf(BufferedImage img) {
+		final ColorModel cm = img.getColorModel();
+		WritableRaster raster = img.getRaster();
+		DataBuffer db = raster.getDataBuffer();
+		final int elementSize = DirectDataBuffer.elementSize(db.getDataType());
+
+		// compact child rasters and offset data into a fresh raster
+		boolean offset = raster.getSampleModelTranslateX() != 0
+				|| raster.getSampleModelTranslateY() != 0;
+		for (final int bankOffset : db.getOffsets())
+			offset |= bankOffset != 0;
+		if (offset) {
+			final WritableRaster compact = raster
+					.createCompatibleWritableRaster();
+			compact.setRect(raster);
+			raster = compact;
+			db = raster.getDataBuffer();
+		}
+
+		// copy banks
+		final int size = db.getSize();
+		final int banks = db.getNumBanks();
+		final NativeAllocator.Block block = NativeAllocator.INSTANCE
+				.allocate(Math.multiplyExact(Math.multiplyExact(size, banks),
+						elementSize));
+		final ByteBuffer data = block.getBuffer().duplicate()
+				.order(ByteOrder.nativeOrder());
+		for (int i = 0; i < banks; i += 1) {
+			if (db instanceof DataBufferByte)
+				data.put(((DataBufferByte) db).getData(i), 0, size);
+			else if (db instanceof DataBufferUShort)
+				data.asShortBuffer().put(((DataBufferUShort) db).getData(i),
+						0, size);
+			else if (db instanceof DataBufferInt)
+				data.asIntBuffer().put(((DataBufferInt) db).getData(i), 0,
+						size);
+			else
+				for (int j = 0; j < size; j += 1)
+					putElem(data, elementSize, db.getElem(i, j));
+			data.position((i + 1) * size * elementSize);
+		}
+
+		return new BLPDirectMipmap(cm, raster.getSampleModel(), size, banks,
+				block);
+	}
+
+	/**
+	 * Appends an element to a buffer.
+	 *
+	 * @param data
+	 *            the buffer.
+	 * @param elementSize
+	 *            the element size in bytes.
+	 * @param val
+	 *            the element value.
+	 */
+	private static void putElem(ByteBuffer data, int elementSize, int val) {
+		if (elementSize == 1)
+			data.put((byte) val);
+		else if (elementSize == 2)
+			data.putShort((short) val);
+		else
+			data.putInt(val);
+	}
+
+	/**
+	 * Get the image data, failing if released.
+	 *
+	 * @return the image data.
+	 * @throws IllegalStateException
+	 *             if released.
+	 */
+	private synchronized ByteBuffer checkData() {
+		if (data == null)
+			throw new IllegalStateException("Mipmap released.");
+		return data.getBuffer();
+	}
+
+	/**
+	 * Get the width in pixels.
+	 *
+	 * @return width in pixels.
+	 */
+	public int getWidth() {
+		return sampleModel.getWidth();
+	}
+
+	/**
+	 * Get the height in pixels.
+	 *
+	 * @return height in pixels.
+	 */
+	public int getHeight() {
+		return sampleModel.getHeight();
+	}
+
+	/**
+	 * Get the color model of the image.
+	 *
+	 * @return the color model.
+	 */
+	public ColorModel getColorModel() {
+		return colorModel;
+	}
+
+	/**
+	 * Get the sample model describing the layout of the image data. Banks
+	 * are stored one after another, each holding the same number of elements
+	 * in native byte order.
+	 *
+	 * @return the sample model.
+	 */
+	public SampleModel getSampleModel() {
+		return sampleModel;
+	}
+
+	/**
+	 * Get the size of the image data.
+	 *
+	 * @return the size in bytes.
+	 */
+	public long getSize() {
+		return (long) bankSize * numBanks
+				* DirectDataBuffer.elementSize(sampleModel.getDataType());
+	}
+
+	/**
+	 * Get a view of the image data. The view shares content with the store
+	 * and is only valid while the store is not released.
+	 *
+	 * @return a buffer holding the image data between position 0 and its
+	 *         limit, in native byte order.
+	 * @throws IllegalStateException
+	 *             if released.
+	 */
+	public ByteBuffer getData() {
+		return checkData().duplicate().order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * Wraps the image data as a BufferedImage without copying. Changes to the
+	 * image change the store. Drawing the image is slower than drawing a heap
+	 * image so for repeated drawing a heap copy should be made.
+	 *
+	 * @return the image viewing the store.
+	 * @throws IllegalStateException
+	 *             if released.
+	 */
+	public BufferedImage createImage() {
+		final DataBuffer db = new DirectDataBuffer(sampleModel.getDataType(),
+				bankSize, numBanks, checkData());
+		final WritableRaster raster = Raster.createWritableRaster(sampleModel,
+				db, null);
+		return new BufferedImage(colorModel, raster,
+				colorModel.isAlphaPremultiplied(), null);
+	}
+
+	/**
+	 * Adds a reference to the store.
+	 *
+	 * @return this store.
+	 * @throws IllegalStateException
+	 *             if released.
+	 */
+	public synchronized BLPDirectMipmap retain() {
+		checkData();
+		referenceCount += 1;
+		return this;
+	}
+
+	/**
+	 * Removes a reference from the store. Once no references remain the native
+	 * memory holding the image data is dropped.
+	 *
+	 * @return true if this was the last reference.
+	 * @throws IllegalStateException
+	 *             if already released.
+	 */
+	public synchronized boolean release() {
+		checkData();
+		referenceCount -= 1;
+		if (referenceCount > 0)
+			return false;
+		final NativeAllocator.Block block = data;
+		data = null;
+		block.free();
+		return true;
+	}
+
+	/**
+	 * Get the number of references to the store.
+	 *
+	 * @return the reference count, 0 once released.
+	 */
+	public synchronized int getReferenceCount() {
+		return referenceCount;
+	}
+
+	/**
+	 * Releases a reference to the store. Same as release.
+	 */
+	@Override
+	public void close() {
+		release();
+	}
+
+	@Override
+	public String toString() {
+		return "{BLP Direct Mipmap: width = " + getWidth() + ", height = "
+				+ getHeight() + ", bytes = " + getSize() + ", references = "
+				+ getReferenceCount() + "}";
+	}
+}
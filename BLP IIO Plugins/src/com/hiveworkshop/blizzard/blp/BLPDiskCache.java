@@ -0,0 +1,469 @@
+package com.hiveworkshop.blizzard.blp;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A persistent cache of decoded BLP mipmap levels stored in a directory.
+ * <p>
+ * A cache is attached to reads with a BLPReadParam. Decoded mipmap levels are
+ * stored in files of a compact raw layout, a small header describing the
+ * image followed by the pixel data. The pixel data of an entry is read back
+ * straight into the image data without intermediate copies.
+ * Files are keyed by a hash of the source and decode settings the same as
+ * BLPDecodedCache, except that reads with a destination type are not cached.
+ * Entries of File and Path inputs record the source modification time and
+ * size and are discarded once the source changes.
+ * <p>
+ * Images with component color models in the sRGB or linear RGB color space
+ * and byte pixel interleaved data are supported. These include all JPEG, DXT
+ * and BGRA content which is the most expensive to decode. Indexed content is
+ * decoded by wrapping the mipmap data so is not stored.
+ * <p>
+ * The total size of the cache files is capped. When a new entry exceeds the
+ * cap the least recently used files are deleted. Use is tracked by an in
+ * memory index built from the cache directory on construction, so inserting
+ * and evicting entries never lists the directory. The file modification time
+ * also records use, ordering the index of later runs. Entries are written to
+ * temporary files and moved into place so that a cache shared between
+ * processes never exposes partial entries. Files written by other processes
+ * join the index once read. Failures to read or write the cache are ignored
+ * and the mipmap level is decoded normally.
+ *
+ * @author Imperial Good
+ */
+public final class BLPDiskCache {
+	/**
+	 * Magic identifying cache files.
+	 */
+	private static final int MAGIC = 0x424C5044; // 'BLPD'
+
+	/**
+	 * Version of the cache file layout.
+	 */
+	private static final int LAYOUT_VERSION = 1;
+
+	/**
+	 * Size of the fixed part of the cache file header in bytes, up to and
+	 * including the number of band offsets.
+	 */
+	private static final int HEADER_SIZE = 54;
+
+	/**
+	 * Suffix of cache files.
+	 */
+	private static final String SUFFIX = ".bdc";
+
+	/**
+	 * The cache directory.
+	 */
+	private final Path directory;
+
+	/**
+	 * Maximum total size of cache files in bytes.
+	 */
+	private final long capacity;
+
+	/**
+	 * Sizes of known cache files in least recently used order.
+	 */
+	private final LinkedHashMap<Path, Long> index =
+			new LinkedHashMap<Path, Long>(16, 0.75f, true);
+
+	/**
+	 * Total size of known cache files in bytes.
+	 */
+	private long size = 0;
+
+	/**
+	 * Constructs a cache in the specified directory, which is created if
+	 * needed. Existing cache files in the directory are reused.
+	 *
+	 * @param directory
+	 *            the cache directory.
+	 * @param capacity
+	 *            the maximum total size of cache files in bytes.
+	 * @throws IOException
+	 *             if the directory cannot be created or listed.
+	 * @throws IllegalArgumentException
+	 *             if capacity is negative.
+	 */
+	public BLPDiskCache(Path directory, long capacity) throws IOException {
+		if (capacity < 0)
+			throw new IllegalArgumentException("Capacity cannot be negative.");
+		this.directory = Files.createDirectories(directory);
+		this.capacity = capacity;
+
+		// index existing files by last use
+		final List<Entry> entries = listEntries();
+		entries.sort(Comparator.comparing(entry -> entry.used));
+		synchronized (this) {
+			for (final Entry entry : entries)
+				index(entry.path, entry.size);
+			evict();
+		}
+	}
+
+	/**
+	 * A cache file found on disk.
+	 */
+	private static final class Entry {
+		/**
+		 * The file path.
+		 */
+		private final Path path;
+
+		/**
+		 * The last use time.
+		 */
+		private final FileTime used;
+
+		/**
+		 * The file size in bytes.
+		 */
+		private final long size;
+
+		/**
+		 * Constructs an entry.
+		 *
+		 * @param path
+		 *            the file path.
+		 * @param used
+		 *            the last use time.
+		 * @param size
+		 *            the file size.
+		 */
+		private Entry(Path path, FileTime used, long size) {
+			this.path = path;
+			this.used = used;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Lists the cache files in the cache directory.
+	 *
+	 * @return the entries.
+	 * @throws IOException
+	 *             if the directory cannot be listed.
+	 */
+	private List<Entry> listEntries() throws IOException {
+		final List<Entry> entries = new ArrayList<Entry>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+				"*" + SUFFIX)) {
+			for (final Path file : files) {
+				try {
+					final BasicFileAttributes attributes = Files
+							.readAttributes(file, BasicFileAttributes.class);
+					entries.add(new Entry(file, attributes.lastModifiedTime(),
+							attributes.size()));
+				} catch (IOException e) {
+					// removed concurrently
+				}
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Records a cache file as most recently used.
+	 *
+	 * @param path
+	 *            the file path.
+	 * @param fileSize
+	 *            the file size in bytes.
+	 */
+	private synchronized void index(Path path, long fileSize) {
+		final Long replaced = index.put(path, fileSize);
+		size += fileSize - (replaced != null ? replaced : 0);
+	}
+
+	/**
+	 * Deletes least recently used cache files until within capacity.
+	 */
+	private synchronized void evict() {
+		final Iterator<Map.Entry<Path, Long>> it = index.entrySet()
+				.iterator();
+		while (size > capacity && it.hasNext()) {
+			final Map.Entry<Path, Long> entry = it.next();
+			try {
+				Files.deleteIfExists(entry.getKey());
+			} catch (IOException e) {
+				// in use, forget it and let a later run retry
+			}
+			size -= entry.getValue();
+			it.remove();
+		}
+	}
+
+	/**
+	 * Get the cache file path of a key.
+	 *
+	 * @param key
+	 *            the key.
+	 * @return the cache file path.
+	 */
+	private Path pathOf(BLPDecodedCache.Key key) {
+		final String name = key.getSource().getName() + '|' + key.getLevel()
+				+ '|' + key.isDirect() + '|' + key.getSettings();
+		try {
+			final byte[] hash = MessageDigest.getInstance("SHA-256").digest(
+					name.getBytes(StandardCharsets.UTF_8));
+			final StringBuilder fileName = new StringBuilder();
+			for (final byte b : hash)
+				fileName.append(String.format("%02x", b));
+			return directory.resolve(fileName.append(SUFFIX).toString());
+		} catch (NoSuchAlgorithmException e) {
+			// required of all Java platforms
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Reads bytes from the current channel position until the buffer is full.
+	 * The buffer is then flipped ready to be read.
+	 *
+	 * @param src
+	 *            the channel.
+	 * @param buff
+	 *            the buffer.
+	 * @throws IOException
+	 *             if end of file is reached or an IOException occurs.
+	 */
+	private static void readFully(FileChannel src, ByteBuffer buff)
+			throws IOException {
+		while (buff.hasRemaining()) {
+			if (src.read(buff) < 0)
+				throw new EOFException();
+		}
+		buff.flip();
+	}
+
+	/**
+	 * Get a cached image. Stale or unreadable entries are treated as missing.
+	 *
+	 * @param key
+	 *            the key.
+	 * @return the image, or null if not cached.
+	 */
+	BufferedImage get(BLPDecodedCache.Key key) {
+		if (key.getType() != null)
+			return null;
+
+		final Path path = pathOf(key);
+		final BLPDecodedCache.Source source = key.getSource();
+		try (FileChannel channel = FileChannel.open(path,
+				StandardOpenOption.READ)) {
+			// validate header
+			final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+			readFully(channel, buffer);
+			if (buffer.getInt() != MAGIC || buffer.getInt() != LAYOUT_VERSION
+					|| buffer.getLong() != source.getModified()
+					|| buffer.getLong() != source.getSize())
+				return null;
+
+			// read image layout
+			final int csType = buffer.getInt();
+			final boolean hasAlpha = buffer.get() != 0;
+			final boolean premultiplied = buffer.get() != 0;
+			final int transparency = buffer.getInt();
+			final int width = buffer.getInt();
+			final int height = buffer.getInt();
+			final int pixelStride = buffer.getInt();
+			final int scanlineStride = buffer.getInt();
+			final int[] bandOffsets = new int[buffer.getInt()];
+			final ByteBuffer layout = ByteBuffer
+					.allocate(4 * bandOffsets.length + 4);
+			readFully(channel, layout);
+			for (int i = 0; i < bandOffsets.length; i += 1)
+				bandOffsets[i] = layout.getInt();
+			final int dataLength = layout.getInt();
+			if (dataLength != channel.size() - channel.position())
+				return null;
+
+			// read pixel data straight into the image data
+			final byte[] data = new byte[dataLength];
+			readFully(channel, ByteBuffer.wrap(data));
+
+			final ColorModel cm = new ComponentColorModel(
+					ColorSpace.getInstance(csType), hasAlpha, premultiplied,
+					transparency, DataBuffer.TYPE_BYTE);
+			final SampleModel sm = new PixelInterleavedSampleModel(
+					DataBuffer.TYPE_BYTE, width, height, pixelStride,
+					scanlineStride, bandOffsets);
+			final WritableRaster raster = Raster.createWritableRaster(sm,
+					new DataBufferByte(data, data.length), null);
+
+			// record use
+			index(path, channel.size());
+			Files.setLastModifiedTime(path,
+					FileTime.fromMillis(System.currentTimeMillis()));
+			return new BufferedImage(cm, raster, premultiplied, null);
+		} catch (IOException | RuntimeException e) {
+			// missing, corrupt or inaccessible entry
+			return null;
+		}
+	}
+
+	/**
+	 * Caches an image if its layout is supported, evicting least recently
+	 * used entries as required.
+	 *
+	 * @param key
+	 *            the key.
+	 * @param img
+	 *            the image.
+	 */
+	void put(BLPDecodedCache.Key key, BufferedImage img) {
+		if (key.getType() != null)
+			return;
+
+		// check layout is supported
+		final ColorModel cm = img.getColorModel();
+		final WritableRaster raster = img.getRaster();
+		if (!(cm instanceof ComponentColorModel)
+				|| cm.getTransferType() != DataBuffer.TYPE_BYTE
+				|| !(raster.getSampleModel() instanceof ComponentSampleModel)
+				|| !(raster.getDataBuffer() instanceof DataBufferByte)
+				|| raster.getSampleModelTranslateX() != 0
+				|| raster.getSampleModelTranslateY() != 0
+				|| raster.getDataBuffer().getOffset() != 0)
+			return;
+		final int csType;
+		if (cm.getColorSpace() == ColorSpace.getInstance(ColorSpace.CS_sRGB))
+			csType = ColorSpace.CS_sRGB;
+		else if (cm.getColorSpace() == ColorSpace
+				.getInstance(ColorSpace.CS_LINEAR_RGB))
+			csType = ColorSpace.CS_LINEAR_RGB;
+		else
+			return;
+		final ComponentSampleModel sm = (ComponentSampleModel) raster
+				.getSampleModel();
+		final byte[] data = ((DataBufferByte) raster.getDataBuffer())
+				.getData();
+		final int[] bandOffsets = sm.getBandOffsets();
+
+		// build header
+		final BLPDecodedCache.Source source = key.getSource();
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + 4
+				* bandOffsets.length + 4);
+		header.putInt(MAGIC).putInt(LAYOUT_VERSION)
+				.putLong(source.getModified()).putLong(source.getSize());
+		header.putInt(csType).put((byte) (cm.hasAlpha() ? 1 : 0))
+				.put((byte) (cm.isAlphaPremultiplied() ? 1 : 0))
+				.putInt(cm.getTransparency());
+		header.putInt(sm.getWidth()).putInt(sm.getHeight())
+				.putInt(sm.getPixelStride()).putInt(sm.getScanlineStride());
+		header.putInt(bandOffsets.length);
+		for (final int bandOffset : bandOffsets)
+			header.putInt(bandOffset);
+		header.putInt(data.length);
+		header.flip();
+
+		// write to temporary file and move into place
+		final Path path = pathOf(key);
+		Path temp = null;
+		try {
+			temp = Files.createTempFile(directory, "entry", ".tmp");
+			try (FileChannel channel = FileChannel.open(temp,
+					StandardOpenOption.WRITE)) {
+				final ByteBuffer[] content = { header, ByteBuffer.wrap(data) };
+				while (content[1].hasRemaining())
+					channel.write(content);
+			}
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			temp = null;
+			synchronized (this) {
+				index(path, header.capacity() + (long) data.length);
+				evict();
+			}
+		} catch (IOException e) {
+			// leave uncached
+		} finally {
+			if (temp != null) {
+				try {
+					Files.deleteIfExists(temp);
+				} catch (IOException e) {
+					// abandoned temporary file
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the cache directory.
+	 *
+	 * @return the directory path.
+	 */
+	public Path getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Get the maximum total size of cache files.
+	 *
+	 * @return the capacity in bytes.
+	 */
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Get the total size of cache files written or found by this cache.
+	 * Entries written by other processes are only accounted for once read.
+	 *
+	 * @return the size in bytes.
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * Deletes all cache files.
+	 *
+	 * @throws IOException
+	 *             if the directory cannot be listed.
+	 */
+	public synchronized void clear() throws IOException {
+		for (final Entry entry : listEntries())
+			Files.deleteIfExists(entry.path);
+		index.clear();
+		size = 0;
+	}
+
+	@Override
+	public String toString() {
+		return "{BLP Disk Cache: directory = " + directory + ", size = "
+				+ getSize() + ", capacity = " + capacity + "}";
+	}
+}
@@ -43,8 +43,87 @@ public enum BLPEncodingType {
 	 * Storage is technically lossless and depending on content the resulting
 	 * BLP files can greatly benefit from further compression. Encoding an image
 	 * into indexed color for storage can cause a loss in color space.
+	 * <p>
+	 * Version 2 files use the same mipmap data and palette layout. The sample
+	 * type field of such files has no meaning for indexed content so is
+	 * ignored.
 	 */
 	INDEXED(0x113, 0),
+	/**
+	 * Images stored as DXT1 (BC1) compressed blocks. Each 4*4 pixel block uses
+	 * 64 bits holding two 16 bit BGR565 reference colors and 2 bit indices
+	 * selecting interpolated colors.
+	 * <p>
+	 * Supports 0 and 1 bit alpha. Blocks can use a 3 color mode where one of
+	 * the colors is transparent black, which represents the 1 bit alpha.
+	 * <p>
+	 * Requires version 2. Compression is lossy with a fixed 8:1 ratio compared
+	 * with 32 bit pixels.
+	 */
+	DXT1(0x003, 2),
+	/**
+	 * Images stored as DXT3 (BC2) compressed blocks. Each 4*4 pixel block uses
+	 * 128 bits holding 4 bit explicit alpha values followed by a DXT1 style
+	 * color block.
+	 * <p>
+	 * Supports 0, 4 and 8 bit alpha. Alpha precision is always 4 bits in the
+	 * compressed blocks.
+	 * <p>
+	 * Requires version 2. Compression is lossy with a fixed 4:1 ratio compared
+	 * with 32 bit pixels.
+	 */
+	DXT3(0x111, 2),
+	/**
+	 * Images stored as DXT5 (BC3) compressed blocks. Each 4*4 pixel block uses
+	 * 128 bits holding an interpolated alpha block followed by a DXT1 style
+	 * color block. The alpha block has two 8 bit reference alpha values and 3
+	 * bit indices selecting interpolated alpha values.
+	 * <p>
+	 * Supports 0 and 8 bit alpha.
+	 * <p>
+	 * Requires version 2. Compression is lossy with a fixed 4:1 ratio compared
+	 * with 32 bit pixels.
+	 */
+	DXT5(0x101, 2),
+	/**
+	 * Images stored as uncompressed 32 bit pixels. Each pixel has 8 bit blue,
+	 * green, red and alpha components in that byte order.
+	 * <p>
+	 * Supports 0 and 8 bit alpha. Alpha component values are always present but
+	 * are ignored for 0 bit alpha.
+	 * <p>
+	 * Requires version 2. Storage is lossless and the pixel layout can be used
+	 * directly as an image raster without conversion.
+	 */
+	BGRA8888(0x101, 2),
+	/**
+	 * Images stored as uncompressed 16 bit pixels. Each pixel has 5 bit blue,
+	 * green and red components and a 1 bit alpha component packed from the
+	 * least significant bit.
+	 * <p>
+	 * Supports 0 and 1 bit alpha.
+	 * <p>
+	 * Requires version 2. Storage is lossy as color components lose precision.
+	 */
+	BGRA5551(0x003, 2),
+	/**
+	 * Images stored as uncompressed 16 bit pixels. Each pixel has 4 bit blue,
+	 * green, red and alpha components packed from the least significant bit.
+	 * <p>
+	 * Supports 0 and 4 bit alpha.
+	 * <p>
+	 * Requires version 2. Storage is lossy as components lose precision.
+	 */
+	BGRA4444(0x011, 2),
+	/**
+	 * Images stored as uncompressed 16 bit pixels. Each pixel has 5 bit blue, 6
+	 * bit green and 5 bit red components packed from the least significant bit.
+	 * <p>
+	 * Supports 0 bit alpha.
+	 * <p>
+	 * Requires version 2. Storage is lossy as color components lose precision.
+	 */
+	BGR565(0x001, 2),
 	/**
 	 * This is an unsupported encoding type. Any attempt to read or write this
 	 * encoding type will throw an exception. Chances are this is one of the
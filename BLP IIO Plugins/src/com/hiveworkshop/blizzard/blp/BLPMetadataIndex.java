@@ -0,0 +1,835 @@
+package com.hiveworkshop.blizzard.blp;
+
+import static com.hiveworkshop.blizzard.blp.BLPCommon.INDEXED_PALETTE_SIZE;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * A persistent index of the metadata of all BLP files in a directory tree.
+ * <p>
+ * For each file with the .blp extension the index records the stream metadata
+ * fields, the mipmap data chunk offsets and sizes of BLP1 and BLP2 files and
+ * the shared JPEG header length or a hash of the palette. Applications can
+ * then query dimensions and encodings of large numbers of files without
+ * opening them.
+ * <p>
+ * The index is kept in a compact binary file which is loaded on construction
+ * and written by save. Refreshing is incremental, only files whose size or
+ * modification time changed since they were last indexed are probed again
+ * and entries of removed files are dropped. Probing reads only the header of
+ * a file. Files which cannot be parsed as BLP files are not indexed, but are
+ * remembered so they are not probed again until changed.
+ * <p>
+ * The directory tree can also be watched for changes, in which case changed
+ * files are probed again as soon as the file system reports them. All methods
+ * are safe to call concurrently.
+ *
+ * @author Imperial Good
+ */
+public final class BLPMetadataIndex implements AutoCloseable {
+	/**
+	 * Magic identifying index files.
+	 */
+	private static final int MAGIC = 0x424C5049; // 'BLPI'
+
+	/**
+	 * Version of the index file layout.
+	 */
+	private static final int LAYOUT_VERSION = 1;
+
+	/**
+	 * Extension of indexed files.
+	 */
+	private static final String EXTENSION = ".blp";
+
+	/**
+	 * The indexed metadata of a BLP file.
+	 */
+	public static final class Entry {
+		/**
+		 * Path relative to the index root.
+		 */
+		private final Path path;
+
+		/**
+		 * File size in bytes.
+		 */
+		private final long size;
+
+		/**
+		 * File modification time in milliseconds.
+		 */
+		private final long modified;
+
+		/**
+		 * BLP version.
+		 */
+		private final int version;
+
+		/**
+		 * Encoding type.
+		 */
+		private final BLPEncodingType encodingType;
+
+		/**
+		 * Alpha component bit precision.
+		 */
+		private final byte alphaBits;
+
+		/**
+		 * Full scale width in pixels.
+		 */
+		private final int width;
+
+		/**
+		 * Full scale height in pixels.
+		 */
+		private final int height;
+
+		/**
+		 * Mipmap data chunk offsets of each level, empty for BLP0.
+		 */
+		private final long[] chunkOffsets;
+
+		/**
+		 * Mipmap data chunk sizes of each level, empty for BLP0.
+		 */
+		private final long[] chunkSizes;
+
+		/**
+		 * Number of mipmap levels.
+		 */
+		private final int mipmapCount;
+
+		/**
+		 * Shared JPEG header length, or -1 if not JPEG content.
+		 */
+		private final int jpegHeaderLength;
+
+		/**
+		 * Palette hash, or 0 if not indexed content.
+		 */
+		private final int paletteHash;
+
+		/**
+		 * Constructs an entry.
+		 *
+		 * @param path
+		 *            the path relative to the index root.
+		 * @param size
+		 *            the file size.
+		 * @param modified
+		 *            the file modification time.
+		 * @param version
+		 *            the BLP version.
+		 * @param encodingType
+		 *            the encoding type.
+		 * @param alphaBits
+		 *            the alpha bit precision.
+		 * @param width
+		 *            the width in pixels.
+		 * @param height
+		 *            the height in pixels.
+		 * @param mipmapCount
+		 *            the number of mipmap levels.
+		 * @param chunkOffsets
+		 *            the mipmap data chunk offsets.
+		 * @param chunkSizes
+		 *            the mipmap data chunk sizes.
+		 * @param jpegHeaderLength
+		 *            the shared JPEG header length.
+		 * @param paletteHash
+		 *            the palette hash.
+		 */
+		private Entry(Path path, long size, long modified, int version,
+				BLPEncodingType encodingType, byte alphaBits, int width,
+				int height, int mipmapCount, long[] chunkOffsets,
+				long[] chunkSizes, int jpegHeaderLength, int paletteHash) {
+			this.path = path;
+			this.size = size;
+			this.modified = modified;
+			this.version = version;
+			this.encodingType = encodingType;
+			this.alphaBits = alphaBits;
+			this.width = width;
+			this.height = height;
+			this.mipmapCount = mipmapCount;
+			this.chunkOffsets = chunkOffsets;
+			this.chunkSizes = chunkSizes;
+			this.jpegHeaderLength = jpegHeaderLength;
+			this.paletteHash = paletteHash;
+		}
+
+		/**
+		 * Get the path of the file relative to the index root.
+		 *
+		 * @return the relative path.
+		 */
+		public Path getPath() {
+			return path;
+		}
+
+		/**
+		 * Get the size of the file when indexed.
+		 *
+		 * @return the file size in bytes.
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * Get the modification time of the file when indexed.
+		 *
+		 * @return the modification time in milliseconds.
+		 */
+		public long getModified() {
+			return modified;
+		}
+
+		/**
+		 * Get the BLP version.
+		 *
+		 * @return the version.
+		 */
+		public int getVersion() {
+			return version;
+		}
+
+		/**
+		 * Get the encoding type of the content.
+		 *
+		 * @return the encoding type.
+		 */
+		public BLPEncodingType getEncodingType() {
+			return encodingType;
+		}
+
+		/**
+		 * Get the alpha component bit precision.
+		 *
+		 * @return the alpha bits.
+		 */
+		public byte getAlphaBits() {
+			return alphaBits;
+		}
+
+		/**
+		 * Get the full scale width.
+		 *
+		 * @return width in pixels.
+		 */
+		public int getWidth() {
+			return width;
+		}
+
+		/**
+		 * Get the full scale height.
+		 *
+		 * @return height in pixels.
+		 */
+		public int getHeight() {
+			return height;
+		}
+
+		/**
+		 * Get the number of mipmap levels.
+		 *
+		 * @return the mipmap count.
+		 */
+		public int getMipmapCount() {
+			return mipmapCount;
+		}
+
+		/**
+		 * Get the file offset of the mipmap data chunk of a level. Only
+		 * available for BLP1 and later which store mipmaps internally.
+		 *
+		 * @param level
+		 *            the mipmap level.
+		 * @return the chunk offset in bytes.
+		 * @throws IndexOutOfBoundsException
+		 *             if the level does not exist or is stored externally.
+		 */
+		public long getMipmapDataChunkOffset(int level) {
+			return chunkOffsets[level];
+		}
+
+		/**
+		 * Get the size of the mipmap data chunk of a level. Only available
+		 * for BLP1 and later which store mipmaps internally.
+		 *
+		 * @param level
+		 *            the mipmap level.
+		 * @return the chunk size in bytes.
+		 * @throws IndexOutOfBoundsException
+		 *             if the level does not exist or is stored externally.
+		 */
+		public long getMipmapDataChunkSize(int level) {
+			return chunkSizes[level];
+		}
+
+		/**
+		 * Get the length of the JPEG header shared by all mipmap levels.
+		 *
+		 * @return the header length in bytes, or -1 if not JPEG content.
+		 */
+		public int getJPEGHeaderLength() {
+			return jpegHeaderLength;
+		}
+
+		/**
+		 * Get a hash of the palette. Files with equal palettes have equal
+		 * hashes.
+		 *
+		 * @return the palette hash, or 0 if not indexed content.
+		 */
+		public int getPaletteHash() {
+			return paletteHash;
+		}
+
+		@Override
+		public String toString() {
+			return "{BLP Index Entry: path = " + path + ", version = "
+					+ version + ", width = " + width + ", height = " + height
+					+ ", encoding = " + encodingType + ", alpha bits = "
+					+ alphaBits + ", mipmaps = " + mipmapCount + "}";
+		}
+	}
+
+	/**
+	 * The root of the indexed directory tree.
+	 */
+	private final Path root;
+
+	/**
+	 * The index file.
+	 */
+	private final Path indexFile;
+
+	/**
+	 * The entries keyed by path relative to root.
+	 */
+	private final Map<Path, Entry> entries = new ConcurrentHashMap<Path, Entry>();
+
+	/**
+	 * Size and modification time of files which could not be parsed, keyed
+	 * by path relative to root. Such files are only probed again once
+	 * changed.
+	 */
+	private final Map<Path, long[]> rejected = new ConcurrentHashMap<Path, long[]>();
+
+	/**
+	 * The watch service, if watching.
+	 */
+	private WatchService watchService = null;
+
+	/**
+	 * Constructs an index of the specified directory tree. Entries are loaded
+	 * from the index file if it exists and was written for the same root.
+	 * An unreadable index file is ignored. No files are probed until
+	 * refreshed.
+	 *
+	 * @param root
+	 *            the root of the directory tree to index.
+	 * @param indexFile
+	 *            the file to load and save the index with.
+	 */
+	public BLPMetadataIndex(Path root, Path indexFile) {
+		this.root = root.toAbsolutePath().normalize();
+		this.indexFile = indexFile;
+		try {
+			load();
+		} catch (IOException e) {
+			// start from an empty index
+			entries.clear();
+			rejected.clear();
+		}
+	}
+
+	/**
+	 * Loads entries from the index file.
+	 *
+	 * @throws IOException
+	 *             if the index file cannot be read or is invalid.
+	 */
+	private void load() throws IOException {
+		if (!Files.exists(indexFile))
+			return;
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				Files.newInputStream(indexFile)))) {
+			if (in.readInt() != MAGIC || in.readInt() != LAYOUT_VERSION
+					|| !in.readUTF().equals(root.toString()))
+				throw new IOException("Index file does not match.");
+
+			final BLPEncodingType[] types = BLPEncodingType.values();
+			final int count = in.readInt();
+			for (int i = 0; i < count; i += 1) {
+				final Path path = root.getFileSystem().getPath(in.readUTF());
+				final long size = in.readLong();
+				final long modified = in.readLong();
+				final int version = in.readUnsignedByte();
+				final BLPEncodingType encodingType = types[in
+						.readUnsignedByte()];
+				final byte alphaBits = in.readByte();
+				final int width = in.readInt();
+				final int height = in.readInt();
+				final int mipmapCount = in.readUnsignedByte();
+				final int chunkCount = in.readUnsignedByte();
+				final long[] chunkOffsets = new long[chunkCount];
+				final long[] chunkSizes = new long[chunkCount];
+				for (int j = 0; j < chunkCount; j += 1) {
+					chunkOffsets[j] = in.readInt() & 0xFFFFFFFFL;
+					chunkSizes[j] = in.readInt() & 0xFFFFFFFFL;
+				}
+				final int jpegHeaderLength = in.readInt();
+				final int paletteHash = in.readInt();
+				entries.put(path, new Entry(path, size, modified, version,
+						encodingType, alphaBits, width, height, mipmapCount,
+						chunkOffsets, chunkSizes, jpegHeaderLength,
+						paletteHash));
+			}
+
+			final int rejectedCount = in.readInt();
+			for (int i = 0; i < rejectedCount; i += 1) {
+				final Path path = root.getFileSystem().getPath(in.readUTF());
+				rejected.put(path, new long[] { in.readLong(), in.readLong() });
+			}
+		} catch (RuntimeException e) {
+			throw new IOException("Index file is invalid.", e);
+		}
+	}
+
+	/**
+	 * Writes the index file. The index file is replaced atomically so an
+	 * interrupted save leaves the previous index intact.
+	 *
+	 * @throws IOException
+	 *             if the index file cannot be written.
+	 */
+	public void save() throws IOException {
+		final Path parent = indexFile.toAbsolutePath().getParent();
+		final Path temp = Files.createTempFile(parent, "index", ".tmp");
+		try {
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(Files.newOutputStream(temp)))) {
+				final Collection<Entry> snapshot = getEntries();
+				out.writeInt(MAGIC);
+				out.writeInt(LAYOUT_VERSION);
+				out.writeUTF(root.toString());
+				out.writeInt(snapshot.size());
+				for (final Entry entry : snapshot) {
+					out.writeUTF(entry.path.toString());
+					out.writeLong(entry.size);
+					out.writeLong(entry.modified);
+					out.writeByte(entry.version);
+					out.writeByte(entry.encodingType.ordinal());
+					out.writeByte(entry.alphaBits);
+					out.writeInt(entry.width);
+					out.writeInt(entry.height);
+					out.writeByte(entry.mipmapCount);
+					out.writeByte(entry.chunkOffsets.length);
+					for (int i = 0; i < entry.chunkOffsets.length; i += 1) {
+						out.writeInt((int) entry.chunkOffsets[i]);
+						out.writeInt((int) entry.chunkSizes[i]);
+					}
+					out.writeInt(entry.jpegHeaderLength);
+					out.writeInt(entry.paletteHash);
+				}
+
+				final Map<Path, long[]> rejectedSnapshot =
+						new HashMap<Path, long[]>(rejected);
+				out.writeInt(rejectedSnapshot.size());
+				for (final Map.Entry<Path, long[]> file : rejectedSnapshot
+						.entrySet()) {
+					out.writeUTF(file.getKey().toString());
+					out.writeLong(file.getValue()[0]);
+					out.writeLong(file.getValue()[1]);
+				}
+			}
+			Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * Returns if a path names a BLP file by its extension.
+	 *
+	 * @param file
+	 *            the file path.
+	 * @return true if the file has the BLP extension.
+	 */
+	private static boolean isBLPFile(Path file) {
+		final Path name = file.getFileName();
+		return name != null
+				&& name.toString().toLowerCase(Locale.ROOT)
+						.endsWith(EXTENSION);
+	}
+
+	/**
+	 * Reads the metadata of a BLP file from its header.
+	 *
+	 * @param file
+	 *            the absolute file path.
+	 * @param attributes
+	 *            the file attributes.
+	 * @return the entry.
+	 * @throws IOException
+	 *             if the file cannot be parsed.
+	 */
+	private Entry probe(Path file, BasicFileAttributes attributes)
+			throws IOException {
+		try (ImageInputStream src = new FileChannelImageInputStream(file)) {
+			final BLPStreamMetadata meta = new BLPStreamMetadata();
+			meta.setWarningHandler(warning -> {
+			});
+			meta.readObject(src);
+			final int mipmapCount = meta.getMipmapCount();
+
+			// mipmap chunk locations
+			long[] chunkOffsets = new long[0];
+			long[] chunkSizes = new long[0];
+			if (meta.getVersion() > 0) {
+				final InternalMipmapManager imm = new InternalMipmapManager();
+				imm.readObject(src);
+				chunkOffsets = new long[mipmapCount];
+				chunkSizes = new long[mipmapCount];
+				for (int i = 0; i < mipmapCount; i += 1) {
+					chunkOffsets[i] = imm.getMipmapDataChunkOffset(i);
+					chunkSizes[i] = imm.getMipmapDataChunkSize(i);
+				}
+			}
+
+			// content header
+			int jpegHeaderLength = -1;
+			int paletteHash = 0;
+			src.setByteOrder(ByteOrder.LITTLE_ENDIAN);
+			if (meta.getEncodingType() == BLPEncodingType.JPEG) {
+				jpegHeaderLength = src.readInt();
+			} else if (meta.getEncodingType() == BLPEncodingType.INDEXED) {
+				final int[] palette = new int[INDEXED_PALETTE_SIZE];
+				src.readFully(palette, 0, palette.length);
+				paletteHash = Arrays.hashCode(palette);
+			}
+
+			final Path path = root.relativize(file);
+			return new Entry(path, attributes.size(), attributes
+					.lastModifiedTime().toMillis(), meta.getVersion(),
+					meta.getEncodingType(), meta.getAlphaBits(),
+					meta.getWidth(), meta.getHeight(), mipmapCount,
+					chunkOffsets, chunkSizes, jpegHeaderLength, paletteHash);
+		} catch (RuntimeException e) {
+			throw new IOException("Cannot parse BLP file.", e);
+		}
+	}
+
+	/**
+	 * Updates the entry of a file, probing it if it changed since indexed.
+	 * Entries of files which no longer exist or cannot be parsed are removed
+	 * and files which cannot be parsed are remembered as rejected.
+	 *
+	 * @param file
+	 *            the absolute file path.
+	 * @param attributes
+	 *            the file attributes, or null to read them.
+	 * @return true if the file was probed.
+	 */
+	private boolean update(Path file, BasicFileAttributes attributes) {
+		final Path path = root.relativize(file);
+		try {
+			if (attributes == null)
+				attributes = Files.readAttributes(file,
+						BasicFileAttributes.class);
+			if (!attributes.isRegularFile() || !isBLPFile(file)) {
+				entries.remove(path);
+				rejected.remove(path);
+				return false;
+			}
+
+			// skip unchanged files
+			final long size = attributes.size();
+			final long modified = attributes.lastModifiedTime().toMillis();
+			final Entry entry = entries.get(path);
+			if (entry != null && entry.size == size
+					&& entry.modified == modified)
+				return false;
+			final long[] reject = rejected.get(path);
+			if (reject != null && reject[0] == size && reject[1] == modified)
+				return false;
+
+			try {
+				entries.put(path, probe(file, attributes));
+				rejected.remove(path);
+			} catch (NoSuchFileException e) {
+				throw e;
+			} catch (IOException e) {
+				// not a parsable BLP file
+				entries.remove(path);
+				rejected.put(path, new long[] { size, modified });
+			}
+		} catch (NoSuchFileException e) {
+			entries.remove(path);
+			rejected.remove(path);
+			return false;
+		} catch (IOException e) {
+			// attributes unreadable
+			entries.remove(path);
+		}
+		return true;
+	}
+
+	/**
+	 * Refreshes the index from the directory tree. Only files which are new or
+	 * whose size or modification time changed are probed. Entries of removed
+	 * files are dropped.
+	 *
+	 * @return the number of files probed.
+	 * @throws IOException
+	 *             if the directory tree cannot be walked.
+	 */
+	public int refresh() throws IOException {
+		return refresh(root);
+	}
+
+	/**
+	 * Refreshes the part of the index below a directory.
+	 *
+	 * @param dir
+	 *            the absolute directory path.
+	 * @return the number of files probed.
+	 * @throws IOException
+	 *             if the directory tree cannot be walked.
+	 */
+	private int refresh(Path dir) throws IOException {
+		final Set<Path> seen = new HashSet<Path>();
+		final int[] probed = { 0 };
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file,
+					BasicFileAttributes attrs) {
+				if (attrs.isRegularFile() && isBLPFile(file)) {
+					seen.add(root.relativize(file));
+					if (update(file, attrs))
+						probed[0] += 1;
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException exc) {
+				return FileVisitResult.CONTINUE;
+			}
+		});
+
+		// drop removed files
+		final Path prefix = root.relativize(dir);
+		final Predicate<Path> removed = path -> (prefix
+				.toString().isEmpty() || path.startsWith(prefix))
+				&& !seen.contains(path);
+		entries.keySet().removeIf(removed);
+		rejected.keySet().removeIf(removed);
+		return probed[0];
+	}
+
+	/**
+	 * Get the entry of a file.
+	 *
+	 * @param file
+	 *            the file path, either relative to the index root or
+	 *            absolute.
+	 * @return the entry, or null if the file is not indexed.
+	 */
+	public Entry get(Path file) {
+		if (file.isAbsolute())
+			file = root.relativize(file.normalize());
+		return entries.get(file);
+	}
+
+	/**
+	 * Get all entries.
+	 *
+	 * @return an unmodifiable snapshot of all entries.
+	 */
+	public Collection<Entry> getEntries() {
+		return Collections.unmodifiableCollection(Arrays.asList(entries
+				.values().toArray(new Entry[0])));
+	}
+
+	/**
+	 * Get the number of indexed files.
+	 *
+	 * @return the entry count.
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Get the root of the indexed directory tree.
+	 *
+	 * @return the absolute root path.
+	 */
+	public Path getRoot() {
+		return root;
+	}
+
+	/**
+	 * Starts watching the directory tree for changes. Changed files are
+	 * probed again on a daemon thread as the file system reports them and
+	 * new directories are watched as they are created. If events are lost
+	 * the whole tree is refreshed. Watching stops when the index is closed.
+	 * <p>
+	 * The index should be refreshed after starting to watch to pick up
+	 * changes made before watching began.
+	 *
+	 * @throws IOException
+	 *             if the directory tree cannot be watched.
+	 */
+	public synchronized void startWatching() throws IOException {
+		if (watchService != null)
+			return;
+		final WatchService service = root.getFileSystem().newWatchService();
+		try {
+			register(service, root);
+		} catch (IOException e) {
+			service.close();
+			throw e;
+		}
+		watchService = service;
+
+		final Thread thread = new Thread(() -> watch(service),
+				"BLP index watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Registers all directories of a tree with a watch service.
+	 *
+	 * @param service
+	 *            the watch service.
+	 * @param dir
+	 *            the root of the tree.
+	 * @throws IOException
+	 *             if the tree cannot be walked or registered.
+	 */
+	private static void register(WatchService service, Path dir)
+			throws IOException {
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path subdir,
+					BasicFileAttributes attrs) throws IOException {
+				subdir.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_DELETE,
+						StandardWatchEventKinds.ENTRY_MODIFY);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException exc) {
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Processes watch events until the watch service is closed.
+	 *
+	 * @param service
+	 *            the watch service.
+	 */
+	private void watch(WatchService service) {
+		try {
+			while (true) {
+				final WatchKey key = service.take();
+				final Path dir = (Path) key.watchable();
+				for (final WatchEvent<?> event : key.pollEvents()) {
+					try {
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+							// events lost
+							register(service, root);
+							refresh();
+							continue;
+						}
+
+						final Path file = dir.resolve((Path) event.context());
+						if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+								&& Files.isDirectory(file)) {
+							// watch and index new directory
+							register(service, file);
+							refresh(file);
+						} else if (event.kind() ==
+								StandardWatchEventKinds.ENTRY_DELETE) {
+							// file or whole directory removed
+							final Path path = root.relativize(file);
+							entries.keySet().removeIf(
+									indexed -> indexed.startsWith(path));
+							rejected.keySet().removeIf(
+									indexed -> indexed.startsWith(path));
+						} else {
+							update(file, null);
+						}
+					} catch (IOException e) {
+						// changed again concurrently
+					}
+				}
+				key.reset();
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// stopped
+		}
+	}
+
+	/**
+	 * Stops watching the directory tree, if watching. The index can still be
+	 * refreshed and saved.
+	 *
+	 * @throws IOException
+	 *             if the watch service cannot be closed.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (watchService != null) {
+			watchService.close();
+			watchService = null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "{BLP Metadata Index: root = " + root + ", entries = "
+				+ size() + "}";
+	}
+}
@@ -0,0 +1,143 @@
+package com.hiveworkshop.blizzard.blp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A mipmap level of a BLP file in its stored form. Holds the mipmap data chunk
+ * exactly as stored together with the information needed to interpret it.
+ * <p>
+ * The encoding type and alpha bits describe the format of the mipmap data.
+ * For example DXT1 data can be passed unchanged to graphics APIs which accept
+ * BC1 compressed textures of the same dimensions. JPEG content mipmap data
+ * does not include the JPEG header shared by all mipmap levels and indexed
+ * content mipmap data requires the palette of the file, so such data is
+ * usually only useful for copying between BLP files.
+ * <p>
+ * No validation is performed on the mipmap data so it might be of incorrect
+ * size for the dimensions if the file is malformed.
+ *
+ * @author Imperial Good
+ */
+public final class BLPRawMipmap {
+	/**
+	 * Encoding type of the mipmap data.
+	 */
+	private final BLPEncodingType encodingType;
+
+	/**
+	 * Alpha component bit precision of the mipmap data.
+	 */
+	private final byte alphaBits;
+
+	/**
+	 * Mipmap level.
+	 */
+	private final int level;
+
+	/**
+	 * Width in pixels.
+	 */
+	private final int width;
+
+	/**
+	 * Height in pixels.
+	 */
+	private final int height;
+
+	/**
+	 * The mipmap data.
+	 */
+	private final ByteBuffer data;
+
+	/**
+	 * Constructs a raw mipmap.
+	 *
+	 * @param encodingType
+	 *            the encoding type.
+	 * @param alphaBits
+	 *            the alpha component bit precision.
+	 * @param level
+	 *            the mipmap level.
+	 * @param width
+	 *            the width in pixels.
+	 * @param height
+	 *            the height in pixels.
+	 * @param data
+	 *            the mipmap data.
+	 */
+	BLPRawMipmap(BLPEncodingType encodingType, byte alphaBits, int level,
+			int width, int height, ByteBuffer data) {
+		this.encodingType = encodingType;
+		this.alphaBits = alphaBits;
+		this.level = level;
+		this.width = width;
+		this.height = height;
+		this.data = data;
+	}
+
+	/**
+	 * Get the encoding type of the mipmap data.
+	 *
+	 * @return the encoding type.
+	 */
+	public BLPEncodingType getEncodingType() {
+		return encodingType;
+	}
+
+	/**
+	 * Get the alpha component bit precision of the mipmap data.
+	 *
+	 * @return the bit precision of the alpha component.
+	 */
+	public byte getAlphaBits() {
+		return alphaBits;
+	}
+
+	/**
+	 * Get the mipmap level, which is also the image index.
+	 *
+	 * @return the mipmap level.
+	 */
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * Get the width in pixels.
+	 *
+	 * @return width in pixels.
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Get the height in pixels.
+	 *
+	 * @return height in pixels.
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Get the mipmap data exactly as stored. The content is between the
+	 * position and limit of the buffer. The buffer is not shared with the
+	 * reader so can be freely modified, except when reading from a byte array
+	 * or ByteBuffer input or from memory mapped BLP0 mipmap files where it is
+	 * a read-only view of that data.
+	 *
+	 * @return the mipmap data.
+	 */
+	public ByteBuffer getData() {
+		return data;
+	}
+
+	@Override
+	public String toString() {
+		return "{BLP Raw Mipmap: level = " + level + ", width = " + width
+				+ ", height = " + height + ", encoding = " + encodingType
+				+ ", alpha bits = " + alphaBits + ", bytes = "
+				+ data.remaining() + "}";
+	}
+}
@@ -1,5 +1,7 @@
 package com.hiveworkshop.blizzard.blp;
 
+import java.util.concurrent.Executor;
+
 import javax.imageio.ImageReadParam;
 import javax.imageio.spi.ImageReaderSpi;
 
@@ -17,6 +19,17 @@ import javax.imageio.spi.ImageReaderSpi;
  * ImageReadParam behavior is ignored and the source BufferedImage is returned
  * directly. When not in direct mode the source BufferedImage is processed using
  * the ImageReadParam into a destination BufferedImage.
+ * <p>
+ * The mipmap files of BLP0 images can be memory mapped instead of read fully
+ * for every read operation. When mapped, the files of a number of following
+ * mipmap levels can also be prefetched on a background executor so that
+ * reading several mipmap levels in order does not wait on each file being
+ * opened.
+ * <p>
+ * A BLPDecodedCache can be shared between read operations so that mipmap
+ * levels decoded before are returned without decoding them again. Read
+ * operations return a copy of the cached image unless cache sharing is
+ * enabled. A BLPDiskCache keeps decoded mipmap levels between runs.
  * 
  * @author Imperial Good
  */
@@ -32,6 +45,37 @@ public class BLPReadParam extends ImageReadParam {
 	 */
 	protected boolean directRead = false;
 
+	/**
+	 * Controls whether BLP0 mipmap files are memory mapped.
+	 */
+	protected boolean mipmapMapping = false;
+
+	/**
+	 * Number of following mipmap levels to prefetch when mapping.
+	 */
+	protected int mipmapPrefetch = 0;
+
+	/**
+	 * The executor to prefetch mipmap levels with.
+	 */
+	protected Executor mipmapPrefetchExecutor = null;
+
+	/**
+	 * The cache of decoded mipmap levels to use.
+	 */
+	protected BLPDecodedCache decodedCache = null;
+
+	/**
+	 * Controls whether images held by the decoded cache are returned without
+	 * copying.
+	 */
+	protected boolean cacheSharing = false;
+
+	/**
+	 * The persistent cache of decoded mipmap levels to use.
+	 */
+	protected BLPDiskCache diskCache = null;
+
 	/**
 	 * Get the ImageReaderSpi used to decode JPEG content BLPs.
 	 * 
@@ -85,11 +129,185 @@ public class BLPReadParam extends ImageReadParam {
 		this.directRead = directRead;
 	}
 
+	/**
+	 * Return if BLP0 mipmap files are memory mapped.
+	 * 
+	 * @return if mipmap mapping is enabled.
+	 */
+	public boolean isMipmapMapping() {
+		return mipmapMapping;
+	}
+
+	/**
+	 * Allows BLP0 mipmap files to be memory mapped.
+	 * <p>
+	 * When enabled the file of each mipmap level is memory mapped once and the
+	 * mapping is retained by the ImageReader until the input is changed, so
+	 * repeated reads of a level do not access the file system again. Mipmap
+	 * files must not be truncated while mapped. Has no effect on other BLP
+	 * versions, which store mipmap data inside the BLP file.
+	 * <p>
+	 * By default mipmap mapping is disabled and mipmap files are read fully
+	 * on every read operation.
+	 * 
+	 * @param mipmapMapping
+	 *            if mipmap files should be memory mapped.
+	 */
+	public void setMipmapMapping(boolean mipmapMapping) {
+		this.mipmapMapping = mipmapMapping;
+	}
+
+	/**
+	 * Get the number of following mipmap levels prefetched by a read
+	 * operation.
+	 * 
+	 * @return the number of mipmap levels to prefetch.
+	 */
+	public int getMipmapPrefetch() {
+		return mipmapPrefetch;
+	}
+
+	/**
+	 * Set the number of following mipmap levels prefetched by a read
+	 * operation.
+	 * <p>
+	 * When mipmap mapping is enabled, reading a mipmap level of a BLP0 image
+	 * starts mapping the files of this many following mipmap levels in the
+	 * background. A subsequent read of those levels then uses the prefetched
+	 * mapping. Has no effect if mipmap mapping is disabled.
+	 * <p>
+	 * By default no mipmap levels are prefetched.
+	 * 
+	 * @param mipmapPrefetch
+	 *            the number of mipmap levels to prefetch.
+	 * @throws IllegalArgumentException
+	 *             if mipmapPrefetch is negative.
+	 */
+	public void setMipmapPrefetch(int mipmapPrefetch) {
+		if (mipmapPrefetch < 0)
+			throw new IllegalArgumentException(
+					"Negative mipmap prefetch count.");
+		this.mipmapPrefetch = mipmapPrefetch;
+	}
+
+	/**
+	 * Get the executor used to prefetch mipmap levels.
+	 * 
+	 * @return the prefetch executor, or null if the default is used.
+	 */
+	public Executor getMipmapPrefetchExecutor() {
+		return mipmapPrefetchExecutor;
+	}
+
+	/**
+	 * Set the executor used to prefetch mipmap levels.
+	 * <p>
+	 * Prefetching maps files so blocks on file system I/O. The executor should
+	 * be suited to blocking tasks, which is why the common ForkJoinPool is not
+	 * used. Has no effect if no mipmap levels are prefetched.
+	 * <p>
+	 * By default a single shared daemon thread prefetches for all readers.
+	 * 
+	 * @param mipmapPrefetchExecutor
+	 *            the prefetch executor, or null to use the default.
+	 */
+	public void setMipmapPrefetchExecutor(Executor mipmapPrefetchExecutor) {
+		this.mipmapPrefetchExecutor = mipmapPrefetchExecutor;
+	}
+
+	/**
+	 * Get the cache of decoded mipmap levels used by read operations.
+	 * 
+	 * @return the decoded cache, or null if none.
+	 */
+	public BLPDecodedCache getDecodedCache() {
+		return decodedCache;
+	}
+
+	/**
+	 * Set the cache of decoded mipmap levels used by read operations.
+	 * <p>
+	 * Read operations first look up the mipmap level in the cache and only
+	 * decode it if missing, after which the decoded image is added to the
+	 * cache. Read operations return a copy of the cached image, so returned
+	 * images can be modified freely, unless cache sharing is enabled. See
+	 * BLPDecodedCache for which reads can be cached.
+	 * <p>
+	 * By default no cache is used.
+	 * 
+	 * @param decodedCache
+	 *            the decoded cache, or null to always decode.
+	 */
+	public void setDecodedCache(BLPDecodedCache decodedCache) {
+		this.decodedCache = decodedCache;
+	}
+
+	/**
+	 * Return if images held by the decoded cache are returned without copying.
+	 * 
+	 * @return if cache sharing is enabled.
+	 */
+	public boolean isCacheSharing() {
+		return cacheSharing;
+	}
+
+	/**
+	 * Allows read operations to return the images held by the decoded cache.
+	 * <p>
+	 * When enabled every read operation that can use the decoded cache returns
+	 * the image held by the cache, both when the mipmap level was cached
+	 * before and when the read decoded it. Such images are shared with every
+	 * other read operation using the cache so must be treated as read-only.
+	 * Drawing on one, for example, changes the image returned to every other
+	 * reader. In return reads served from the cache do not copy the image.
+	 * Has no effect if no decoded cache is used.
+	 * <p>
+	 * By default cache sharing is disabled and read operations return a copy
+	 * of the cached image, as ImageReader requires.
+	 * 
+	 * @param cacheSharing
+	 *            if cached images should be returned without copying.
+	 */
+	public void setCacheSharing(boolean cacheSharing) {
+		this.cacheSharing = cacheSharing;
+	}
+
+	/**
+	 * Get the persistent cache of decoded mipmap levels used by read
+	 * operations.
+	 * 
+	 * @return the disk cache, or null if none.
+	 */
+	public BLPDiskCache getDiskCache() {
+		return diskCache;
+	}
+
+	/**
+	 * Set the persistent cache of decoded mipmap levels used by read
+	 * operations.
+	 * <p>
+	 * Read operations that miss the decoded cache, if any, look up the
+	 * mipmap level in the disk cache before decoding it. Decoded images are
+	 * added to the disk cache if their layout is supported. See BLPDiskCache
+	 * for which reads can be cached.
+	 * <p>
+	 * By default no disk cache is used.
+	 * 
+	 * @param diskCache
+	 *            the disk cache, or null to not use one.
+	 */
+	public void setDiskCache(BLPDiskCache diskCache) {
+		this.diskCache = diskCache;
+	}
+
 	/**
 	 * Constructs a default BLPReadParam.
 	 * <p>
 	 * The ImageReadParam state is the same as its default constructor. No JPEG
-	 * ImageReaderSpi overwrite is set. Direct read mode is disabled.
+	 * ImageReaderSpi overwrite is set. Direct read mode is disabled. BLP0
+	 * mipmap files are neither mapped nor prefetched, with the default
+	 * prefetch executor. No decoded or disk cache is used and cache sharing
+	 * is disabled.
 	 */
 	public BLPReadParam() {
 	}
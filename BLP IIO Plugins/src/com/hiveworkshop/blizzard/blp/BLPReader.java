@@ -1,13 +1,29 @@
 package com.hiveworkshop.blizzard.blp;
 
+import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
 
 import javax.imageio.IIOException;
 import javax.imageio.ImageReadParam;
@@ -16,7 +32,6 @@ import javax.imageio.ImageTypeSpecifier;
 import javax.imageio.event.IIOReadWarningListener;
 import javax.imageio.metadata.IIOMetadata;
 import javax.imageio.spi.ImageReaderSpi;
-import javax.imageio.stream.FileImageInputStream;
 import javax.imageio.stream.ImageInputStream;
 
 import com.hiveworkshop.lang.LocalizedFormatedString;
@@ -24,8 +39,9 @@ import com.hiveworkshop.lang.LocalizedFormatedString;
 /**
  * Implementation class for the BLP image reader.
  * <p>
- * Supports opening of BLP versions 0 and 1. Mipmap levels translate into image
- * number.
+ * Supports opening of BLP versions 0 and 1. Version 2 is supported for
+ * indexed, DXT1, DXT3, DXT5, BGRA8888, BGRA5551, BGRA4444 and BGR565 content.
+ * Mipmap levels translate into image number.
  * <p>
  * Default resulting BufferedImage objects may come in a variety of image types
  * based on the content of the blp file. The image type chosen aims to preserve
@@ -35,6 +51,28 @@ import com.hiveworkshop.lang.LocalizedFormatedString;
  * <p>
  * Raster is not supported. Read progress updates are not supported, but all
  * other listeners work.
+ * <p>
+ * File and Path inputs are read through a buffered FileChannel so that the
+ * header is parsed with few file system reads. Files already in memory can be
+ * provided as a byte array or ByteBuffer input, which is read in place without
+ * being copied into a stream cache. The content is between the buffer position
+ * and limit, which together with the content must not be changed while the
+ * input is in use.
+ * <p>
+ * Mipmap data can also be read as stored without decoding using
+ * readRawMipmap. This is useful to pass compressed content such as DXT blocks
+ * directly to graphics APIs.
+ * <p>
+ * Mipmap levels can be read asynchronously using readAsync and readAllAsync,
+ * which return a CompletableFuture and decode on a supplied Executor. Mipmap
+ * data of File and Path inputs is then read without blocking.
+ * <p>
+ * A BLPDecodedCache set on a BLPReadParam lets reads of mipmap levels decoded
+ * before return a copy of the cached image without accessing the input. The
+ * cached image itself is returned if cache sharing is enabled, in which case
+ * it must not be modified. A BLPDiskCache keeps decoded mipmap levels between
+ * runs. readDirect stores a decoded mipmap level outside the Java heap as a
+ * BLPDirectMipmap.
  * 
  * @author ImperialGood
  */
@@ -50,16 +88,37 @@ public class BLPReader extends ImageReader {
 	 */
 	private ImageInputStream intSrc = null;
 
+	/**
+	 * Lock guarding the header and input stream, which asynchronous reads
+	 * access from executor threads.
+	 */
+	private final Object streamLock = new Object();
+
 	/**
 	 * Mipmap manager adapter class. Turns varying manager interfaces into a
 	 * standard reader interface.
+	 * <p>
+	 * Buffers returned are read only when they share the input content, such
+	 * as slices of in memory input. Otherwise they wrap an array holding only
+	 * the mipmap data chunk.
 	 */
 	private static abstract class MipmapReader {
-		public abstract byte[] getMipmapDataChunk(int mipmap)
+		public abstract ByteBuffer getMipmapDataBuffer(int mipmap)
 				throws IOException;
 
+		public CompletableFuture<ByteBuffer> getMipmapDataBufferAsync(
+				int mipmap) throws IOException {
+			return null;
+		}
+
+		public void configure(BLPReadParam param, int mipmap) {
+		}
+
 		public void flushTo(int mipmap) throws IOException {
 		}
+
+		public void close() throws IOException {
+		}
 	}
 
 	/**
@@ -72,6 +131,16 @@ public class BLPReader extends ImageReader {
 	 */
 	private MipmapProcessor mipmapProcessor = null;
 
+	/**
+	 * Identity of the input in decoded caches, if resolved.
+	 */
+	private BLPDecodedCache.Source cacheSource = null;
+
+	/**
+	 * The input identity has been resolved.
+	 */
+	private boolean cacheSourceResolved = false;
+
 	public String tempGetInfo() throws IOException {
 		loadHeader();
 		return streamMeta.toString();
@@ -83,12 +152,26 @@ public class BLPReader extends ImageReader {
 
 	/**
 	 * Loads the BLP header from an input source. The header is only loaded once
-	 * with the results cached for performance.
+	 * with the results cached for performance. Safe to call from executor
+	 * threads of asynchronous reads.
 	 * 
 	 * @throws IOException
 	 *             - is header cannot be loaded
 	 */
 	private void loadHeader() throws IOException {
+		synchronized (streamLock) {
+			readHeader();
+		}
+	}
+
+	/**
+	 * Reads the BLP header from an input source if it has not already been
+	 * read. Must be called with the stream lock held.
+	 * 
+	 * @throws IOException
+	 *             - is header cannot be loaded
+	 */
+	private void readHeader() throws IOException {
 		// only do something if header has not already been loaded
 		if (streamMeta != null)
 			return;
@@ -112,9 +195,18 @@ public class BLPReader extends ImageReader {
 		if (input instanceof ImageInputStream) {
 			// ImageInputStream provided
 			src = (ImageInputStream) input;
+		} else if (input instanceof byte[]) {
+			// read array content in place
+			intSrc = new ByteBufferImageInputStream(
+					ByteBuffer.wrap((byte[]) input));
+			src = intSrc;
+		} else if (input instanceof ByteBuffer) {
+			// read buffer content in place
+			intSrc = new ByteBufferImageInputStream((ByteBuffer) input);
+			src = intSrc;
 		} else if (path != null) {
-			// create internally managed ImageInputStream
-			intSrc = new FileImageInputStream(path.toFile());
+			// create internally managed buffered ImageInputStream
+			intSrc = new FileChannelImageInputStream(path);
 
 			// validate Path
 			if (intSrc == null)
@@ -140,26 +232,85 @@ public class BLPReader extends ImageReader {
 			imm.readObject(src);
 			BLPReader thisref = this;
 
+			if (src instanceof ByteBufferImageInputStream) {
+				// slice mipmap data chunks from memory
+				final ByteBufferImageInputStream bbSrc =
+						(ByteBufferImageInputStream) src;
+				mipmapReader = new MipmapReader() {
+					@Override
+					public ByteBuffer getMipmapDataBuffer(int mipmap)
+							throws IOException {
+						return imm.getMipmapDataChunk(bbSrc, mipmap,
+								thisref::processWarningOccurred);
+					}
+				};
+			} else {
+				final Path chunkPath = path;
+				mipmapReader = new MipmapReader() {
+					private AsynchronousFileChannel asyncSrc = null;
+
+					@Override
+					public ByteBuffer getMipmapDataBuffer(int mipmap)
+							throws IOException {
+						return ByteBuffer.wrap(imm.getMipmapDataChunk(src,
+								mipmap, thisref::processWarningOccurred));
+					}
+
+					@Override
+					public synchronized CompletableFuture<ByteBuffer>
+							getMipmapDataBufferAsync(int mipmap)
+							throws IOException {
+						if (chunkPath == null)
+							return null;
+						if (asyncSrc == null)
+							asyncSrc = AsynchronousFileChannel.open(chunkPath,
+									StandardOpenOption.READ);
+						return imm.getMipmapDataChunk(asyncSrc, mipmap,
+								thisref::processWarningOccurred).thenApply(
+								ByteBuffer::wrap);
+					}
+
+					@Override
+					public void flushTo(int mipmap) throws IOException {
+						imm.flushToMipmap(src, mipmap);
+					}
+
+					@Override
+					public synchronized void close() throws IOException {
+						if (asyncSrc != null)
+							asyncSrc.close();
+						asyncSrc = null;
+					}
+				};
+			}
+		} else if (path != null) {
+			// file must have ".blp" extension
+			ExternalMipmapManager emm = new ExternalMipmapManager(path);
+
 			mipmapReader = new MipmapReader() {
 				@Override
-				public byte[] getMipmapDataChunk(int mipmap) throws IOException {
-					return imm.getMipmapDataChunk(src, mipmap,
-							thisref::processWarningOccurred);
+				public ByteBuffer getMipmapDataBuffer(int mipmap)
+						throws IOException {
+					return emm.getMipmapDataBuffer(mipmap);
 				}
 
 				@Override
-				public void flushTo(int mipmap) throws IOException {
-					imm.flushToMipmap(src, mipmap);
+				public void configure(BLPReadParam param, int mipmap) {
+					if (param.isMipmapMapping() != emm.isMapped())
+						emm.setMapped(param.isMipmapMapping());
+					final Executor executor = param
+							.getMipmapPrefetchExecutor();
+					emm.prefetch(mipmap + 1, Math.min(
+							param.getMipmapPrefetch(),
+							streamMeta.getMipmapCount() - mipmap - 1),
+							executor != null ? executor
+									: ExternalMipmapManager.PREFETCH_EXECUTOR);
 				}
-			};
-		} else if (path != null) {
-			// file must have ".blp" extension
-			ExternalMipmapManager emm = new ExternalMipmapManager(path);
 
-			mipmapReader = new MipmapReader() {
 				@Override
-				public byte[] getMipmapDataChunk(int mipmap) throws IOException {
-					return emm.getMipmapDataChunk(mipmap);
+				public void close() {
+					// release retained mappings and abandon prefetches
+					emm.setMapped(false);
 				}
 			};
 		} else {
@@ -174,6 +325,23 @@ public class BLPReader extends ImageReader {
 		} else if (streamMeta.getEncodingType() == BLPEncodingType.INDEXED) {
 			mipmapProcessor = new IndexedMipmapProcessor(
 					streamMeta.getAlphaBits());
+		} else if (streamMeta.getEncodingType() == BLPEncodingType.DXT1) {
+			mipmapProcessor = new DXT1MipmapProcessor(
+					streamMeta.getAlphaBits());
+		} else if (streamMeta.getEncodingType() == BLPEncodingType.DXT3) {
+			mipmapProcessor = new DXT3MipmapProcessor(
+					streamMeta.getAlphaBits());
+		} else if (streamMeta.getEncodingType() == BLPEncodingType.DXT5) {
+			mipmapProcessor = new DXT5MipmapProcessor(
+					streamMeta.getAlphaBits());
+		} else if (streamMeta.getEncodingType() == BLPEncodingType.BGRA8888) {
+			mipmapProcessor = new BGRA8888MipmapProcessor(
+					streamMeta.getAlphaBits());
+		} else if (streamMeta.getEncodingType() == BLPEncodingType.BGRA5551
+				|| streamMeta.getEncodingType() == BLPEncodingType.BGRA4444
+				|| streamMeta.getEncodingType() == BLPEncodingType.BGR565) {
+			mipmapProcessor = new PackedMipmapProcessor(
+					streamMeta.getEncodingType(), streamMeta.getAlphaBits());
 		} else {
 			throw new IIOException("Unsupported content type.");
 		}
@@ -214,20 +382,35 @@ public class BLPReader extends ImageReader {
 		// parent performs type checks and generates exceptions
 		super.setInput(input, seekForwardOnly, ignoreMetadata);
 
-		// close internal ImageInputStream
-		if (intSrc != null) {
-			try {
-				intSrc.close();
-			} catch (IOException e) {
-				processWarningOccurred(new LocalizedFormatedString(
-						"com.hiveworkshop.text.blp", "ISCloseFail",
-						e.getMessage()));
+		synchronized (streamLock) {
+			// close internal ImageInputStream
+			if (intSrc != null) {
+				try {
+					intSrc.close();
+				} catch (IOException e) {
+					processWarningOccurred(new LocalizedFormatedString(
+							"com.hiveworkshop.text.blp", "ISCloseFail",
+							e.getMessage()));
+				}
+				intSrc = null;
+			}
+
+			// close asynchronous mipmap data sources
+			if (mipmapReader != null) {
+				try {
+					mipmapReader.close();
+				} catch (IOException e) {
+					processWarningOccurred(new LocalizedFormatedString(
+							"com.hiveworkshop.text.blp", "ISCloseFail",
+							e.getMessage()));
+				}
 			}
-			intSrc = null;
-		}
 
-		streamMeta = null;
-		mipmapReader = null;
+			streamMeta = null;
+			mipmapReader = null;
+			cacheSource = null;
+			cacheSourceResolved = false;
+		}
 	}
 
 	/**
@@ -296,32 +479,275 @@ public class BLPReader extends ImageReader {
 		return streamMeta.getWidth(imageIndex);
 	}
 
+	/**
+	 * Get the decoded cache key of a read. Reads can only use the cache if a
+	 * BLPReadParam with a decoded or disk cache is used which does not apply
+	 * any region, subsampling, bands or destination image.
+	 * 
+	 * @param imageIndex
+	 *            the mipmap level.
+	 * @param param
+	 *            the image read parameter, if any.
+	 * @return the cache key, or null if the read cannot use the cache.
+	 */
+	private BLPDecodedCache.Key getCacheKey(int imageIndex,
+			ImageReadParam param) {
+		if (!(param instanceof BLPReadParam))
+			return null;
+		final BLPReadParam blpParam = (BLPReadParam) param;
+		if (blpParam.getDecodedCache() == null
+				&& blpParam.getDiskCache() == null)
+			return null;
+
+		// only reads producing the whole mipmap level
+		final boolean direct = blpParam.isDirectRead();
+		if (!direct
+				&& (param.getSourceRegion() != null
+						|| param.getSourceXSubsampling() != 1
+						|| param.getSourceYSubsampling() != 1
+						|| param.getSubsamplingXOffset() != 0
+						|| param.getSubsamplingYOffset() != 0
+						|| param.getSourceBands() != null
+						|| param.getDestinationBands() != null
+						|| param.getDestination() != null || !param
+						.getDestinationOffset().equals(new Point())))
+			return null;
+
+		synchronized (streamLock) {
+			if (!cacheSourceResolved) {
+				try {
+					cacheSource = BLPDecodedCache.createSource(input);
+				} catch (IOException e) {
+					// decode without cache
+					cacheSource = null;
+				}
+				cacheSourceResolved = true;
+			}
+			if (cacheSource == null)
+				return null;
+		}
+
+		final ImageReaderSpi jpegSpi = blpParam.getJPEGSpi();
+		return new BLPDecodedCache.Key(cacheSource, imageIndex, direct,
+				direct ? null : param.getDestinationType(),
+				jpegSpi != null ? jpegSpi.getClass().getName() : "");
+	}
+
+	/**
+	 * Looks up a read in the decoded cache and then the disk cache of the
+	 * read param. Images found on disk are added to the decoded cache.
+	 * 
+	 * @param key
+	 *            the cache key.
+	 * @param param
+	 *            the BLPReadParam holding the caches.
+	 * @return the cached image, or null if not cached.
+	 */
+	private static BufferedImage getCached(BLPDecodedCache.Key key,
+			ImageReadParam param) {
+		final BLPDecodedCache decodedCache = ((BLPReadParam) param)
+				.getDecodedCache();
+		final BLPDiskCache diskCache = ((BLPReadParam) param).getDiskCache();
+		BufferedImage img = null;
+		if (decodedCache != null)
+			img = decodedCache.get(key);
+		if (img == null && diskCache != null) {
+			img = diskCache.get(key);
+			if (img != null && decodedCache != null)
+				decodedCache.put(key, img);
+		}
+		return img;
+	}
+
+	/**
+	 * Adds a decoded image to the decoded and disk caches of the read param.
+	 * 
+	 * @param key
+	 *            the cache key.
+	 * @param param
+	 *            the BLPReadParam holding the caches.
+	 * @param img
+	 *            the decoded image.
+	 */
+	private static void putCached(BLPDecodedCache.Key key,
+			ImageReadParam param, BufferedImage img) {
+		final BLPDecodedCache decodedCache = ((BLPReadParam) param)
+				.getDecodedCache();
+		final BLPDiskCache diskCache = ((BLPReadParam) param).getDiskCache();
+		if (decodedCache != null)
+			decodedCache.put(key, img);
+		if (diskCache != null)
+			diskCache.put(key, img);
+	}
+
+	/**
+	 * Copies an image, keeping its color model and raster layout.
+	 * <p>
+	 * Image data held by a single standard data buffer is copied in bulk.
+	 * 
+	 * @param img
+	 *            the image to copy.
+	 * @return the copy.
+	 */
+	private static BufferedImage copyImage(BufferedImage img) {
+		final WritableRaster raster = img.getRaster();
+		final DataBuffer db = raster.getDataBuffer();
+		final WritableRaster copyRaster;
+		if (raster.getParent() != null || raster.getSampleModelTranslateX() != 0
+				|| raster.getSampleModelTranslateY() != 0) {
+			copyRaster = raster.createCompatibleWritableRaster();
+			copyRaster.setRect(raster);
+		} else {
+			final DataBuffer copyDB;
+			if (db instanceof DataBufferByte) {
+				final byte[][] banks = ((DataBufferByte) db).getBankData();
+				final byte[][] copyBanks = new byte[banks.length][];
+				for (int i = 0; i < banks.length; i += 1)
+					copyBanks[i] = banks[i].clone();
+				copyDB = new DataBufferByte(copyBanks, db.getSize(),
+						db.getOffsets());
+			} else if (db instanceof DataBufferUShort) {
+				final short[][] banks = ((DataBufferUShort) db).getBankData();
+				final short[][] copyBanks = new short[banks.length][];
+				for (int i = 0; i < banks.length; i += 1)
+					copyBanks[i] = banks[i].clone();
+				copyDB = new DataBufferUShort(copyBanks, db.getSize(),
+						db.getOffsets());
+			} else if (db instanceof DataBufferInt) {
+				final int[][] banks = ((DataBufferInt) db).getBankData();
+				final int[][] copyBanks = new int[banks.length][];
+				for (int i = 0; i < banks.length; i += 1)
+					copyBanks[i] = banks[i].clone();
+				copyDB = new DataBufferInt(copyBanks, db.getSize(),
+						db.getOffsets());
+			} else {
+				copyDB = null;
+			}
+
+			if (copyDB != null) {
+				copyRaster = Raster.createWritableRaster(
+						raster.getSampleModel(), copyDB, null);
+			} else {
+				copyRaster = raster.createCompatibleWritableRaster();
+				copyRaster.setRect(raster);
+			}
+		}
+
+		return new BufferedImage(img.getColorModel(), copyRaster,
+				img.isAlphaPremultiplied(), null);
+	}
+
+	/**
+	 * Copies an image returned by a read using the decoded cache, unless cache
+	 * sharing is enabled, so that callers cannot modify the cached image.
+	 * 
+	 * @param img
+	 *            the image that may be held by the decoded cache.
+	 * @param param
+	 *            the BLPReadParam holding the cache.
+	 * @return the image to return to the caller.
+	 */
+	private static BufferedImage unshareCached(BufferedImage img,
+			ImageReadParam param) {
+		final BLPReadParam blpParam = (BLPReadParam) param;
+		if (blpParam.getDecodedCache() == null || blpParam.isCacheSharing())
+			return img;
+		return copyImage(img);
+	}
+
 	@Override
 	public BufferedImage read(int imageIndex, ImageReadParam param)
 			throws IOException {
-		loadHeader();
-		checkImageIndex(imageIndex);
+		final BLPDecodedCache.Key cacheKey = getCacheKey(imageIndex, param);
+		final BufferedImage img = readImage(imageIndex, param, cacheKey);
+		return cacheKey != null ? unshareCached(img, param) : img;
+	}
 
-		// seek forward functionality
-		if (seekForwardOnly && minIndex < imageIndex) {
-			minIndex = imageIndex;
-			mipmapReader.flushTo(minIndex);
+	/**
+	 * Reads a mipmap level like read, except that images held by the decoded
+	 * cache are returned without copying.
+	 * 
+	 * @param imageIndex
+	 *            the mipmap level to read.
+	 * @param param
+	 *            the image read parameter, may be null.
+	 * @param cacheKey
+	 *            the cache key of the read, or null if not cached.
+	 * @return the image, which may be held by the decoded cache.
+	 * @throws IOException
+	 *             if an IOException occurs.
+	 */
+	private BufferedImage readImage(int imageIndex, ImageReadParam param,
+			BLPDecodedCache.Key cacheKey) throws IOException {
+		// try caches
+		if (cacheKey != null) {
+			final BufferedImage cached = getCached(cacheKey, param);
+			if (cached != null) {
+				processImageStarted(imageIndex);
+				processImageComplete();
+				return cached;
+			}
 		}
 
-		if (!mipmapProcessor.canDecode())
-			throw new IIOException("Mipmap processor cannot decode.");
+		final ByteBuffer mmData;
+		synchronized (streamLock) {
+			readHeader();
+			checkImageIndex(imageIndex);
 
-		processImageStarted(imageIndex);
+			// seek forward functionality
+			if (seekForwardOnly && minIndex < imageIndex) {
+				minIndex = imageIndex;
+				mipmapReader.flushTo(minIndex);
+			}
+
+			if (!mipmapProcessor.canDecode())
+				throw new IIOException("Mipmap processor cannot decode.");
 
-		// get mipmap image data
-		byte[] mmData = mipmapReader.getMipmapDataChunk(imageIndex);
+			processImageStarted(imageIndex);
 
+			// get mipmap image data
+			if (param instanceof BLPReadParam)
+				mipmapReader.configure((BLPReadParam) param, imageIndex);
+			mmData = mipmapReader.getMipmapDataBuffer(imageIndex);
+		}
+
+		final BufferedImage destImg = decodeImage(streamMeta,
+				mipmapProcessor, imageIndex, mmData, param);
+		if (cacheKey != null)
+			putCached(cacheKey, param, destImg);
+		processImageComplete();
+		return destImg;
+	}
+
+	/**
+	 * Decodes mipmap data into an image and applies the ImageReadParam.
+	 * <p>
+	 * Only uses the state passed to it so can run concurrently on executor
+	 * threads.
+	 * 
+	 * @param meta
+	 *            the stream metadata of the file.
+	 * @param processor
+	 *            the mipmap processor to decode with.
+	 * @param imageIndex
+	 *            the mipmap level.
+	 * @param mmData
+	 *            a buffer containing the mipmap data chunk between its
+	 *            position and limit.
+	 * @param param
+	 *            the image read parameter, if any.
+	 * @return the decoded image.
+	 * @throws IOException
+	 *             if the image cannot be decoded.
+	 */
+	private BufferedImage decodeImage(BLPStreamMetadata meta,
+			MipmapProcessor processor, int imageIndex, ByteBuffer mmData,
+			ImageReadParam param) throws IOException {
 		// unpack mipmap image data into a mipmap image
-		final int width = streamMeta.getWidth(imageIndex);
-		final int height = streamMeta.getHeight(imageIndex);
-		BufferedImage srcImg = mipmapProcessor.decodeMipmap(mmData, param,
-				width, height, this::processWarningOccurred);
-		// imageIndex);
+		final int width = meta.getWidth(imageIndex);
+		final int height = meta.getHeight(imageIndex);
+		BufferedImage srcImg = processor.decodeMipmap(mmData, param, width,
+				height, this::processWarningOccurred);
 		BufferedImage destImg;
 
 		// return src image if direct read mode is specified or no
@@ -331,7 +757,8 @@ public class BLPReader extends ImageReader {
 						.isDirectRead()))
 			destImg = srcImg;
 		else {
-			destImg = getDestination(param, getImageTypes(imageIndex), width,
+			destImg = getDestination(param,
+					processor.getSupportedImageTypes(width, height), width,
 					height);
 
 			checkReadParamBandSettings(param, srcImg.getSampleModel()
@@ -368,10 +795,340 @@ public class BLPReader extends ImageReader {
 			}
 		}
 
-		processImageComplete();
 		return destImg;
 	}
 
+	/**
+	 * Starts reading a mipmap level on the I/O executor.
+	 * <p>
+	 * Everything that may block, including loading the header, resolving the
+	 * cache key, cache lookups, waiting for the stream lock and opening files,
+	 * runs on the I/O executor so the calling thread never blocks.
+	 * 
+	 * @param imageIndex
+	 *            the mipmap level.
+	 * @param param
+	 *            the image read parameter, if any.
+	 * @param ioExecutor
+	 *            the executor to load the header and read input with.
+	 * @param decodeExecutor
+	 *            the executor to decode with.
+	 * @return a future of the decoded image.
+	 */
+	private CompletableFuture<BufferedImage> startReadAsync(int imageIndex,
+			ImageReadParam param, Executor ioExecutor, Executor decodeExecutor) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				loadHeader();
+				return readLoadedAsync(imageIndex, param, ioExecutor,
+						decodeExecutor);
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		}, ioExecutor).thenCompose(Function.identity());
+	}
+
+	/**
+	 * Starts reading a mipmap level once the header has been loaded. Must be
+	 * called on the I/O executor as it may block.
+	 * 
+	 * @param imageIndex
+	 *            the mipmap level.
+	 * @param param
+	 *            the image read parameter, if any.
+	 * @param ioExecutor
+	 *            the executor to read stream input with.
+	 * @param decodeExecutor
+	 *            the executor to decode with.
+	 * @return a future of the decoded image.
+	 * @throws IOException
+	 *             if reading cannot be started.
+	 */
+	private CompletableFuture<BufferedImage> readLoadedAsync(int imageIndex,
+			ImageReadParam param, Executor ioExecutor, Executor decodeExecutor)
+			throws IOException {
+		// try caches
+		final BLPDecodedCache.Key cacheKey = getCacheKey(imageIndex, param);
+		if (cacheKey != null) {
+			final BufferedImage cached = getCached(cacheKey, param);
+			if (cached != null)
+				return CompletableFuture.completedFuture(unshareCached(cached,
+						param));
+		}
+
+		final BLPStreamMetadata meta;
+		final MipmapReader reader;
+		final MipmapProcessor processor;
+		CompletableFuture<ByteBuffer> chunk;
+		synchronized (streamLock) {
+			readHeader();
+			checkImageIndex(imageIndex);
+
+			// seek forward functionality
+			if (seekForwardOnly && minIndex < imageIndex) {
+				minIndex = imageIndex;
+				mipmapReader.flushTo(minIndex);
+			}
+
+			if (!mipmapProcessor.canDecode())
+				throw new IIOException("Mipmap processor cannot decode.");
+
+			if (param instanceof BLPReadParam)
+				mipmapReader.configure((BLPReadParam) param, imageIndex);
+			meta = streamMeta;
+			reader = mipmapReader;
+			processor = mipmapProcessor;
+			chunk = reader.getMipmapDataBufferAsync(imageIndex);
+		}
+
+		// fall back to reading the stream on the executor
+		if (chunk == null)
+			chunk = CompletableFuture.supplyAsync(() -> {
+				synchronized (streamLock) {
+					try {
+						return reader.getMipmapDataBuffer(imageIndex);
+					} catch (IOException e) {
+						throw new CompletionException(e);
+					}
+				}
+			}, ioExecutor);
+
+		return chunk.thenApplyAsync(mmData -> {
+			try {
+				final BufferedImage destImg = decodeImage(meta, processor,
+						imageIndex, mmData, param);
+				if (cacheKey == null)
+					return destImg;
+				putCached(cacheKey, param, destImg);
+				return unshareCached(destImg, param);
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		}, decodeExecutor);
+	}
+
+	/**
+	 * Reads a mipmap level asynchronously.
+	 * <p>
+	 * The returned future completes with the same image as read would return.
+	 * The calling thread does not block. Loading the header, cache lookups and
+	 * reading input run on the executor. When the input is a File or Path, mipmap data of BLP1 and BLP2 files is
+	 * read with an AsynchronousFileChannel so no executor thread waits on
+	 * I/O. Other inputs are read on the executor. Decoding runs on the
+	 * executor. Several mipmap levels can be read concurrently.
+	 * <p>
+	 * Read listeners other than warning listeners are not notified. Failures
+	 * complete the future exceptionally with the same exceptions read would
+	 * throw. Changing the input before the future completes results in
+	 * unspecified behavior.
+	 * 
+	 * @param imageIndex
+	 *            the mipmap level to read.
+	 * @param param
+	 *            the image read parameter, may be null.
+	 * @param executor
+	 *            the executor to read and decode with.
+	 * @return a future of the decoded image.
+	 */
+	public CompletableFuture<BufferedImage> readAsync(int imageIndex,
+			ImageReadParam param, Executor executor) {
+		return readAsync(imageIndex, param, executor, executor);
+	}
+
+	/**
+	 * Reads a mipmap level asynchronously with separate executors for reading
+	 * input and for decoding. Otherwise the same as readAsync with a single
+	 * executor.
+	 * 
+	 * @param imageIndex
+	 *            the mipmap level to read.
+	 * @param param
+	 *            the image read parameter, may be null.
+	 * @param ioExecutor
+	 *            the executor to load the header and read stream input with.
+	 * @param decodeExecutor
+	 *            the executor to decode with.
+	 * @return a future of the decoded image.
+	 */
+	CompletableFuture<BufferedImage> readAsync(int imageIndex,
+			ImageReadParam param, Executor ioExecutor,
+			Executor decodeExecutor) {
+		return startReadAsync(imageIndex, param, ioExecutor, decodeExecutor);
+	}
+
+	/**
+	 * Reads all mipmap levels asynchronously. The mipmap levels are read
+	 * concurrently as by readAsync.
+	 * 
+	 * @param param
+	 *            the image read parameter applied to every mipmap level, may
+	 *            be null.
+	 * @param executor
+	 *            the executor to read and decode with.
+	 * @return a future of the decoded images in mipmap level order.
+	 */
+	public CompletableFuture<List<BufferedImage>> readAllAsync(
+			ImageReadParam param, Executor executor) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				loadHeader();
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+			synchronized (streamLock) {
+				return streamMeta.getMipmapCount();
+			}
+		}, executor).thenCompose(mmCount -> {
+			final List<CompletableFuture<BufferedImage>> reads =
+					new ArrayList<CompletableFuture<BufferedImage>>(mmCount);
+			for (int i = 0; i < mmCount; i += 1)
+				reads.add(startReadAsync(i, param, executor, executor));
+
+			return CompletableFuture.allOf(
+					reads.toArray(new CompletableFuture<?>[0])).thenApply(
+					done -> {
+						final List<BufferedImage> images =
+								new ArrayList<BufferedImage>(mmCount);
+						for (final CompletableFuture<BufferedImage> read : reads)
+							images.add(read.join());
+						return images;
+					});
+		});
+	}
+
+	/**
+	 * Reads all mipmap levels asynchronously without an ImageReadParam using
+	 * the common ForkJoinPool.
+	 * 
+	 * @return a future of the decoded images in mipmap level order.
+	 * @see #readAllAsync(ImageReadParam, Executor)
+	 */
+	public CompletableFuture<List<BufferedImage>> readAllAsync() {
+		return readAllAsync(null, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Reads a mipmap level into a store outside the Java heap.
+	 * <p>
+	 * The mipmap level is decoded the same as read would. Indexed content and
+	 * BGRA8888 content with alpha is stored as decoded images directly so its
+	 * mipmap data is copied straight into native memory without producing a
+	 * heap image. Other content, or reads using a decoded or disk cache, are
+	 * read with read and then copied into native memory. The heap image is
+	 * short lived so large decoded images can be kept without occupying the
+	 * heap. The caller owns the single reference of the returned store and
+	 * must release it once done.
+	 * 
+	 * @param imageIndex
+	 *            the mipmap level to read.
+	 * @param param
+	 *            the image read parameter, may be null.
+	 * @return the store holding the decoded mipmap level.
+	 * @throws IOException
+	 *             if an IOException occurs.
+	 * @throws IndexOutOfBoundsException
+	 *             if the mipmap level does not exist.
+	 */
+	public BLPDirectMipmap readDirect(int imageIndex, ImageReadParam param)
+			throws IOException {
+		// decode straight into native memory if possible
+		final BLPDecodedCache.Key cacheKey = getCacheKey(imageIndex, param);
+		if (cacheKey == null
+				&& (param == null || (param instanceof BLPReadParam
+						&& ((BLPReadParam) param).isDirectRead()))) {
+			final BLPDirectMipmap direct = readDirectMipmap(imageIndex, param);
+			if (direct != null)
+				return direct;
+		}
+
+		// copying into native memory leaves any cached image untouched
+		final BufferedImage img = readImage(imageIndex, param, cacheKey);
+		try {
+			return BLPDirectMipmap.copyOf(img);
+		} catch (IllegalArgumentException e) {
+			throw new IIOException("Cannot store image data directly.", e);
+		}
+	}
+
+	/**
+	 * Decodes a mipmap level directly into native memory, if supported by the
+	 * mipmap processor.
+	 * 
+	 * @param imageIndex
+	 *            the mipmap level to read.
+	 * @param param
+	 *            the image read parameter, may be null.
+	 * @return the store, or null if not supported.
+	 * @throws IOException
+	 *             if an IOException occurs.
+	 */
+	private BLPDirectMipmap readDirectMipmap(int imageIndex,
+			ImageReadParam param) throws IOException {
+		synchronized (streamLock) {
+			readHeader();
+			checkImageIndex(imageIndex);
+
+			// seek forward functionality
+			if (seekForwardOnly && minIndex < imageIndex) {
+				minIndex = imageIndex;
+				mipmapReader.flushTo(minIndex);
+			}
+
+			if (!mipmapProcessor.canDecode())
+				throw new IIOException("Mipmap processor cannot decode.");
+			if (!mipmapProcessor.canDecodeDirect())
+				return null;
+
+			processImageStarted(imageIndex);
+
+			// get mipmap image data without copying where possible
+			if (param instanceof BLPReadParam)
+				mipmapReader.configure((BLPReadParam) param, imageIndex);
+			final BLPDirectMipmap direct = mipmapProcessor.decodeMipmapDirect(
+					mipmapReader.getMipmapDataBuffer(imageIndex),
+					streamMeta.getWidth(imageIndex),
+					streamMeta.getHeight(imageIndex),
+					this::processWarningOccurred);
+			processImageComplete();
+			return direct;
+		}
+	}
+
+	/**
+	 * Reads the mipmap data chunk of a mipmap level exactly as stored, without
+	 * decoding.
+	 * <p>
+	 * The returned object describes the format and dimensions of the mipmap
+	 * data. Seek forward only behavior applies the same as for image reads.
+	 * Read listeners are not notified as no image is read.
+	 * 
+	 * @param imageIndex
+	 *            the mipmap level to read.
+	 * @return the stored mipmap.
+	 * @throws IOException
+	 *             if an IOException occurs.
+	 * @throws IndexOutOfBoundsException
+	 *             if the mipmap level does not exist.
+	 */
+	public BLPRawMipmap readRawMipmap(int imageIndex) throws IOException {
+		synchronized (streamLock) {
+			readHeader();
+			checkImageIndex(imageIndex);
+
+			// seek forward functionality
+			if (seekForwardOnly && minIndex < imageIndex) {
+				minIndex = imageIndex;
+				mipmapReader.flushTo(minIndex);
+			}
+
+			return new BLPRawMipmap(streamMeta.getEncodingType(),
+					streamMeta.getAlphaBits(), imageIndex,
+					streamMeta.getWidth(imageIndex),
+					streamMeta.getHeight(imageIndex),
+					mipmapReader.getMipmapDataBuffer(imageIndex));
+		}
+	}
+
 	@Override
 	public void dispose() {
 		// force cleanup of existing state
@@ -2,9 +2,17 @@ package com.hiveworkshop.blizzard.blp;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
 
 import javax.imageio.ImageReader;
 import javax.imageio.spi.ImageReaderSpi;
@@ -16,13 +24,59 @@ import static com.hiveworkshop.blizzard.blp.ImageSpiCommon.*;
 
 /**
  * Service provider for BLP image file ImageReader.
+ * <p>
+ * File and Path sources are sniffed directly by reading the 4 byte file magic
+ * with a single positional read. The result is cached by file modification
+ * time so repeated probes of the same unmodified file do not read it again.
+ * Only callers passing a File or Path, such as ImageIO.getImageReaders, reach
+ * this. ImageIO.read wraps files in an ImageInputStream first.
  * 
  * @author Imperial Good
  */
 public class BLPReaderSpi extends ImageReaderSpi {
 	static final String READER_CLASS = "com.hiveworkshop.blizzard.blp.BLPReader";
 	static final Class<?>[] INPUT_TYPES = { ImageInputStream.class, File.class,
-			Path.class };
+			Path.class, byte[].class, ByteBuffer.class };
+
+	/**
+	 * Maximum number of cached File and Path sniff results.
+	 */
+	private static final int SNIFF_CACHE_SIZE = 1024;
+
+	/**
+	 * Cached sniff result of a file.
+	 */
+	private static final class SniffResult {
+		/**
+		 * Modification time of the file when sniffed.
+		 */
+		final FileTime modified;
+
+		/**
+		 * If the file has BLP magic.
+		 */
+		final boolean blp;
+
+		SniffResult(FileTime modified, boolean blp) {
+			this.modified = modified;
+			this.blp = blp;
+		}
+	}
+
+	/**
+	 * Least recently used cache of sniff results by absolute path.
+	 */
+	private final Map<Path, SniffResult> sniffCache = Collections
+			.synchronizedMap(new LinkedHashMap<Path, SniffResult>(16, 0.75f,
+					true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(
+						Map.Entry<Path, SniffResult> eldest) {
+					return size() > SNIFF_CACHE_SIZE;
+				}
+			});
 	static final String[] WRITER_SPI_CLASSES = { "com.hiveworkshop.blizzard.blp.BLPWriterSpi" };
 
 	public BLPReaderSpi() {
@@ -35,6 +89,41 @@ public class BLPReaderSpi extends ImageReaderSpi {
 				EXTRA_IMAGE_METADATA_NAME, EXTRA_IMAGE_METADATA_CLASS);
 	}
 
+	/**
+	 * Tests if a file starts with BLP magic. Files that cannot be read are
+	 * not BLP files.
+	 * 
+	 * @param file
+	 *            the file path.
+	 * @return true if the file has BLP magic.
+	 */
+	private boolean sniffFile(Path file) {
+		final Path key = file.toAbsolutePath().normalize();
+		try {
+			final FileTime modified = Files.getLastModifiedTime(key);
+			final SniffResult cached = sniffCache.get(key);
+			if (cached != null && cached.modified.equals(modified))
+				return cached.blp;
+
+			// read magic
+			final ByteBuffer magicBuffer = ByteBuffer.allocate(4).order(
+					ByteOrder.LITTLE_ENDIAN);
+			try (FileChannel channel = FileChannel.open(key,
+					StandardOpenOption.READ)) {
+				channel.read(magicBuffer, 0);
+			}
+			final boolean blp = !magicBuffer.hasRemaining()
+					&& BLPCommon.resolveVersion(new MagicInt(magicBuffer
+							.getInt(0), ByteOrder.LITTLE_ENDIAN)) != -1;
+
+			sniffCache.put(key, new SniffResult(modified, blp));
+			return blp;
+		} catch (IOException e) {
+			sniffCache.remove(key);
+			return false;
+		}
+	}
+
 	@Override
 	public boolean canDecodeInput(Object source) throws IOException {
 		if (source instanceof ImageInputStream) {
@@ -56,6 +145,28 @@ public class BLPReaderSpi extends ImageReaderSpi {
 				src.reset();
 			}
 
+		} else if (source instanceof Path) {
+			return sniffFile((Path) source);
+		} else if (source instanceof File) {
+			return sniffFile(((File) source).toPath());
+		} else if (source instanceof byte[]) {
+			// Check magic number of array.
+			final byte[] src = (byte[]) source;
+			if (src.length >= 4) {
+				final MagicInt magic = new MagicInt(ByteBuffer.wrap(src)
+						.order(ByteOrder.LITTLE_ENDIAN).getInt(0),
+						ByteOrder.LITTLE_ENDIAN);
+				return BLPCommon.resolveVersion(magic) != -1;
+			}
+		} else if (source instanceof ByteBuffer) {
+			// Check magic number at buffer position without changing state.
+			final ByteBuffer src = (ByteBuffer) source;
+			if (src.remaining() >= 4) {
+				final MagicInt magic = new MagicInt(src.duplicate()
+						.order(ByteOrder.LITTLE_ENDIAN).getInt(src.position()),
+						ByteOrder.LITTLE_ENDIAN);
+				return BLPCommon.resolveVersion(magic) != -1;
+			}
 		}
 
 		return false;
@@ -38,8 +38,8 @@ import com.hiveworkshop.lang.MagicInt;
  * <p>
  * Only BLP version 0 and 1 are fully supported. Version 2 lacks sufficient
  * documentation to create a reliable implementation. It will still parse and
- * produce version 2 headers however such headers cannot be used in a sensible
- * way.
+ * produce version 2 headers however only some encoding types, such as DXT1,
+ * can be used in a sensible way.
  * 
  * @author Imperial Good
  */
@@ -234,6 +234,34 @@ public final class BLPStreamMetadata extends IIOMetadata {
 		else if (contentType == ContentType.DIRECT
 				&& pixmapType == PixmapType.INDEXED)
 			return BLPEncodingType.INDEXED;
+		else if (contentType == ContentType.DIRECT
+				&& pixmapType == PixmapType.SAMPLED
+				&& sampleType == SampleType.DXT1)
+			return BLPEncodingType.DXT1;
+		else if (contentType == ContentType.DIRECT
+				&& pixmapType == PixmapType.SAMPLED
+				&& sampleType == SampleType.DXT3)
+			return BLPEncodingType.DXT3;
+		else if (contentType == ContentType.DIRECT
+				&& pixmapType == PixmapType.SAMPLED
+				&& sampleType == SampleType.DXT5)
+			return BLPEncodingType.DXT5;
+		else if (contentType == ContentType.DIRECT
+				&& pixmapType == PixmapType.BGRA
+				&& sampleType == SampleType.BGRA8888)
+			return BLPEncodingType.BGRA8888;
+		else if (contentType == ContentType.DIRECT
+				&& pixmapType == PixmapType.BGRA
+				&& sampleType == SampleType.BGRA5551)
+			return BLPEncodingType.BGRA5551;
+		else if (contentType == ContentType.DIRECT
+				&& pixmapType == PixmapType.BGRA
+				&& sampleType == SampleType.BGRA4444)
+			return BLPEncodingType.BGRA4444;
+		else if (contentType == ContentType.DIRECT
+				&& pixmapType == PixmapType.BGRA
+				&& sampleType == SampleType.BGR565)
+			return BLPEncodingType.BGR565;
 		return BLPEncodingType.UNKNOWN;
 	}
 
@@ -286,6 +314,41 @@ public final class BLPStreamMetadata extends IIOMetadata {
 			pixmapType = PixmapType.INDEXED;
 			sampleType = SampleType.DXT1;
 			break;
+		case DXT1:
+			contentType = ContentType.DIRECT;
+			pixmapType = PixmapType.SAMPLED;
+			sampleType = SampleType.DXT1;
+			break;
+		case DXT3:
+			contentType = ContentType.DIRECT;
+			pixmapType = PixmapType.SAMPLED;
+			sampleType = SampleType.DXT3;
+			break;
+		case DXT5:
+			contentType = ContentType.DIRECT;
+			pixmapType = PixmapType.SAMPLED;
+			sampleType = SampleType.DXT5;
+			break;
+		case BGRA8888:
+			contentType = ContentType.DIRECT;
+			pixmapType = PixmapType.BGRA;
+			sampleType = SampleType.BGRA8888;
+			break;
+		case BGRA5551:
+			contentType = ContentType.DIRECT;
+			pixmapType = PixmapType.BGRA;
+			sampleType = SampleType.BGRA5551;
+			break;
+		case BGRA4444:
+			contentType = ContentType.DIRECT;
+			pixmapType = PixmapType.BGRA;
+			sampleType = SampleType.BGRA4444;
+			break;
+		case BGR565:
+			contentType = ContentType.DIRECT;
+			pixmapType = PixmapType.BGRA;
+			sampleType = SampleType.BGR565;
+			break;
 		}
 
 		this.alphaBits = alphaBits;
@@ -312,10 +375,15 @@ public final class BLPStreamMetadata extends IIOMetadata {
 	 *            the new version number.
 	 * @throws IllegalArgumentException
 	 *             if version is not a supported version (0 to 2).
+	 * @throws IllegalArgumentException
+	 *             if version does not support the encoding type.
 	 */
 	public void setVersion(int version) {
 		if (version < 0 || 2 < version)
 			throw new IllegalArgumentException("versions 0 to 2 supported");
+		else if (getEncodingType().minVersion > version)
+			throw new IllegalArgumentException(
+					"version does not support encodingType");
 		this.version = version;
 	}
 
@@ -495,12 +563,15 @@ public final class BLPStreamMetadata extends IIOMetadata {
 			// read alphaBits
 			alphaBits = src.readByte();
 
-			// read sampleType
+			// read sampleType, which indexed content does not use
 			int sample = src.readByte() & 0xFF;
 			SampleType[] stvalues = SampleType.values();
-			if (sample >= stvalues.length)
-				throw new IIOException(String.format(
-						"sample type %#0X is invalid", (byte) sample));
+			if (sample >= stvalues.length) {
+				if (pixmapType != PixmapType.INDEXED)
+					throw new IIOException(String.format(
+							"sample type %#0X is invalid", (byte) sample));
+				sample = SampleType.DXT1.ordinal();
+			}
 			sampleType = SampleType.values()[sample];
 
 			// read hasMipmaps
@@ -30,6 +30,33 @@ import javax.imageio.spi.ImageWriterSpi;
  * separately. All resizing is done using an area averaging algorithm. CLAMP is
  * specified by default for ease of use and maximum quality as BLP file aspect
  * ratio does not usually matter.
+ * <p>
+ * JPEG content can be encoded with fixed JPEG tables. All mipmap levels then
+ * use the same quantization and Huffman tables which form the shared JPEG
+ * header. Each mipmap level can be written out as soon as it is encoded rather
+ * than holding all levels in memory to find a shared header. This is disabled
+ * by default.
+ * <p>
+ * JPEG content can be encoded to meet a byte budget instead of a fixed
+ * compression quality. Either a maximum total file size or a maximum size for
+ * each mipmap level can be specified. The best compression quality, up to the
+ * specified compression quality, is then searched for by trying several
+ * quality values concurrently. Budgets require automatic mipmap generation as
+ * all mipmap levels must be known before searching.
+ * <p>
+ * DXT content can be encoded using either range fit or cluster fit. Range fit
+ * is fast while cluster fit produces higher quality blocks. Cluster fit is
+ * used by default for maximum quality.
+ * <p>
+ * Uncompressed 16 bit content can be encoded with dithering. Dithering
+ * diffuses the error from reduced component precision to neighbouring pixels,
+ * reducing banding of smooth gradients at the cost of noise. This is disabled
+ * by default.
+ * <p>
+ * BLP0 mipmap files can be written atomically. Mipmap files are then written
+ * concurrently to temporary files and only replace existing mipmap files once
+ * all mipmap levels have been written, so an interrupted write never leaves a
+ * mix of old and new mipmap files behind. This is disabled by default.
  * 
  * @author Imperial Good
  */
@@ -66,6 +93,22 @@ public class BLPWriteParam extends ImageWriteParam {
 		CLAMP;
 	}
 
+	/**
+	 * The block compression algorithm for DXT content.
+	 */
+	public static enum DXTCompression {
+		/**
+		 * Fast compression using the extreme colors along the principal axis
+		 * of each block.
+		 */
+		RANGE_FIT,
+		/**
+		 * High quality compression trying all clusterings of colors along the
+		 * principal axis of each block.
+		 */
+		CLUSTER_FIT;
+	}
+
 	/**
 	 * The scale optimization setting to use on image 0 when no StreamMetadata
 	 * is present.
@@ -77,6 +120,37 @@ public class BLPWriteParam extends ImageWriteParam {
 	 */
 	private boolean autoMipmap = true;
 
+	/**
+	 * The fixed JPEG tables setting to use for JPEG content.
+	 */
+	private boolean jpegFixedTables = false;
+
+	/**
+	 * Maximum total file size in bytes for JPEG content, or 0 if none.
+	 */
+	private long jpegTargetSize = 0;
+
+	/**
+	 * Maximum size of each mipmap level in bytes for JPEG content, or 0 if
+	 * none.
+	 */
+	private int jpegLevelBudget = 0;
+
+	/**
+	 * The block compression algorithm to use for DXT content.
+	 */
+	private DXTCompression dxtCompression = DXTCompression.CLUSTER_FIT;
+
+	/**
+	 * The dithering setting to use for uncompressed 16 bit content.
+	 */
+	private boolean dithering = false;
+
+	/**
+	 * The atomic mipmap file setting to use for BLP0 files.
+	 */
+	private boolean atomicMipmapFiles = false;
+
 	public BLPWriteParam() {
 		canWriteCompressed = true;
 		setCompressionMode(MODE_EXPLICIT);
@@ -150,4 +224,174 @@ public class BLPWriteParam extends ImageWriteParam {
 	public void setAutoMipmap(boolean autoMipmap) {
 		this.autoMipmap = autoMipmap;
 	}
+
+	/**
+	 * Returns if JPEG content is encoded with fixed JPEG tables.
+	 * 
+	 * @return true if fixed JPEG tables will be used.
+	 */
+	public boolean isJPEGFixedTables() {
+		return jpegFixedTables;
+	}
+
+	/**
+	 * Set if JPEG content should be encoded with fixed JPEG tables.
+	 * <p>
+	 * When true, explicit quantization tables scaled to the compression
+	 * quality and the standard Huffman tables are used, so all mipmap levels
+	 * of the same compression quality share identical tables. These tables
+	 * become the shared JPEG header, allowing mipmap data to be written as
+	 * soon as each level is encoded. Mipmap levels encoded with a different
+	 * compression quality, or by a JPEG ImageWriter that does not accept
+	 * explicit tables, remain valid but keep their own tables and generate a
+	 * warning.
+	 * 
+	 * @param jpegFixedTables
+	 *            the fixed JPEG tables setting to use.
+	 */
+	public void setJPEGFixedTables(boolean jpegFixedTables) {
+		this.jpegFixedTables = jpegFixedTables;
+	}
+
+	/**
+	 * Get the maximum total file size used to search JPEG content compression
+	 * quality.
+	 * 
+	 * @return the maximum file size in bytes, or 0 if not used.
+	 */
+	public long getJPEGTargetSize() {
+		return jpegTargetSize;
+	}
+
+	/**
+	 * Set the maximum total file size used to search JPEG content compression
+	 * quality.
+	 * <p>
+	 * When greater than 0, the highest compression quality not exceeding the
+	 * current compression quality which keeps the file within the target size
+	 * is used for all mipmap levels. For version 0 files the size includes all
+	 * mipmap files. If the target size cannot be met then the lowest quality
+	 * is used and a warning generated.
+	 * <p>
+	 * Takes precedence over the JPEG level budget.
+	 * 
+	 * @param jpegTargetSize
+	 *            the maximum file size in bytes, or 0 to not use.
+	 * @throws IllegalArgumentException
+	 *             if jpegTargetSize is negative.
+	 */
+	public void setJPEGTargetSize(long jpegTargetSize) {
+		if (jpegTargetSize < 0)
+			throw new IllegalArgumentException("Negative target size.");
+		this.jpegTargetSize = jpegTargetSize;
+	}
+
+	/**
+	 * Get the maximum size of each mipmap level used to search JPEG content
+	 * compression quality.
+	 * 
+	 * @return the maximum mipmap level size in bytes, or 0 if not used.
+	 */
+	public int getJPEGLevelBudget() {
+		return jpegLevelBudget;
+	}
+
+	/**
+	 * Set the maximum size of each mipmap level used to search JPEG content
+	 * compression quality.
+	 * <p>
+	 * When greater than 0, each mipmap level uses the highest compression
+	 * quality not exceeding the current compression quality which keeps its
+	 * encoded JPEG file within the budget. The shared JPEG header is included
+	 * in the size of each level. Levels which cannot meet the budget use the
+	 * lowest quality and generate a warning.
+	 * 
+	 * @param jpegLevelBudget
+	 *            the maximum mipmap level size in bytes, or 0 to not use.
+	 * @throws IllegalArgumentException
+	 *             if jpegLevelBudget is negative.
+	 */
+	public void setJPEGLevelBudget(int jpegLevelBudget) {
+		if (jpegLevelBudget < 0)
+			throw new IllegalArgumentException("Negative level budget.");
+		this.jpegLevelBudget = jpegLevelBudget;
+	}
+
+	/**
+	 * Get the block compression algorithm used for DXT content.
+	 * 
+	 * @return the DXT compression algorithm.
+	 */
+	public DXTCompression getDXTCompression() {
+		return dxtCompression;
+	}
+
+	/**
+	 * Set the block compression algorithm used for DXT content.
+	 * <p>
+	 * See DXTCompression enums for their mechanical details.
+	 * 
+	 * @param dxtCompression
+	 *            the DXT compression algorithm to use.
+	 * @throws IllegalArgumentException
+	 *             if dxtCompression is null.
+	 */
+	public void setDXTCompression(DXTCompression dxtCompression) {
+		if (dxtCompression == null)
+			throw new IllegalArgumentException("Null DXT compression.");
+		this.dxtCompression = dxtCompression;
+	}
+
+	/**
+	 * Returns if uncompressed 16 bit content is encoded with dithering.
+	 * 
+	 * @return true if dithering will be used.
+	 */
+	public boolean isDithering() {
+		return dithering;
+	}
+
+	/**
+	 * Set if uncompressed 16 bit content should be encoded with dithering.
+	 * <p>
+	 * When true, Floyd-Steinberg error diffusion is applied when quantizing
+	 * BGRA5551, BGRA4444 and BGR565 content. 1 bit alpha is never dithered.
+	 * Dithered encoding processes pixels sequentially so is slower for large
+	 * images.
+	 * 
+	 * @param dithering
+	 *            the dithering setting to use.
+	 */
+	public void setDithering(boolean dithering) {
+		this.dithering = dithering;
+	}
+
+	/**
+	 * Returns if BLP0 mipmap files are written atomically.
+	 * 
+	 * @return true if mipmap files are written atomically.
+	 */
+	public boolean isAtomicMipmapFiles() {
+		return atomicMipmapFiles;
+	}
+
+	/**
+	 * Set if BLP0 mipmap files should be written atomically.
+	 * <p>
+	 * When true, each mipmap level is written to a temporary file alongside
+	 * the BLP0 file in the background while further mipmap levels are
+	 * encoded. Once the last mipmap level is written all temporary files are
+	 * forced to storage and then renamed to replace the mipmap files. Mipmap
+	 * files of higher mipmap levels left over from an earlier write of the
+	 * same file are deleted. If writing fails or is abandoned the temporary
+	 * files are deleted and existing mipmap files are left unchanged.
+	 * <p>
+	 * Has no effect on other BLP versions.
+	 * 
+	 * @param atomicMipmapFiles
+	 *            the atomic mipmap file setting to use.
+	 */
+	public void setAtomicMipmapFiles(boolean atomicMipmapFiles) {
+		this.atomicMipmapFiles = atomicMipmapFiles;
+	}
 }
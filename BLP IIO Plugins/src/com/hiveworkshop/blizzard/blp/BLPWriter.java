@@ -7,16 +7,22 @@ import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
 import java.awt.image.IndexColorModel;
 import java.awt.image.Raster;
 import java.awt.image.RenderedImage;
 import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.imageio.IIOException;
 import javax.imageio.IIOImage;
@@ -26,7 +32,6 @@ import javax.imageio.ImageWriter;
 import javax.imageio.event.IIOWriteWarningListener;
 import javax.imageio.metadata.IIOMetadata;
 import javax.imageio.spi.ImageWriterSpi;
-import javax.imageio.stream.FileImageOutputStream;
 import javax.imageio.stream.ImageOutputStream;
 
 import com.hiveworkshop.lang.LocalizedFormatedString;
@@ -58,8 +63,14 @@ public class BLPWriter extends ImageWriter {
 				throws IOException {
 		}
 
-		public abstract void setMipmapDataChunk(int mipmap, byte[] mmData)
+		public abstract void setMipmapDataChunk(int mipmap, ByteBuffer mmData)
 				throws IOException;
+
+		public void endMipmapSequence(int mipmapCount) throws IOException {
+		}
+
+		public void dispose() {
+		}
 	}
 
 	/**
@@ -90,7 +101,7 @@ public class BLPWriter extends ImageWriter {
 	/**
 	 * List to hold mipmap data that cannot immediately be written.
 	 */
-	private List<byte[]> mmDataList = null;
+	private List<ByteBuffer> mmDataList = null;
 
 	/**
 	 * MipmapWriter is ready to write mipmap data.
@@ -172,6 +183,154 @@ public class BLPWriter extends ImageWriter {
 		}
 	}
 
+	/**
+	 * Produces a BufferedImage view of a RenderedImage for encoding.
+	 * <p>
+	 * BufferedImage sources are returned directly without copying. Other
+	 * RenderedImage sources are copied once into a compatible raster
+	 * translated to the origin.
+	 * 
+	 * @param im
+	 *            the source image.
+	 * @return a BufferedImage with the same content as im.
+	 */
+	private static BufferedImage wrapRenderedImage(RenderedImage im) {
+		if (im instanceof BufferedImage)
+			return (BufferedImage) im;
+
+		final ColorModel cm = im.getColorModel();
+		final WritableRaster wr = Raster.createWritableRaster(im
+				.getSampleModel().createCompatibleSampleModel(im.getWidth(),
+						im.getHeight()), null);
+		im.copyData(wr.createWritableTranslatedChild(im.getMinX(),
+				im.getMinY()));
+		return new BufferedImage(cm, wr, cm.isAlphaPremultiplied(), null);
+	}
+
+	/**
+	 * Copies mipmap data that shares its array with the data of an image
+	 * supplied by the caller. Encoders may return the image data itself as
+	 * mipmap data, which the caller is free to modify once the write returns.
+	 * 
+	 * @param mmData
+	 *            the mipmap data.
+	 * @param im
+	 *            the image supplied by the caller.
+	 * @return the mipmap data, copied if it was shared.
+	 */
+	private static ByteBuffer detachMipmapData(ByteBuffer mmData,
+			RenderedImage im) {
+		if (!mmData.hasArray() || !(im instanceof BufferedImage))
+			return mmData;
+		final DataBuffer db = ((BufferedImage) im).getRaster()
+				.getDataBuffer();
+		if (!(db instanceof DataBufferByte))
+			return mmData;
+		for (int i = 0; i < db.getNumBanks(); i += 1) {
+			if (((DataBufferByte) db).getData(i) == mmData.array()) {
+				final ByteBuffer copy = ByteBuffer.allocate(mmData
+						.remaining());
+				copy.put(mmData.duplicate()).flip();
+				return copy;
+			}
+		}
+		return mmData;
+	}
+
+	/**
+	 * Creates a mipmap image by scaling down an image using an area averaging
+	 * algorithm.
+	 * 
+	 * @param img
+	 *            the full scale image.
+	 * @param width
+	 *            the mipmap width in pixels.
+	 * @param height
+	 *            the mipmap height in pixels.
+	 * @return the mipmap image.
+	 */
+	private static BufferedImage createMipmapImage(BufferedImage img,
+			int width, int height) {
+		final ColorModel cm = img.getColorModel();
+		final BufferedImage mmImg = new BufferedImage(cm, img.getRaster()
+				.createCompatibleWritableRaster(width, height),
+				cm.isAlphaPremultiplied(), null);
+		final Graphics2D graphics = mmImg.createGraphics();
+		graphics.setRenderingHints(new RenderingHints(
+				RenderingHints.KEY_INTERPOLATION,
+				RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR));
+		graphics.drawImage(img.getScaledInstance(width, height,
+				Image.SCALE_AREA_AVERAGING), 0, 0, width, height, null);
+		graphics.dispose();
+		return mmImg;
+	}
+
+	/**
+	 * Writes all mipmap levels of JPEG content using the JPEG compression
+	 * quality found to meet the byte budget of the write param.
+	 * <p>
+	 * All mipmap levels are generated before searching so that each quality
+	 * trial can reuse them.
+	 * 
+	 * @param img
+	 *            the full scale image.
+	 * @param param
+	 *            the write param with a JPEG byte budget.
+	 * @throws IOException
+	 *             if an IOException occurs.
+	 */
+	private void writeJPEGBudgeted(BufferedImage img, BLPWriteParam param)
+			throws IOException {
+		final int mmCount = streamMetadata.getMipmapCount();
+		if (!param.isAutoMipmap() && mmCount > 1)
+			throw new IIOException(
+					"JPEG byte budget requires automatic mipmaps.");
+
+		// generate all mipmap levels
+		final List<BufferedImage> mipmaps = new ArrayList<BufferedImage>(
+				mmCount);
+		mipmaps.add(img);
+		for (int i = 1; i < mmCount; i += 1)
+			mipmaps.add(createMipmapImage(img, streamMetadata.getWidth(i),
+					streamMetadata.getHeight(i)));
+
+		// search JPEG quality
+		final JPEGQualitySearch search = new JPEGQualitySearch(
+				streamMetadata.getAlphaBits(), param, mipmaps,
+				ForkJoinPool.commonPool());
+		final JPEGQualitySearch.Result result;
+		if (param.getJPEGTargetSize() > 0) {
+			// header and mipmap manager have already been written
+			result = search.searchTotalSize(param.getJPEGTargetSize(),
+					iosOutput.length(), param.isJPEGFixedTables(),
+					warn -> processWarningOccurred(warn, -1));
+		} else {
+			result = search.searchLevelSize(param.getJPEGLevelBudget(),
+					warn -> processWarningOccurred(warn, -1));
+		}
+		mipmapProcessor.dispose();
+		mipmapProcessor = result.processor;
+
+		// write out mipmap data
+		mipmapProcessor.writeObject(iosOutput);
+		mipmapWriter.startMipmapSequence(iosOutput);
+		canWriteMipmaps = true;
+		for (int i = 0; i < mmCount; i += 1) {
+			processImageStarted(i);
+			mipmapWriter.setMipmapDataChunk(i, result.mmDataList.get(i));
+			imageIndex += 1;
+			processImageComplete();
+		}
+		mipmapWriter.writeMipmapManager(iosOutput);
+		mipmapWriter.endMipmapSequence(mmCount);
+
+		// close internal image output stream
+		if (internalOutput) {
+			iosOutput.close();
+			internalOutput = false;
+		}
+	}
+
 	@Override
 	public void write(IIOMetadata streamMetadata, IIOImage image,
 			ImageWriteParam param) throws IOException {
@@ -186,11 +345,22 @@ public class BLPWriter extends ImageWriter {
 		// process output
 		if (iosOutput == null) {
 			// identify output type
-			if (output instanceof File) {
-				iosOutput = new FileImageOutputStream((File) output);
-				internalOutput = true;
-			} else if (output instanceof Path) {
-				iosOutput = new FileImageOutputStream(((Path) output).toFile());
+			if (output instanceof File || output instanceof Path) {
+				// assemble file in memory and write it once when closed
+				final Path path = output instanceof File ? ((File) output)
+						.toPath() : (Path) output;
+				final FileChannel channel = FileChannel.open(path,
+						StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+				try {
+					if (channel.size() > 0) {
+						badOutput = true;
+						throw new IIOException("Stream not empty.");
+					}
+				} finally {
+					if (badOutput)
+						channel.close();
+				}
+				iosOutput = new GatheringImageOutputStream(channel);
 				internalOutput = true;
 			} else if (output instanceof ImageOutputStream) {
 				iosOutput = (ImageOutputStream) output;
@@ -238,53 +408,81 @@ public class BLPWriter extends ImageWriter {
 		// create source Raster
 		int width = sourceRegion.width;
 		int height = sourceRegion.height;
-		Raster imRas = im.getData(sourceRegion);
-		int numBands = imRas.getNumBands();
-
-		// validate source bands
-		if (sourceBands != null) {
-			for (int i = 0; i < sourceBands.length; i++) {
-				final int bandOff = sourceBands[i];
-				if (bandOff < 0 || numBands <= bandOff) {
-					throw new IllegalArgumentException("Bad source bands.");
+		final ColorModel srcCM = im.getColorModel();
+		BufferedImage destImg;
+		if (sourceRegion.x == im.getMinX() && sourceRegion.y == im.getMinY()
+				&& width == im.getWidth() && height == im.getHeight()
+				&& sourceXSubsampling == 1 && sourceYSubsampling == 1
+				&& sourceBands == null && destOff.x == 0 && destOff.y == 0) {
+			// trivial case so use source directly
+			destImg = wrapRenderedImage(im);
+		} else {
+			// avoid a copy when source raster is directly accessible
+			Raster imRas = im instanceof BufferedImage ? ((BufferedImage) im)
+					.getRaster() : im.getData(sourceRegion);
+			int numBands = imRas.getNumBands();
+
+			// validate source bands
+			if (sourceBands != null) {
+				for (int i = 0; i < sourceBands.length; i++) {
+					final int bandOff = sourceBands[i];
+					if (bandOff < 0 || numBands <= bandOff) {
+						throw new IllegalArgumentException("Bad source bands.");
+					}
 				}
 			}
-		}
 
-		// translate raster and apply bands
-		imRas = imRas.createChild(sourceRegion.x, sourceRegion.y, width,
-				height, 0, 0, sourceBands);
-
-		// apply subsampling to width and height
-		width = (width + sourceXSubsampling - 1) / sourceXSubsampling;
-		height = (height + sourceYSubsampling - 1) / sourceYSubsampling;
-
-		// create and fill destination WritableRaster
-		WritableRaster destWR = imRas.createCompatibleWritableRaster(destOff.x,
-				destOff.y, width + destOff.x, height + destOff.y);
-		Object transferCache = null;
-		for (int y = 0; y < height; y += 1) {
-			for (int x = 0; x < width; x += 1) {
-				transferCache = imRas.getDataElements(x * sourceXSubsampling, y
-						* sourceYSubsampling, transferCache);
-				destWR.setDataElements(x, y, transferCache);
+			// translate raster and apply bands
+			imRas = imRas.createChild(sourceRegion.x, sourceRegion.y, width,
+					height, 0, 0, sourceBands);
+			numBands = imRas.getNumBands();
+
+			// apply subsampling to width and height
+			width = (width + sourceXSubsampling - 1) / sourceXSubsampling;
+			height = (height + sourceYSubsampling - 1) / sourceYSubsampling;
+
+			// create and fill destination WritableRaster
+			WritableRaster destWR = imRas.createCompatibleWritableRaster(
+					width + destOff.x, height + destOff.y);
+			final int rowSpan = (width - 1) * sourceXSubsampling + 1;
+			int[] srcRow = null;
+			final int[] destRow = sourceXSubsampling == 1 ? null
+					: new int[width * numBands];
+			for (int y = 0; y < height; y += 1) {
+				srcRow = imRas.getPixels(0, y * sourceYSubsampling, rowSpan, 1,
+						srcRow);
+				if (destRow == null) {
+					destWR.setPixels(destOff.x, destOff.y + y, width, 1, srcRow);
+				} else {
+					final int srcStep = sourceXSubsampling * numBands;
+					for (int x = 0; x < width; x += 1) {
+						System.arraycopy(srcRow, x * srcStep, destRow, x
+								* numBands, numBands);
+					}
+					destWR.setPixels(destOff.x, destOff.y + y, width, 1,
+							destRow);
+				}
 			}
-		}
 
-		// create destination BufferedImage
-		ColorModel srcCM = im.getColorModel();
-		BufferedImage destImg = new BufferedImage(srcCM, destWR,
-				srcCM.isAlphaPremultiplied(), null);
+			// create destination BufferedImage
+			destImg = new BufferedImage(srcCM, destWR,
+					srcCM.isAlphaPremultiplied(), null);
+		}
 		int destW = destImg.getWidth();
 		int destH = destImg.getHeight();
 
 		// stream setup
 		if (imageIndex == 0) {
 			// process stream metadata
-			if (!(streamMetadata instanceof BLPStreamMetadata)) {
+			final boolean convertedMetadata = !(streamMetadata instanceof BLPStreamMetadata);
+			if (convertedMetadata) {
 				streamMetadata = convertStreamMetadata(streamMetadata, param);
 			}
 			this.streamMetadata = (BLPStreamMetadata) streamMetadata;
+			if (this.streamMetadata.getEncodingType().minVersion > this.streamMetadata
+					.getVersion())
+				throw new IIOException(
+						"Encoding type not supported by BLP version.");
 
 			// resolve output image dimensions
 			boolean rescaleDest = false;
@@ -312,7 +510,7 @@ public class BLPWriter extends ImageWriter {
 			}
 			this.streamMetadata.setHeight(destH);
 			this.streamMetadata.setWidth(destW);
-			if (!(param instanceof BLPWriteParam)) {
+			if (convertedMetadata && !(param instanceof BLPWriteParam)) {
 				this.streamMetadata.setEncoding(BLPEncodingType.JPEG, srcCM.hasAlpha() ? (byte)8 : (byte)0);
 			}
 
@@ -349,13 +547,37 @@ public class BLPWriter extends ImageWriter {
 					throw new IllegalStateException(
 							"Version 0 can only be written to Path of File.");
 				ExternalMipmapManager emm = new ExternalMipmapManager(path);
-				mipmapWriter = new MipmapWriter() {
-					@Override
-					public void setMipmapDataChunk(int mipmap, byte[] mmData)
-							throws IOException {
-						emm.setMipmapDataChunk(mipmap, mmData);
-					}
-				};
+				if (param instanceof BLPWriteParam
+						&& ((BLPWriteParam) param).isAtomicMipmapFiles()) {
+					// stage mipmap files and commit once all are written
+					mipmapWriter = new MipmapWriter() {
+						@Override
+						public void setMipmapDataChunk(int mipmap,
+								ByteBuffer mmData) throws IOException {
+							emm.stageMipmapDataChunk(mipmap, mmData,
+									ForkJoinPool.commonPool());
+						}
+
+						@Override
+						public void endMipmapSequence(int mipmapCount)
+								throws IOException {
+							emm.commitStaged(mipmapCount);
+						}
+
+						@Override
+						public void dispose() {
+							emm.discardStaged();
+						}
+					};
+				} else {
+					mipmapWriter = new MipmapWriter() {
+						@Override
+						public void setMipmapDataChunk(int mipmap,
+								ByteBuffer mmData) throws IOException {
+							emm.setMipmapDataChunk(mipmap, mmData);
+						}
+					};
+				}
 			} else {
 				// internal mipmaps
 				InternalMipmapManager imm = new InternalMipmapManager();
@@ -380,9 +602,14 @@ public class BLPWriter extends ImageWriter {
 					}
 
 					@Override
-					public void setMipmapDataChunk(int mipmap, byte[] mmData)
+					public void setMipmapDataChunk(int mipmap, ByteBuffer mmData)
 							throws IOException {
-						imm.setMipmapDataChunk(iosOutput, mipmap, mmData);
+						if (iosOutput instanceof GatheringImageOutputStream)
+							imm.setMipmapDataChunk(
+									(GatheringImageOutputStream) iosOutput,
+									mipmap, mmData);
+						else
+							imm.setMipmapDataChunk(iosOutput, mipmap, mmData);
 					}
 				};
 			}
@@ -397,6 +624,30 @@ public class BLPWriter extends ImageWriter {
 				break;
 			case JPEG:
 				mipmapProcessor = new JPEGMipmapProcessor(
+						this.streamMetadata.getAlphaBits(),
+						param instanceof BLPWriteParam
+								&& ((BLPWriteParam) param).isJPEGFixedTables());
+				break;
+			case DXT1:
+				mipmapProcessor = new DXT1MipmapProcessor(
+						this.streamMetadata.getAlphaBits());
+				break;
+			case DXT3:
+				mipmapProcessor = new DXT3MipmapProcessor(
+						this.streamMetadata.getAlphaBits());
+				break;
+			case DXT5:
+				mipmapProcessor = new DXT5MipmapProcessor(
+						this.streamMetadata.getAlphaBits());
+				break;
+			case BGRA8888:
+				mipmapProcessor = new BGRA8888MipmapProcessor(
+						this.streamMetadata.getAlphaBits());
+				break;
+			case BGRA5551:
+			case BGRA4444:
+			case BGR565:
+				mipmapProcessor = new PackedMipmapProcessor(encodingType,
 						this.streamMetadata.getAlphaBits());
 				break;
 			case UNKNOWN:
@@ -409,7 +660,7 @@ public class BLPWriter extends ImageWriter {
 			this.streamMetadata.writeObject(iosOutput);
 			mipmapWriter.writeMipmapManager(iosOutput);
 
-			mmDataList = new ArrayList<byte[]>(
+			mmDataList = new ArrayList<ByteBuffer>(
 					this.streamMetadata.getMipmapCount());
 		}
 
@@ -426,12 +677,35 @@ public class BLPWriter extends ImageWriter {
 					String.format(
 							"Invalid image dimensions: Got %d*%d pixels requires %d*%d pixels.",
 							destW, destH, mmW, mmH));
-		
+
+		// encode with JPEG byte budget
+		if (imageIndex == 0 && param instanceof BLPWriteParam
+				&& mipmapProcessor instanceof JPEGMipmapProcessor) {
+			final BLPWriteParam blpParam = (BLPWriteParam) param;
+			if (blpParam.getJPEGTargetSize() > 0
+					|| blpParam.getJPEGLevelBudget() > 0) {
+				writeJPEGBudgeted(destImg, blpParam);
+				return;
+			}
+		}
+
+		// resolve auto mipmap
+		boolean autoMipmap = true;
+		if (param instanceof BLPWriteParam) {
+			autoMipmap = ((BLPWriteParam) param).isAutoMipmap();
+		}
+
 		// encode image
 		processImageStarted(imageIndex);
-		byte[] mmData = mipmapProcessor.encodeMipmap(destImg, param,
+		ByteBuffer mmData = mipmapProcessor.encodeMipmap(destImg, param,
 				warn -> this.processWarningOccurred(warn, imageIndex));
 
+		// mipmap data kept past this call must not share caller image data
+		if (!autoMipmap && imageIndex + 1 < mmCount
+				&& (mipmapProcessor.mustPostProcess()
+						|| iosOutput instanceof GatheringImageOutputStream))
+			mmData = detachMipmapData(mmData, im);
+
 		// write out mipmap data
 		if (mipmapProcessor.mustPostProcess()) {
 			mmDataList.add(mmData);
@@ -447,30 +721,14 @@ public class BLPWriter extends ImageWriter {
 		imageIndex += 1;
 		processImageComplete();
 
-		// resolve auto mipmap
-		boolean autoMipmap = true;
-		if (param instanceof BLPWriteParam) {
-			autoMipmap = ((BLPWriteParam) param).isAutoMipmap();
-		}
-
 		// apply auto mipmaps
 		if (autoMipmap) {
-			RenderingHints rh = new RenderingHints(
-					RenderingHints.KEY_INTERPOLATION,
-					RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
 			while (imageIndex < mmCount) {
 				// create scaled image
 				processImageStarted(imageIndex);
 				mmH = this.streamMetadata.getHeight(imageIndex);
 				mmW = this.streamMetadata.getWidth(imageIndex);
-				BufferedImage mmImg = new BufferedImage(srcCM, destImg
-						.getRaster().createCompatibleWritableRaster(mmW, mmH),
-						srcCM.isAlphaPremultiplied(), null);
-				Graphics2D graphics = mmImg.createGraphics();
-				graphics.setRenderingHints(rh);
-				graphics.drawImage(destImg.getScaledInstance(mmW, mmH,
-						Image.SCALE_AREA_AVERAGING), 0, 0, mmW, mmH, null);
-				graphics.dispose();
+				BufferedImage mmImg = createMipmapImage(destImg, mmW, mmH);
 
 				// encode image
 				mmData = mipmapProcessor.encodeMipmap(mmImg, param,
@@ -502,6 +760,7 @@ public class BLPWriter extends ImageWriter {
 				mipmapWriter.writeMipmapManager(iosOutput);
 				mmDataList.clear();
 			}
+			mipmapWriter.endMipmapSequence(mmCount);
 
 			// close internal image output stream
 			if (internalOutput) {
@@ -534,6 +793,14 @@ public class BLPWriter extends ImageWriter {
 					"com.hiveworkshop.text.blp", "IncompleteFile"), -1);
 		}
 
+		// release processor resources
+		if (mipmapProcessor != null)
+			mipmapProcessor.dispose();
+
+		// discard uncommitted mipmap data
+		if (mipmapWriter != null)
+			mipmapWriter.dispose();
+
 		// reset state
 		imageIndex = 0;
 		streamMetadata = null;
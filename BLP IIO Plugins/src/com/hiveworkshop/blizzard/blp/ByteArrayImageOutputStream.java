@@ -0,0 +1,124 @@
+package com.hiveworkshop.blizzard.blp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.imageio.stream.ImageOutputStreamImpl;
+
+/**
+ * ImageOutputStream that writes directly into a growable byte array.
+ * <p>
+ * Unlike MemoryCacheImageOutputStream there is no intermediate cache or
+ * destination OutputStream so written data is never copied other than when
+ * the array has to grow. The written data can be obtained as a ByteBuffer
+ * backed by the array without any copy.
+ * <p>
+ * The stream is fully seekable. Flushing has no effect on the stored data.
+ *
+ * @author Imperial Good
+ */
+class ByteArrayImageOutputStream extends ImageOutputStreamImpl {
+	/**
+	 * The array holding written data.
+	 */
+	private byte[] buff;
+
+	/**
+	 * The number of valid bytes in buff.
+	 */
+	private int length = 0;
+
+	/**
+	 * Constructs a stream with the specified initial capacity in bytes.
+	 *
+	 * @param capacity
+	 *            the initial array length.
+	 * @throws IllegalArgumentException
+	 *             if capacity is negative.
+	 */
+	public ByteArrayImageOutputStream(int capacity) {
+		if (capacity < 0)
+			throw new IllegalArgumentException("Negative capacity.");
+		buff = new byte[capacity];
+	}
+
+	/**
+	 * Grows the array so that it can hold at least the specified number of
+	 * bytes.
+	 *
+	 * @param required
+	 *            the required array length.
+	 * @throws IOException
+	 *             if required is too big for an array.
+	 */
+	private void ensureCapacity(long required) throws IOException {
+		if (required > Integer.MAX_VALUE - 8)
+			throw new IOException("Stream too big.");
+		if (required > buff.length)
+			buff = Arrays.copyOf(buff,
+					(int) Math.min(Math.max(required, (long) buff.length * 2),
+							Integer.MAX_VALUE - 8));
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		checkClosed();
+		flushBits();
+		ensureCapacity(streamPos + 1);
+		buff[(int) streamPos] = (byte) b;
+		streamPos += 1;
+		length = Math.max(length, (int) streamPos);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		checkClosed();
+		flushBits();
+		ensureCapacity(streamPos + len);
+		System.arraycopy(b, off, buff, (int) streamPos, len);
+		streamPos += len;
+		length = Math.max(length, (int) streamPos);
+	}
+
+	@Override
+	public int read() throws IOException {
+		checkClosed();
+		bitOffset = 0;
+		if (streamPos >= length)
+			return -1;
+		return buff[(int) streamPos++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		checkClosed();
+		bitOffset = 0;
+		if (len == 0)
+			return 0;
+		if (streamPos >= length)
+			return -1;
+		final int num = (int) Math.min(len, length - streamPos);
+		System.arraycopy(buff, (int) streamPos, b, off, num);
+		streamPos += num;
+		return num;
+	}
+
+	@Override
+	public long length() {
+		return length;
+	}
+
+	/**
+	 * Returns the written data as a ByteBuffer backed by the stream array.
+	 * <p>
+	 * The buffer position is 0 and the limit is the stream length. Further
+	 * writes to this stream may modify the content of the returned buffer so
+	 * the stream should be discarded if the buffer is retained.
+	 *
+	 * @return the written data.
+	 */
+	public ByteBuffer toByteBuffer() {
+		return ByteBuffer.wrap(buff, 0, length).slice();
+	}
+}
@@ -0,0 +1,88 @@
+package com.hiveworkshop.blizzard.blp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+
+/**
+ * ImageInputStream that reads from data already in memory.
+ * <p>
+ * Unlike MemoryCacheImageInputStream there is no cache, data is read directly
+ * from the buffer. Sections of the data can be obtained as read-only slices
+ * sharing the buffer content so that large blocks such as mipmap data chunks
+ * need not be copied. Both heap and direct buffers are supported.
+ * <p>
+ * The stream content is the data between the position and limit of the buffer
+ * when the stream is constructed. Changes to the buffer position and limit
+ * afterwards have no effect on the stream.
+ *
+ * @author Imperial Good
+ */
+class ByteBufferImageInputStream extends ImageInputStreamImpl {
+	/**
+	 * The stream content. Position is not used.
+	 */
+	private final ByteBuffer data;
+
+	/**
+	 * Constructs a stream reading the content of the specified buffer.
+	 *
+	 * @param data
+	 *            the buffer containing the stream content.
+	 */
+	public ByteBufferImageInputStream(ByteBuffer data) {
+		this.data = data.slice();
+	}
+
+	@Override
+	public int read() throws IOException {
+		checkClosed();
+		bitOffset = 0;
+		if (streamPos >= data.limit())
+			return -1;
+		return data.get((int) streamPos++) & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		checkClosed();
+		if (off < 0 || len < 0 || off + len > b.length || off + len < 0)
+			throw new IndexOutOfBoundsException();
+		bitOffset = 0;
+		if (len == 0)
+			return 0;
+		if (streamPos >= data.limit())
+			return -1;
+		final int num = (int) Math.min(len, data.limit() - streamPos);
+		data.duplicate().position((int) streamPos).get(b, off, num);
+		streamPos += num;
+		return num;
+	}
+
+	@Override
+	public long length() {
+		return data.limit();
+	}
+
+	/**
+	 * Returns a read-only slice of the stream content without copying. The
+	 * slice is truncated if it extends past the end of the stream. The stream
+	 * position is unaffected.
+	 *
+	 * @param offset
+	 *            the stream offset of the slice.
+	 * @param size
+	 *            the slice size in bytes.
+	 * @return a buffer holding the slice between position 0 and its limit.
+	 * @throws IOException
+	 *             if the stream is closed.
+	 */
+	public ByteBuffer slice(long offset, int size) throws IOException {
+		checkClosed();
+		final int start = (int) Math.min(offset, data.limit());
+		final int end = (int) Math.min((long) start + size, data.limit());
+		return data.duplicate().position(start).limit(end).slice()
+				.asReadOnlyBuffer();
+	}
+}
@@ -0,0 +1,536 @@
+package com.hiveworkshop.blizzard.blp;
+
+import static com.hiveworkshop.blizzard.blp.BLPCommon.INDEXED_PALETTE_SIZE;
+import static com.hiveworkshop.blizzard.blp.BLPCommon.MIPMAP_MAX;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import javax.imageio.IIOException;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import com.hiveworkshop.lang.MagicInt;
+
+/**
+ * Lossless conversion between BLP version 2 files and DDS files.
+ * <p>
+ * The mipmap data of DXT1, DXT3, DXT5, BGRA8888, BGRA5551, BGRA4444 and BGR565
+ * content is stored identically by both formats, so conversion only rewrites
+ * the file header and mipmap chunk table. Mipmap data is never decoded and is
+ * moved between files using channel transfers, allowing the operating system
+ * to copy it without passing through the Java heap.
+ * <p>
+ * DDS files are written with a legacy header. DDS files with either a legacy
+ * header or a DX10 extended header can be read. Only 2D textures with either a
+ * single mipmap level or a full mipmap chain are supported, as BLP files cannot
+ * represent other textures. Alpha bits are taken from the alpha pixels flag of
+ * the DDS pixel format, or for DX10 headers from the DXGI format and alpha
+ * mode. DXT3 and DXT5 content always use 8 bit alpha.
+ *
+ * @author Imperial Good
+ */
+public final class DDSConverter {
+	/**
+	 * DDS file magic.
+	 */
+	private static final MagicInt DDS_MAGIC = new MagicInt("DDS ");
+
+	/**
+	 * DX10 extended header FourCC.
+	 */
+	private static final MagicInt DX10_FOURCC = new MagicInt("DX10");
+
+	/**
+	 * Size of the DDS magic and header in bytes.
+	 */
+	private static final int DDS_HEADER_SIZE = 128;
+
+	/**
+	 * Size of the DX10 extended header in bytes.
+	 */
+	private static final int DX10_HEADER_SIZE = 20;
+
+	/**
+	 * Size of the BLP version 2 header, mipmap chunk table and palette in
+	 * bytes.
+	 */
+	private static final int BLP2_HEADER_SIZE = 20 + MIPMAP_MAX * 8
+			+ INDEXED_PALETTE_SIZE * 4;
+
+	// DDS header flags
+	private static final int DDSD_CAPS = 0x1;
+	private static final int DDSD_HEIGHT = 0x2;
+	private static final int DDSD_WIDTH = 0x4;
+	private static final int DDSD_PITCH = 0x8;
+	private static final int DDSD_PIXELFORMAT = 0x1000;
+	private static final int DDSD_MIPMAPCOUNT = 0x20000;
+	private static final int DDSD_LINEARSIZE = 0x80000;
+
+	// DDS pixel format flags
+	private static final int DDPF_ALPHAPIXELS = 0x1;
+	private static final int DDPF_FOURCC = 0x4;
+	private static final int DDPF_RGB = 0x40;
+
+	// DDS capabilities
+	private static final int DDSCAPS_COMPLEX = 0x8;
+	private static final int DDSCAPS_TEXTURE = 0x1000;
+	private static final int DDSCAPS_MIPMAP = 0x400000;
+	private static final int DDSCAPS2_CUBEMAP = 0x200;
+	private static final int DDSCAPS2_VOLUME = 0x200000;
+
+	// DX10 header values
+	private static final int D3D10_RESOURCE_DIMENSION_TEXTURE2D = 3;
+	private static final int D3D10_RESOURCE_MISC_TEXTURECUBE = 0x4;
+	private static final int DDS_ALPHA_MODE_MASK = 0x7;
+	private static final int DDS_ALPHA_MODE_OPAQUE = 0x3;
+
+	/**
+	 * Encoding types of DXGI formats, indexed by DXGI format value.
+	 */
+	private static final BLPEncodingType[] DXGI_FORMATS =
+			new BLPEncodingType[116];
+
+	static {
+		DXGI_FORMATS[71] = BLPEncodingType.DXT1; // BC1_UNORM
+		DXGI_FORMATS[72] = BLPEncodingType.DXT1; // BC1_UNORM_SRGB
+		DXGI_FORMATS[74] = BLPEncodingType.DXT3; // BC2_UNORM
+		DXGI_FORMATS[75] = BLPEncodingType.DXT3; // BC2_UNORM_SRGB
+		DXGI_FORMATS[77] = BLPEncodingType.DXT5; // BC3_UNORM
+		DXGI_FORMATS[78] = BLPEncodingType.DXT5; // BC3_UNORM_SRGB
+		DXGI_FORMATS[85] = BLPEncodingType.BGR565; // B5G6R5_UNORM
+		DXGI_FORMATS[86] = BLPEncodingType.BGRA5551; // B5G5R5A1_UNORM
+		DXGI_FORMATS[87] = BLPEncodingType.BGRA8888; // B8G8R8A8_UNORM
+		DXGI_FORMATS[88] = BLPEncodingType.BGRA8888; // B8G8R8X8_UNORM
+		DXGI_FORMATS[91] = BLPEncodingType.BGRA8888; // B8G8R8A8_UNORM_SRGB
+		DXGI_FORMATS[93] = BLPEncodingType.BGRA8888; // B8G8R8X8_UNORM_SRGB
+		DXGI_FORMATS[115] = BLPEncodingType.BGRA4444; // B4G4R4A4_UNORM
+	}
+
+	/**
+	 * Whether DXGI formats have an alpha channel, indexed by DXGI format value.
+	 */
+	private static final boolean[] DXGI_ALPHA = new boolean[116];
+
+	static {
+		DXGI_ALPHA[71] = true; // BC1_UNORM
+		DXGI_ALPHA[72] = true; // BC1_UNORM_SRGB
+		DXGI_ALPHA[74] = true; // BC2_UNORM
+		DXGI_ALPHA[75] = true; // BC2_UNORM_SRGB
+		DXGI_ALPHA[77] = true; // BC3_UNORM
+		DXGI_ALPHA[78] = true; // BC3_UNORM_SRGB
+		DXGI_ALPHA[86] = true; // B5G5R5A1_UNORM
+		DXGI_ALPHA[87] = true; // B8G8R8A8_UNORM
+		DXGI_ALPHA[91] = true; // B8G8R8A8_UNORM_SRGB
+		DXGI_ALPHA[115] = true; // B4G4R4A4_UNORM
+	}
+
+	private DDSConverter() {
+	}
+
+	/**
+	 * Get the red, green, blue and alpha bit masks of uncompressed encoding
+	 * types in DDS pixel format order.
+	 *
+	 * @param encodingType
+	 *            the encoding type.
+	 * @return the bit masks, or null if the encoding type is compressed.
+	 */
+	private static int[] getBitMasks(BLPEncodingType encodingType) {
+		switch (encodingType) {
+		case BGRA8888:
+			return new int[] { 0x00FF0000, 0x0000FF00, 0x000000FF, 0xFF000000 };
+		case BGRA5551:
+			return new int[] { 0x7C00, 0x03E0, 0x001F, 0x8000 };
+		case BGRA4444:
+			return new int[] { 0x0F00, 0x00F0, 0x000F, 0xF000 };
+		case BGR565:
+			return new int[] { 0xF800, 0x07E0, 0x001F, 0 };
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Get the size of a mipmap level in bytes.
+	 *
+	 * @param encodingType
+	 *            the encoding type.
+	 * @param width
+	 *            the mipmap width in pixels.
+	 * @param height
+	 *            the mipmap height in pixels.
+	 * @return the mipmap level size in bytes.
+	 * @throws IIOException
+	 *             if the encoding type is not supported by DDS.
+	 */
+	private static long getLevelSize(BLPEncodingType encodingType, int width,
+			int height) throws IIOException {
+		final long blocks = (long) ((width + 3) / 4) * ((height + 3) / 4);
+		final long pixels = (long) width * height;
+		switch (encodingType) {
+		case DXT1:
+			return blocks * 8;
+		case DXT3:
+		case DXT5:
+			return blocks * 16;
+		case BGRA8888:
+			return pixels * 4;
+		case BGRA5551:
+		case BGRA4444:
+		case BGR565:
+			return pixels * 2;
+		default:
+			throw new IIOException("Encoding type not supported by DDS: "
+					+ encodingType + ".");
+		}
+	}
+
+	/**
+	 * Reads bytes from a channel position until the buffer is full.
+	 *
+	 * @param src
+	 *            the channel.
+	 * @param position
+	 *            the channel position.
+	 * @param size
+	 *            the number of bytes.
+	 * @return a little endian buffer holding the bytes.
+	 * @throws IOException
+	 *             if end of file is reached or an IOException occurs.
+	 */
+	private static ByteBuffer readFully(FileChannel src, long position,
+			int size) throws IOException {
+		final ByteBuffer buff = ByteBuffer.allocate(size).order(
+				ByteOrder.LITTLE_ENDIAN);
+		while (buff.hasRemaining()) {
+			if (src.read(buff, position + buff.position()) < 0)
+				throw new IIOException("Unexpected end of file.");
+		}
+		buff.flip();
+		return buff;
+	}
+
+	/**
+	 * Writes all remaining bytes of a buffer to a channel.
+	 *
+	 * @param dst
+	 *            the channel.
+	 * @param buff
+	 *            the buffer.
+	 * @throws IOException
+	 *             if an IOException occurs.
+	 */
+	private static void writeFully(WritableByteChannel dst, ByteBuffer buff)
+			throws IOException {
+		while (buff.hasRemaining())
+			dst.write(buff);
+	}
+
+	/**
+	 * Transfers bytes from a channel position to a channel.
+	 *
+	 * @param src
+	 *            the source channel.
+	 * @param position
+	 *            the source channel position.
+	 * @param count
+	 *            the number of bytes.
+	 * @param dst
+	 *            the destination channel.
+	 * @throws IOException
+	 *             if end of file is reached or an IOException occurs.
+	 */
+	private static void transfer(FileChannel src, long position, long count,
+			WritableByteChannel dst) throws IOException {
+		while (count > 0) {
+			final long transferred = src.transferTo(position, count, dst);
+			if (transferred <= 0)
+				throw new IIOException("Unexpected end of file.");
+			position += transferred;
+			count -= transferred;
+		}
+	}
+
+	/**
+	 * Converts a BLP version 2 file into a DDS file.
+	 *
+	 * @param src
+	 *            path of the BLP file.
+	 * @param dst
+	 *            path of the DDS file, which is created or replaced.
+	 * @throws IOException
+	 *             if the BLP file cannot be converted or an IOException
+	 *             occurs.
+	 */
+	public static void convertBLPToDDS(Path src, Path dst) throws IOException {
+		try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(dst,
+						StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+			convertBLPToDDS(in, out);
+		}
+	}
+
+	/**
+	 * Converts a BLP version 2 file into a DDS file.
+	 * <p>
+	 * The BLP file is read from the start of the source channel and the DDS
+	 * file is written at the current position of the destination channel.
+	 *
+	 * @param src
+	 *            channel of the BLP file.
+	 * @param dst
+	 *            channel to write the DDS file to.
+	 * @throws IOException
+	 *             if the BLP file cannot be converted or an IOException
+	 *             occurs.
+	 */
+	public static void convertBLPToDDS(FileChannel src, WritableByteChannel dst)
+			throws IOException {
+		// read BLP header and mipmap chunk table
+		final BLPStreamMetadata streamMeta = new BLPStreamMetadata();
+		final InternalMipmapManager imm = new InternalMipmapManager();
+		final ByteBuffer header = readFully(src, 0,
+				BLP2_HEADER_SIZE - INDEXED_PALETTE_SIZE * 4);
+		try (ImageInputStream iis = new MemoryCacheImageInputStream(
+				new ByteArrayInputStream(header.array()))) {
+			streamMeta.readObject(iis);
+			if (streamMeta.getVersion() != 2)
+				throw new IIOException("Only BLP version 2 can be converted.");
+			imm.readObject(iis);
+		}
+
+		// validate mipmap data chunks
+		final BLPEncodingType encodingType = streamMeta.getEncodingType();
+		final int mipmapCount = streamMeta.getMipmapCount();
+		final long fileSize = src.size();
+		for (int i = 0; i < mipmapCount; i += 1) {
+			final long expected = getLevelSize(encodingType,
+					streamMeta.getWidth(i), streamMeta.getHeight(i));
+			final long size = imm.getMipmapDataChunkSize(i);
+			if (size != expected)
+				throw new IIOException(String.format(
+						"Mipmap %d has %d bytes, expected %d bytes.", i, size,
+						expected));
+			if (imm.getMipmapDataChunkOffset(i) + size > fileSize)
+				throw new IIOException(String.format(
+						"Mipmap %d extends beyond end of file.", i));
+		}
+
+		// write DDS header
+		final boolean hasAlpha = streamMeta.getAlphaBits() != 0;
+		final int[] masks = getBitMasks(encodingType);
+		final ByteArrayImageOutputStream ddsHeader =
+				new ByteArrayImageOutputStream(DDS_HEADER_SIZE);
+		ddsHeader.setByteOrder(ByteOrder.LITTLE_ENDIAN);
+		ddsHeader.writeInt(DDS_MAGIC.toInt(ByteOrder.LITTLE_ENDIAN));
+		ddsHeader.writeInt(DDS_HEADER_SIZE - 4);
+		ddsHeader.writeInt(DDSD_CAPS | DDSD_HEIGHT | DDSD_WIDTH
+				| DDSD_PIXELFORMAT | (mipmapCount > 1 ? DDSD_MIPMAPCOUNT : 0)
+				| (masks == null ? DDSD_LINEARSIZE : DDSD_PITCH));
+		ddsHeader.writeInt(streamMeta.getHeight());
+		ddsHeader.writeInt(streamMeta.getWidth());
+		// linear size of compressed content, otherwise pitch
+		final int pitchRows = masks == null ? streamMeta.getHeight() : 1;
+		ddsHeader.writeInt((int) getLevelSize(encodingType,
+				streamMeta.getWidth(), pitchRows));
+		ddsHeader.writeInt(0); // depth
+		ddsHeader.writeInt(mipmapCount);
+		ddsHeader.writeInts(new int[11], 0, 11); // reserved
+
+		// write pixel format
+		ddsHeader.writeInt(32);
+		if (masks == null) {
+			ddsHeader.writeInt(DDPF_FOURCC | (hasAlpha ? DDPF_ALPHAPIXELS : 0));
+			ddsHeader.writeInt(new MagicInt(encodingType.name()).toInt(
+					ByteOrder.LITTLE_ENDIAN));
+			ddsHeader.writeInts(new int[5], 0, 5);
+		} else {
+			ddsHeader.writeInt(DDPF_RGB | (hasAlpha ? DDPF_ALPHAPIXELS : 0));
+			ddsHeader.writeInt(0);
+			ddsHeader.writeInt(encodingType == BLPEncodingType.BGRA8888 ? 32
+					: 16);
+			ddsHeader.writeInt(masks[0]);
+			ddsHeader.writeInt(masks[1]);
+			ddsHeader.writeInt(masks[2]);
+			ddsHeader.writeInt(hasAlpha ? masks[3] : 0);
+		}
+
+		// write capabilities
+		ddsHeader.writeInt(DDSCAPS_TEXTURE
+				| (mipmapCount > 1 ? DDSCAPS_COMPLEX | DDSCAPS_MIPMAP : 0));
+		ddsHeader.writeInts(new int[4], 0, 4);
+		writeFully(dst, ddsHeader.toByteBuffer());
+
+		// transfer mipmap data
+		for (int i = 0; i < mipmapCount; i += 1)
+			transfer(src, imm.getMipmapDataChunkOffset(i),
+					imm.getMipmapDataChunkSize(i), dst);
+	}
+
+	/**
+	 * Converts a DDS file into a BLP version 2 file.
+	 *
+	 * @param src
+	 *            path of the DDS file.
+	 * @param dst
+	 *            path of the BLP file, which is created or replaced.
+	 * @throws IOException
+	 *             if the DDS file cannot be converted or an IOException
+	 *             occurs.
+	 */
+	public static void convertDDSToBLP(Path src, Path dst) throws IOException {
+		try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(dst,
+						StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+			convertDDSToBLP(in, out);
+		}
+	}
+
+	/**
+	 * Converts a DDS file into a BLP version 2 file.
+	 * <p>
+	 * The DDS file is read from the start of the source channel and the BLP
+	 * file is written at the current position of the destination channel.
+	 *
+	 * @param src
+	 *            channel of the DDS file.
+	 * @param dst
+	 *            channel to write the BLP file to.
+	 * @throws IOException
+	 *             if the DDS file cannot be converted or an IOException
+	 *             occurs.
+	 */
+	public static void convertDDSToBLP(FileChannel src, WritableByteChannel dst)
+			throws IOException {
+		// read DDS header
+		final ByteBuffer header = readFully(src, 0, DDS_HEADER_SIZE);
+		if (!new MagicInt(header.getInt(0), ByteOrder.LITTLE_ENDIAN)
+				.equals(DDS_MAGIC))
+			throw new IIOException("Not valid DDS file magic.");
+		final int flags = header.getInt(8);
+		final int height = header.getInt(12);
+		final int width = header.getInt(16);
+		final int ddsMipmaps = (flags & DDSD_MIPMAPCOUNT) != 0 ? Math.max(
+				header.getInt(28), 1) : 1;
+		final int pfFlags = header.getInt(80);
+		final int fourCC = header.getInt(84);
+		final int caps2 = header.getInt(112);
+		if ((caps2 & (DDSCAPS2_CUBEMAP | DDSCAPS2_VOLUME)) != 0)
+			throw new IIOException("Only 2D DDS textures can be converted.");
+
+		// resolve encoding
+		boolean hasAlpha = (pfFlags & DDPF_ALPHAPIXELS) != 0;
+		BLPEncodingType encodingType = null;
+		long dataOffset = DDS_HEADER_SIZE;
+		if ((pfFlags & DDPF_FOURCC) != 0) {
+			final MagicInt format = new MagicInt(fourCC,
+					ByteOrder.LITTLE_ENDIAN);
+			if (format.equals(DX10_FOURCC)) {
+				final ByteBuffer dx10 = readFully(src, DDS_HEADER_SIZE,
+						DX10_HEADER_SIZE);
+				final int dxgiFormat = dx10.getInt(0);
+				final int miscFlag = dx10.getInt(8);
+				if (dx10.getInt(4) != D3D10_RESOURCE_DIMENSION_TEXTURE2D
+						|| (miscFlag & D3D10_RESOURCE_MISC_TEXTURECUBE) != 0
+						|| dx10.getInt(12) > 1)
+					throw new IIOException(
+							"Only 2D DDS textures can be converted.");
+				if (0 <= dxgiFormat && dxgiFormat < DXGI_FORMATS.length) {
+					encodingType = DXGI_FORMATS[dxgiFormat];
+					// alpha presence is implied by format and alpha mode
+					final int alphaMode = dx10.getInt(16)
+							& DDS_ALPHA_MODE_MASK;
+					hasAlpha = DXGI_ALPHA[dxgiFormat]
+							&& alphaMode != DDS_ALPHA_MODE_OPAQUE;
+				}
+				dataOffset += DX10_HEADER_SIZE;
+			} else {
+				for (BLPEncodingType type : new BLPEncodingType[] {
+						BLPEncodingType.DXT1, BLPEncodingType.DXT3,
+						BLPEncodingType.DXT5 }) {
+					if (format.equals(new MagicInt(type.name())))
+						encodingType = type;
+				}
+			}
+		} else if ((pfFlags & DDPF_RGB) != 0) {
+			final int bitCount = header.getInt(88);
+			for (BLPEncodingType type : new BLPEncodingType[] {
+					BLPEncodingType.BGRA8888, BLPEncodingType.BGRA5551,
+					BLPEncodingType.BGRA4444, BLPEncodingType.BGR565 }) {
+				final int[] masks = getBitMasks(type);
+				if (bitCount == (type == BLPEncodingType.BGRA8888 ? 32 : 16)
+						&& header.getInt(92) == masks[0]
+						&& header.getInt(96) == masks[1]
+						&& header.getInt(100) == masks[2])
+					encodingType = type;
+			}
+		}
+		if (encodingType == null)
+			throw new IIOException("Unsupported DDS pixel format.");
+
+		// resolve alpha bits
+		final byte alphaBits;
+		if (encodingType == BLPEncodingType.DXT3
+				|| encodingType == BLPEncodingType.DXT5)
+			alphaBits = 8;
+		else if (hasAlpha)
+			alphaBits = encodingType.getBestAlphaBits();
+		else
+			alphaBits = 0;
+
+		// build BLP header
+		final BLPStreamMetadata streamMeta = new BLPStreamMetadata();
+		try {
+			streamMeta.setVersion(2);
+			streamMeta.setEncoding(encodingType, alphaBits);
+			streamMeta.setWidth(width);
+			streamMeta.setHeight(height);
+		} catch (IllegalArgumentException e) {
+			throw new IIOException("DDS file cannot be represented as BLP.", e);
+		}
+		streamMeta.setMipmaps(ddsMipmaps > 1);
+		final int mipmapCount = streamMeta.getMipmapCount();
+		if (mipmapCount != ddsMipmaps)
+			throw new IIOException(String.format(
+					"DDS file has %d mipmap levels, BLP requires %d.",
+					ddsMipmaps, mipmapCount));
+
+		// validate mipmap data size
+		long dataSize = 0;
+		for (int i = 0; i < mipmapCount; i += 1)
+			dataSize += getLevelSize(encodingType, streamMeta.getWidth(i),
+					streamMeta.getHeight(i));
+		if (dataOffset + dataSize > src.size())
+			throw new IIOException(
+					"DDS mipmap data extends beyond end of file.");
+
+		// write BLP header, mipmap chunk table and palette
+		final InternalMipmapManager imm = new InternalMipmapManager();
+		final ByteArrayImageOutputStream blpHeader =
+				new ByteArrayImageOutputStream(BLP2_HEADER_SIZE);
+		streamMeta.writeObject(blpHeader);
+		final long tablePos = blpHeader.getStreamPosition();
+		imm.writeObject(blpHeader);
+		blpHeader.writeInts(new int[INDEXED_PALETTE_SIZE], 0,
+				INDEXED_PALETTE_SIZE);
+		imm.setMipmapDataChunkBlockOffset(blpHeader);
+		for (int i = 0; i < mipmapCount; i += 1)
+			imm.allocateMipmapDataChunk(i, (int) getLevelSize(encodingType,
+					streamMeta.getWidth(i), streamMeta.getHeight(i)));
+		blpHeader.seek(tablePos);
+		imm.writeObject(blpHeader);
+		writeFully(dst, blpHeader.toByteBuffer());
+
+		// transfer mipmap data
+		transfer(src, dataOffset, dataSize, dst);
+	}
+}
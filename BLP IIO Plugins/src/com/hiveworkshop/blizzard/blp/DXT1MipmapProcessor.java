@@ -0,0 +1,66 @@
+package com.hiveworkshop.blizzard.blp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A class that is responsible for processing between mipmap data and DXT1
+ * compressed content.
+ * <p>
+ * Each 4*4 pixel block is 8 bytes holding only a color block. Both 0 and 1 bit
+ * alpha are supported. Blocks using the 3 color mode decode their transparent
+ * color as black, which is transparent with 1 bit alpha and opaque with 0 bit
+ * alpha. When encoding with 1 bit alpha, pixels with alpha less than half are
+ * encoded as transparent.
+ *
+ * @author Imperial Good
+ */
+class DXT1MipmapProcessor extends DXTMipmapProcessor {
+	/**
+	 * Bytes per compressed block.
+	 */
+	private static final int BLOCK_BYTES = 8;
+
+	/**
+	 * If 1 bit alpha is used.
+	 */
+	private final boolean hasAlpha;
+
+	/**
+	 * Constructs a MipmapProcessor for DXT1 content.
+	 *
+	 * @param alphaBits
+	 *            the alpha component bits, if any.
+	 * @throws IllegalArgumentException
+	 *             if alphaBits is not valid.
+	 */
+	public DXT1MipmapProcessor(int alphaBits) {
+		super(BLPEncodingType.DXT1, alphaBits, BLOCK_BYTES);
+		hasAlpha = alphaBits != 0;
+	}
+
+	@Override
+	protected void prepareBlock(ByteBuffer src, int off, int block, BlockRow row) {
+		prepareColorBlock(src, off, block, row, true);
+	}
+
+	@Override
+	protected void expandBlocks(DXTKernel kernel, BlockRow row, int blocks) {
+		kernel.expandColors(row.palettes, row.colorIndices, blocks, row.pixels);
+	}
+
+	@Override
+	protected void encodeBlock(DXTBlockEncoder encoder, int[] pixels,
+			int mask, byte[] dest, int off) {
+		// pixels with less than half alpha become transparent
+		int transparent = 0;
+		if (hasAlpha) {
+			for (int i = 0; i < 16; i += 1) {
+				if ((pixels[i] >>> 24) < 0x80)
+					transparent |= 1 << i;
+			}
+			transparent &= mask;
+		}
+		encoder.encodeColorBlock(pixels, mask & ~transparent, transparent,
+				true, dest, off);
+	}
+}
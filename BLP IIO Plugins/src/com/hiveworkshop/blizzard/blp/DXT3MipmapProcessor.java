@@ -0,0 +1,53 @@
+package com.hiveworkshop.blizzard.blp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A class that is responsible for processing between mipmap data and DXT3
+ * compressed content.
+ * <p>
+ * Each 4*4 pixel block is 16 bytes holding explicit 4 bit alpha values
+ * followed by a color block. The color block always uses the 4 color mode.
+ * Alpha values are expanded to 8 bits so 4 and 8 bit alpha decode the same.
+ *
+ * @author Imperial Good
+ */
+class DXT3MipmapProcessor extends DXTMipmapProcessor {
+	/**
+	 * Bytes per compressed block.
+	 */
+	private static final int BLOCK_BYTES = 16;
+
+	/**
+	 * Constructs a MipmapProcessor for DXT3 content.
+	 *
+	 * @param alphaBits
+	 *            the alpha component bits, if any.
+	 * @throws IllegalArgumentException
+	 *             if alphaBits is not valid.
+	 */
+	public DXT3MipmapProcessor(int alphaBits) {
+		super(BLPEncodingType.DXT3, alphaBits, BLOCK_BYTES);
+	}
+
+	@Override
+	protected void prepareBlock(ByteBuffer src, int off, int block,
+			BlockRow row) {
+		prepareColorBlock(src, off + 8, block, row, false);
+		for (int word = 0; word < 2; word += 1)
+			row.alpha[block * 2 + word] = src.getInt(off + word * 4);
+	}
+
+	@Override
+	protected void expandBlocks(DXTKernel kernel, BlockRow row, int blocks) {
+		kernel.expandColors(row.palettes, row.colorIndices, blocks, row.pixels);
+		kernel.applyExplicitAlpha(row.alpha, blocks, row.pixels);
+	}
+
+	@Override
+	protected void encodeBlock(DXTBlockEncoder encoder, int[] pixels,
+			int mask, byte[] dest, int off) {
+		DXTBlockEncoder.encodeExplicitAlpha(pixels, dest, off);
+		encoder.encodeColorBlock(pixels, mask, 0, false, dest, off + 8);
+	}
+}
@@ -0,0 +1,88 @@
+package com.hiveworkshop.blizzard.blp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A class that is responsible for processing between mipmap data and DXT5
+ * compressed content.
+ * <p>
+ * Each 4*4 pixel block is 16 bytes holding an interpolated alpha block followed
+ * by a color block. The alpha block has two 8 bit reference alpha values and 3
+ * bit indices selecting from an 8 value alpha ramp. The color block always
+ * uses the 4 color mode.
+ *
+ * @author Imperial Good
+ */
+class DXT5MipmapProcessor extends DXTMipmapProcessor {
+	/**
+	 * Bytes per compressed block.
+	 */
+	private static final int BLOCK_BYTES = 16;
+
+	/**
+	 * Constructs a MipmapProcessor for DXT5 content.
+	 *
+	 * @param alphaBits
+	 *            the alpha component bits, if any.
+	 * @throws IllegalArgumentException
+	 *             if alphaBits is not valid.
+	 */
+	public DXT5MipmapProcessor(int alphaBits) {
+		super(BLPEncodingType.DXT5, alphaBits, BLOCK_BYTES);
+	}
+
+	/**
+	 * Computes the 8 value alpha ramp of a block. Ramp values are shifted into
+	 * the alpha component position of a 0xAABBGGRR color.
+	 *
+	 * @param a0
+	 *            the first reference alpha.
+	 * @param a1
+	 *            the second reference alpha.
+	 * @param ramp
+	 *            array to hold the ramp.
+	 * @param off
+	 *            offset of the ramp in the array.
+	 */
+	static void computeAlphaRamp(int a0, int a1, int[] ramp, int off) {
+		ramp[off] = a0 << 24;
+		ramp[off + 1] = a1 << 24;
+		if (a0 > a1) {
+			for (int i = 1; i < 7; i += 1)
+				ramp[off + i + 1] = ((7 - i) * a0 + i * a1) / 7 << 24;
+		} else {
+			for (int i = 1; i < 5; i += 1)
+				ramp[off + i + 1] = ((5 - i) * a0 + i * a1) / 5 << 24;
+			ramp[off + 6] = 0;
+			ramp[off + 7] = 0xFF << 24;
+		}
+	}
+
+	@Override
+	protected void prepareBlock(ByteBuffer src, int off, int block,
+			BlockRow row) {
+		prepareColorBlock(src, off + 8, block, row, false);
+		computeAlphaRamp(src.get(off) & 0xFF, src.get(off + 1) & 0xFF,
+				row.ramps, block * 8);
+		for (int word = 0; word < 2; word += 1) {
+			final int i = off + 2 + word * 3;
+			row.alpha[block * 2 + word] = src.get(i) & 0xFF
+					| (src.get(i + 1) & 0xFF) << 8
+					| (src.get(i + 2) & 0xFF) << 16;
+		}
+	}
+
+	@Override
+	protected void expandBlocks(DXTKernel kernel, BlockRow row, int blocks) {
+		kernel.expandColors(row.palettes, row.colorIndices, blocks, row.pixels);
+		kernel.applyInterpolatedAlpha(row.ramps, row.alpha, blocks,
+				row.pixels);
+	}
+
+	@Override
+	protected void encodeBlock(DXTBlockEncoder encoder, int[] pixels,
+			int mask, byte[] dest, int off) {
+		encoder.encodeInterpolatedAlpha(pixels, mask, dest, off);
+		encoder.encodeColorBlock(pixels, mask, 0, false, dest, off + 8);
+	}
+}
@@ -0,0 +1,632 @@
+package com.hiveworkshop.blizzard.blp;
+
+/**
+ * Encodes single 4*4 pixel blocks of DXT compressed content.
+ * <p>
+ * Color blocks are fitted along the principal axis of the block colors. Range
+ * fit uses the two colors furthest apart along the axis as the end points.
+ * Cluster fit orders the colors along the axis and tries every partition of
+ * them into palette entries, solving for the least squares end points of each
+ * partition. Cluster fit is much slower but gives noticeably better results
+ * for blocks with gradients. Cluster fit also tries the alternative 6 value
+ * alpha ramp for interpolated alpha.
+ * <p>
+ * All errors are measured against the palettes the decoder will produce so the
+ * chosen encoding is always the best found for decoding.
+ * <p>
+ * Pixels are 0xAABBGGRR colors. Pixels of a block are selected using a 16 bit
+ * mask, with bit i representing pixel i in row major order. Instances hold
+ * working state so must only be used by one thread at a time.
+ *
+ * @author Imperial Good
+ */
+final class DXTBlockEncoder {
+	/**
+	 * Number of power iterations used to find the principal axis.
+	 */
+	private static final int POWER_ITERATIONS = 8;
+
+	/**
+	 * If cluster fit is used.
+	 */
+	private final boolean clusterFit;
+
+	/**
+	 * Color components of the fitted points.
+	 */
+	private final float[] red = new float[16], green = new float[16],
+			blue = new float[16];
+
+	/**
+	 * Pixel of each fitted point.
+	 */
+	private final int[] pixelOf = new int[16];
+
+	/**
+	 * Points ordered along the principal axis.
+	 */
+	private final int[] order = new int[16];
+
+	/**
+	 * Projection of each point onto the principal axis.
+	 */
+	private final float[] projection = new float[16];
+
+	/**
+	 * Prefix sums of ordered point components.
+	 */
+	private final float[] sumRed = new float[17], sumGreen = new float[17],
+			sumBlue = new float[17];
+
+	/**
+	 * Decoded palette used to measure errors.
+	 */
+	private final int[] palette = new int[8];
+
+	/**
+	 * Palette index of each point for the current candidate and the best
+	 * candidate.
+	 */
+	private final int[] candidate = new int[16], best = new int[16];
+
+	/**
+	 * Point indices of the range fit while measuring a cluster fit.
+	 */
+	private final int[] rangeFit = new int[16];
+
+	/**
+	 * Fitted end points as BGR565 colors.
+	 */
+	private int end0, end1;
+
+	/**
+	 * Best cluster fit end points as BGR565 colors.
+	 */
+	private int clusterEnd0, clusterEnd1;
+
+	/**
+	 * Error of the best cluster fit end points.
+	 */
+	private float clusterError;
+
+	/**
+	 * Squared error of the last alphaIndices call.
+	 */
+	private long alphaError;
+
+	/**
+	 * Constructs a block encoder.
+	 *
+	 * @param clusterFit
+	 *            if cluster fit should be used instead of range fit.
+	 */
+	public DXTBlockEncoder(boolean clusterFit) {
+		this.clusterFit = clusterFit;
+	}
+
+	/**
+	 * Quantizes an 8 bit component to a 5 or 6 bit component.
+	 *
+	 * @param value
+	 *            the component value.
+	 * @param max
+	 *            the maximum quantized value, either 31 or 63.
+	 * @return the quantized value.
+	 */
+	private static int quantize(float value, int max) {
+		final int q = (int) (value * (max == 31 ? 31f / 255f : 63f / 255f)
+				+ 0.5f);
+		return q < 0 ? 0 : q > max ? max : q;
+	}
+
+	/**
+	 * Quantizes a color to BGR565.
+	 *
+	 * @param r
+	 *            the red component.
+	 * @param g
+	 *            the green component.
+	 * @param b
+	 *            the blue component.
+	 * @return the BGR565 color.
+	 */
+	private static int to565(float r, float g, float b) {
+		return quantize(r, 31) << 11 | quantize(g, 63) << 5 | quantize(b, 31);
+	}
+
+	/**
+	 * Encodes a DXT color block.
+	 * <p>
+	 * Transparent pixels, which are only supported by the 3 color mode, are
+	 * encoded as transparent black. Pixels in neither mask are don't care.
+	 *
+	 * @param pixels
+	 *            the block pixels.
+	 * @param mask
+	 *            the opaque pixels to fit.
+	 * @param transparent
+	 *            the transparent pixels.
+	 * @param allowThreeColor
+	 *            if the 3 color mode can be used.
+	 * @param dest
+	 *            the destination array.
+	 * @param off
+	 *            offset of the color block in dest.
+	 */
+	public void encodeColorBlock(int[] pixels, int mask, int transparent,
+			boolean allowThreeColor, byte[] dest, int off) {
+		// gather points
+		int n = 0;
+		for (int i = 0; i < 16; i += 1) {
+			if ((mask >>> i & 1) != 0) {
+				final int color = pixels[i];
+				red[n] = color & 0xFF;
+				green[n] = color >>> 8 & 0xFF;
+				blue[n] = color >>> 16 & 0xFF;
+				pixelOf[n] = i;
+				n += 1;
+			}
+		}
+
+		// fit end points
+		final boolean mustThreeColor = transparent != 0;
+		int c0 = 0;
+		int c1 = 0;
+		boolean threeColor = mustThreeColor;
+		if (n > 0) {
+			computeProjection(n);
+			long bestError = Long.MAX_VALUE;
+			if (!mustThreeColor) {
+				bestError = fit(n, false);
+				c0 = end0;
+				c1 = end1;
+				System.arraycopy(candidate, 0, best, 0, n);
+			}
+			if (mustThreeColor || (allowThreeColor && clusterFit)) {
+				final long error = fit(n, true);
+				if (error < bestError) {
+					c0 = end0;
+					c1 = end1;
+					threeColor = true;
+					System.arraycopy(candidate, 0, best, 0, n);
+				}
+			}
+		}
+
+		// resolve pixel indices
+		final int[] indices = new int[16];
+		for (int i = 0; i < 16; i += 1)
+			indices[i] = (transparent >>> i & 1) != 0 ? 3 : 0;
+		for (int p = 0; p < n; p += 1)
+			indices[pixelOf[p]] = best[p];
+
+		// order end points for mode
+		if (!threeColor) {
+			if (c0 == c1) {
+				for (int i = 0; i < 16; i += 1)
+					indices[i] = 0;
+			} else if (c0 < c1) {
+				final int swap = c0;
+				c0 = c1;
+				c1 = swap;
+				for (int i = 0; i < 16; i += 1)
+					indices[i] ^= 1;
+			}
+		} else if (c0 > c1) {
+			final int swap = c0;
+			c0 = c1;
+			c1 = swap;
+			for (int i = 0; i < 16; i += 1)
+				if (indices[i] < 2)
+					indices[i] ^= 1;
+		}
+
+		// write block
+		int bits = 0;
+		for (int i = 15; i >= 0; i -= 1)
+			bits = bits << 2 | indices[i];
+		dest[off] = (byte) c0;
+		dest[off + 1] = (byte) (c0 >>> 8);
+		dest[off + 2] = (byte) c1;
+		dest[off + 3] = (byte) (c1 >>> 8);
+		dest[off + 4] = (byte) bits;
+		dest[off + 5] = (byte) (bits >>> 8);
+		dest[off + 6] = (byte) (bits >>> 16);
+		dest[off + 7] = (byte) (bits >>> 24);
+	}
+
+	/**
+	 * Computes the projection of all points onto their principal axis and
+	 * orders them along it.
+	 *
+	 * @param n
+	 *            the number of points.
+	 */
+	private void computeProjection(int n) {
+		// mean
+		float mr = 0, mg = 0, mb = 0;
+		for (int p = 0; p < n; p += 1) {
+			mr += red[p];
+			mg += green[p];
+			mb += blue[p];
+		}
+		mr /= n;
+		mg /= n;
+		mb /= n;
+
+		// covariance
+		float rr = 0, rg = 0, rb = 0, gg = 0, gb = 0, bb = 0;
+		for (int p = 0; p < n; p += 1) {
+			final float dr = red[p] - mr;
+			final float dg = green[p] - mg;
+			final float db = blue[p] - mb;
+			rr += dr * dr;
+			rg += dr * dg;
+			rb += dr * db;
+			gg += dg * dg;
+			gb += dg * db;
+			bb += db * db;
+		}
+
+		// principal axis by power iteration from dominant covariance row
+		float ar = rr, ag = rg, ab = rb;
+		if (gg > rr && gg >= bb) {
+			ar = rg;
+			ag = gg;
+			ab = gb;
+		} else if (bb > rr && bb > gg) {
+			ar = rb;
+			ag = gb;
+			ab = bb;
+		}
+		for (int i = 0; i < POWER_ITERATIONS; i += 1) {
+			final float nr = rr * ar + rg * ag + rb * ab;
+			final float ng = rg * ar + gg * ag + gb * ab;
+			final float nb = rb * ar + gb * ag + bb * ab;
+			final float scale = Math.max(Math.abs(nr),
+					Math.max(Math.abs(ng), Math.abs(nb)));
+			if (scale == 0f)
+				break;
+			ar = nr / scale;
+			ag = ng / scale;
+			ab = nb / scale;
+		}
+
+		// project and insertion sort
+		for (int p = 0; p < n; p += 1) {
+			final float proj = red[p] * ar + green[p] * ag + blue[p] * ab;
+			projection[p] = proj;
+			int i = p;
+			while (i > 0 && projection[order[i - 1]] > proj) {
+				order[i] = order[i - 1];
+				i -= 1;
+			}
+			order[i] = p;
+		}
+	}
+
+	/**
+	 * Fits end points for the 4 or 3 color mode. The end points and point
+	 * indices are left in end0, end1 and candidate.
+	 *
+	 * @param n
+	 *            the number of points.
+	 * @param threeColor
+	 *            if the 3 color mode is used.
+	 * @return the squared error of the fit.
+	 */
+	private long fit(int n, boolean threeColor) {
+		// range fit from extreme points
+		final int first = order[0];
+		final int last = order[n - 1];
+		int c0 = to565(red[first], green[first], blue[first]);
+		int c1 = to565(red[last], green[last], blue[last]);
+		long bestError = assignIndices(n, c0, c1, threeColor);
+		if (clusterFit && n > 1) {
+			// prefix sums along principal axis
+			for (int i = 0; i < n; i += 1) {
+				final int p = order[i];
+				sumRed[i + 1] = sumRed[i] + red[p];
+				sumGreen[i + 1] = sumGreen[i] + green[p];
+				sumBlue[i + 1] = sumBlue[i] + blue[p];
+			}
+
+			// try all partitions into clusters, bounded by range fit error
+			float sumSquares = 0;
+			for (int p = 0; p < n; p += 1)
+				sumSquares += red[p] * red[p] + green[p] * green[p] + blue[p]
+						* blue[p];
+			clusterError = bestError - sumSquares;
+			clusterEnd0 = c0;
+			clusterEnd1 = c1;
+			if (threeColor) {
+				for (int i = 0; i <= n; i += 1)
+					for (int j = i; j <= n; j += 1)
+						solvePartition(i, j, n, n, 3);
+			} else {
+				for (int i = 0; i <= n; i += 1)
+					for (int j = i; j <= n; j += 1)
+						for (int k = j; k <= n; k += 1)
+							solvePartition(i, j, k, n, 4);
+			}
+
+			// measure best partition against decoded palette
+			if (clusterEnd0 != c0 || clusterEnd1 != c1) {
+				System.arraycopy(candidate, 0, rangeFit, 0, n);
+				final long error = assignIndices(n, clusterEnd0, clusterEnd1,
+						threeColor);
+				if (error < bestError) {
+					bestError = error;
+					c0 = clusterEnd0;
+					c1 = clusterEnd1;
+				} else {
+					System.arraycopy(rangeFit, 0, candidate, 0, n);
+				}
+			}
+		}
+		end0 = c0;
+		end1 = c1;
+		return bestError;
+	}
+
+	/**
+	 * Solves the least squares end points of a partition of ordered points
+	 * into clusters. If the quantized end points have the lowest error so far
+	 * they are kept in clusterEnd0 and clusterEnd1.
+	 * <p>
+	 * Clusters are ordered from the first end point to the second end point.
+	 * For 3 clusters k must equal n.
+	 *
+	 * @param i
+	 *            the end of cluster 0.
+	 * @param j
+	 *            the end of cluster 1.
+	 * @param k
+	 *            the end of cluster 2.
+	 * @param n
+	 *            the number of points.
+	 * @param clusters
+	 *            the number of clusters, 3 or 4.
+	 */
+	private void solvePartition(int i, int j, int k, int n, int clusters) {
+		// cluster component sums
+		final float r0 = sumRed[i];
+		final float g0 = sumGreen[i];
+		final float b0 = sumBlue[i];
+		final float r1 = sumRed[j] - sumRed[i];
+		final float g1 = sumGreen[j] - sumGreen[i];
+		final float b1 = sumBlue[j] - sumBlue[i];
+		final float r2 = sumRed[k] - sumRed[j];
+		final float g2 = sumGreen[k] - sumGreen[j];
+		final float b2 = sumBlue[k] - sumBlue[j];
+		final float r3 = sumRed[n] - sumRed[k];
+		final float g3 = sumGreen[n] - sumGreen[k];
+		final float b3 = sumBlue[n] - sumBlue[k];
+
+		// first end point weights are 1, 2/3, 1/3, 0 or 1, 1/2, 0
+		final float alpha2, beta2, alphaBeta;
+		final float axr, axg, axb, bxr, bxg, bxb;
+		if (clusters == 4) {
+			alpha2 = i + (j - i) * (4f / 9f) + (k - j) * (1f / 9f);
+			beta2 = (j - i) * (1f / 9f) + (k - j) * (4f / 9f) + (n - k);
+			alphaBeta = (k - i) * (2f / 9f);
+			axr = r0 + r1 * (2f / 3f) + r2 * (1f / 3f);
+			axg = g0 + g1 * (2f / 3f) + g2 * (1f / 3f);
+			axb = b0 + b1 * (2f / 3f) + b2 * (1f / 3f);
+			bxr = r1 * (1f / 3f) + r2 * (2f / 3f) + r3;
+			bxg = g1 * (1f / 3f) + g2 * (2f / 3f) + g3;
+			bxb = b1 * (1f / 3f) + b2 * (2f / 3f) + b3;
+		} else {
+			alpha2 = i + (j - i) * 0.25f;
+			beta2 = (j - i) * 0.25f + (n - j);
+			alphaBeta = (j - i) * 0.25f;
+			axr = r0 + r1 * 0.5f;
+			axg = g0 + g1 * 0.5f;
+			axb = b0 + b1 * 0.5f;
+			bxr = r1 * 0.5f + r2;
+			bxg = g1 * 0.5f + g2;
+			bxb = b1 * 0.5f + b2;
+		}
+		final float det = alpha2 * beta2 - alphaBeta * alphaBeta;
+		if (Math.abs(det) < 1e-6f)
+			return;
+		final float factor = 1f / det;
+
+		// least squares end points
+		final float lr0 = (axr * beta2 - bxr * alphaBeta) * factor;
+		final float lg0 = (axg * beta2 - bxg * alphaBeta) * factor;
+		final float lb0 = (axb * beta2 - bxb * alphaBeta) * factor;
+		final float lr1 = (bxr * alpha2 - axr * alphaBeta) * factor;
+		final float lg1 = (bxg * alpha2 - axg * alphaBeta) * factor;
+		final float lb1 = (bxb * alpha2 - axb * alphaBeta) * factor;
+
+		// least squares error is a lower bound for quantized error
+		if (-(lr0 * axr + lg0 * axg + lb0 * axb + lr1 * bxr + lg1 * bxg + lb1
+				* bxb) >= clusterError)
+			return;
+
+		// quantize end points as decoded
+		final int qr0 = quantize(lr0, 31);
+		final int qg0 = quantize(lg0, 63);
+		final int qb0 = quantize(lb0, 31);
+		final int qr1 = quantize(lr1, 31);
+		final int qg1 = quantize(lg1, 63);
+		final int qb1 = quantize(lb1, 31);
+		final float ar = qr0 << 3 | qr0 >>> 2;
+		final float ag = qg0 << 2 | qg0 >>> 4;
+		final float ab = qb0 << 3 | qb0 >>> 2;
+		final float br = qr1 << 3 | qr1 >>> 2;
+		final float bg = qg1 << 2 | qg1 >>> 4;
+		final float bb = qb1 << 3 | qb1 >>> 2;
+
+		// error excluding the constant sum of squared points
+		final float error = (ar * ar + ag * ag + ab * ab) * alpha2
+				+ (br * br + bg * bg + bb * bb) * beta2 + 2f
+				* ((ar * br + ag * bg + ab * bb) * alphaBeta - ar * axr - ag
+						* axg - ab * axb - br * bxr - bg * bxg - bb * bxb);
+		if (error < clusterError) {
+			clusterError = error;
+			clusterEnd0 = qr0 << 11 | qg0 << 5 | qb0;
+			clusterEnd1 = qr1 << 11 | qg1 << 5 | qb1;
+		}
+	}
+
+	/**
+	 * Assigns each point the nearest color of the decoded palette.
+	 *
+	 * @param n
+	 *            the number of points.
+	 * @param c0
+	 *            the first end point.
+	 * @param c1
+	 *            the second end point.
+	 * @param threeColor
+	 *            if the 3 color mode is used.
+	 * @return the squared error.
+	 */
+	private long assignIndices(int n, int c0, int c1, boolean threeColor) {
+		palette[0] = DXTMipmapProcessor.expand565(c0);
+		palette[1] = DXTMipmapProcessor.expand565(c1);
+		final int entries;
+		if (threeColor) {
+			palette[2] = DXTMipmapProcessor.lerp(palette[0], palette[1], 1, 1);
+			entries = 3;
+		} else {
+			palette[2] = DXTMipmapProcessor.lerp(palette[0], palette[1], 2, 1);
+			palette[3] = DXTMipmapProcessor.lerp(palette[0], palette[1], 1, 2);
+			entries = 4;
+		}
+
+		long error = 0;
+		for (int p = 0; p < n; p += 1) {
+			int bestIndex = 0;
+			int bestDist = Integer.MAX_VALUE;
+			for (int i = 0; i < entries; i += 1) {
+				final int color = palette[i];
+				final int dr = (color & 0xFF) - (int) red[p];
+				final int dg = (color >>> 8 & 0xFF) - (int) green[p];
+				final int db = (color >>> 16 & 0xFF) - (int) blue[p];
+				final int dist = dr * dr + dg * dg + db * db;
+				if (dist < bestDist) {
+					bestDist = dist;
+					bestIndex = i;
+				}
+			}
+			candidate[p] = bestIndex;
+			error += bestDist;
+		}
+		return error;
+	}
+
+	/**
+	 * Encodes an explicit 4 bit alpha block.
+	 *
+	 * @param pixels
+	 *            the block pixels.
+	 * @param dest
+	 *            the destination array.
+	 * @param off
+	 *            offset of the alpha block in dest.
+	 */
+	public static void encodeExplicitAlpha(int[] pixels, byte[] dest, int off) {
+		for (int i = 0; i < 16; i += 2) {
+			final int a0 = ((pixels[i] >>> 24) * 15 + 127) / 255;
+			final int a1 = ((pixels[i + 1] >>> 24) * 15 + 127) / 255;
+			dest[off + i / 2] = (byte) (a0 | a1 << 4);
+		}
+	}
+
+	/**
+	 * Encodes an interpolated alpha block.
+	 *
+	 * @param pixels
+	 *            the block pixels.
+	 * @param mask
+	 *            the pixels to fit.
+	 * @param dest
+	 *            the destination array.
+	 * @param off
+	 *            offset of the alpha block in dest.
+	 */
+	public void encodeInterpolatedAlpha(int[] pixels, int mask, byte[] dest,
+			int off) {
+		// find alpha range
+		int min = 0xFF, max = 0;
+		int min6 = 0xFF, max6 = 0;
+		for (int i = 0; i < 16; i += 1) {
+			if ((mask >>> i & 1) == 0)
+				continue;
+			final int a = pixels[i] >>> 24;
+			min = Math.min(min, a);
+			max = Math.max(max, a);
+			if (a != 0 && a != 0xFF) {
+				min6 = Math.min(min6, a);
+				max6 = Math.max(max6, a);
+			}
+		}
+		if (min > max)
+			min = max = 0xFF;
+
+		// 8 value ramp
+		int a0 = max;
+		int a1 = min;
+		long bits = alphaIndices(pixels, mask, a0, a1);
+		long error = alphaError;
+
+		// 6 value ramp with explicit 0 and 255
+		if (clusterFit && error > 0) {
+			if (min6 > max6)
+				min6 = max6 = 0;
+			final long bits6 = alphaIndices(pixels, mask, min6, max6);
+			if (alphaError < error) {
+				a0 = min6;
+				a1 = max6;
+				bits = bits6;
+			}
+		}
+
+		// write block
+		dest[off] = (byte) a0;
+		dest[off + 1] = (byte) a1;
+		for (int i = 0; i < 6; i += 1)
+			dest[off + 2 + i] = (byte) (bits >>> i * 8);
+	}
+
+	/**
+	 * Assigns each pixel the nearest alpha of a decoded alpha ramp. The
+	 * squared error is left in alphaError.
+	 *
+	 * @param pixels
+	 *            the block pixels.
+	 * @param mask
+	 *            the pixels to fit.
+	 * @param a0
+	 *            the first reference alpha.
+	 * @param a1
+	 *            the second reference alpha.
+	 * @return the packed 3 bit indices.
+	 */
+	private long alphaIndices(int[] pixels, int mask, int a0, int a1) {
+		DXT5MipmapProcessor.computeAlphaRamp(a0, a1, palette, 0);
+		long bits = 0;
+		long error = 0;
+		for (int i = 15; i >= 0; i -= 1) {
+			int bestIndex = 0;
+			if ((mask >>> i & 1) != 0) {
+				final int a = pixels[i] >>> 24;
+				int bestDist = Integer.MAX_VALUE;
+				for (int r = 0; r < 8; r += 1) {
+					final int d = (palette[r] >>> 24) - a;
+					if (d * d < bestDist) {
+						bestDist = d * d;
+						bestIndex = r;
+					}
+				}
+				error += bestDist;
+			}
+			bits = bits << 3 | bestIndex;
+		}
+		alphaError = error;
+		return bits;
+	}
+}
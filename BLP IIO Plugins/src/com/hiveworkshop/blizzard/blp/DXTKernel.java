@@ -0,0 +1,193 @@
+package com.hiveworkshop.blizzard.blp;
+
+/**
+ * Decode kernels that expand prepared DXT block parameters into pixels for a
+ * row of blocks.
+ * <p>
+ * Block parameters are held in arrays indexed by block. Each block has 4
+ * palette colors and 1 color index word. Explicit alpha uses 2 words per block
+ * each holding 2 rows of 4 bit alpha values. Interpolated alpha uses 8 ramp
+ * values, pre-shifted into the alpha component position, and 2 index words per
+ * block each holding 2 rows of 3 bit indices. Parameter arrays must have at
+ * least PADDING elements past the last block as kernels may read past it.
+ * <p>
+ * Pixels are 0xAABBGGRR colors. The pixel array holds 4 rows each of blocks *
+ * 4 pixels.
+ * <p>
+ * This class is the scalar implementation. A vector implementation using the
+ * incubating Vector API is used instead if it was built and the
+ * jdk.incubator.vector module is present at run time.
+ *
+ * @author Imperial Good
+ */
+class DXTKernel {
+	/**
+	 * Number of elements parameter arrays must have past the last block.
+	 */
+	static final int PADDING = 16;
+
+	/**
+	 * Name of the vector kernel class, loaded reflectively so that this package
+	 * has no compile or link time dependency on the incubator module.
+	 */
+	private static final String VECTOR_KERNEL_CLASS = DXTKernel.class
+			.getPackageName() + ".DXTVectorKernel";
+
+	/**
+	 * Kernel used for decoding.
+	 */
+	static final DXTKernel INSTANCE = loadKernel();
+
+	/**
+	 * Resolves the fastest available kernel.
+	 *
+	 * @return the kernel.
+	 */
+	private static DXTKernel loadKernel() {
+		if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+			try {
+				return Class.forName(VECTOR_KERNEL_CLASS)
+						.asSubclass(DXTKernel.class).getDeclaredConstructor()
+						.newInstance();
+			} catch (ReflectiveOperationException | LinkageError
+					| RuntimeException e) {
+				// vector kernel not usable on this JVM
+			}
+		}
+		return new DXTKernel();
+	}
+
+	/**
+	 * Expands color indices into pixels.
+	 *
+	 * @param palettes
+	 *            the block palettes.
+	 * @param indices
+	 *            the block color index words.
+	 * @param blocks
+	 *            the number of blocks.
+	 * @param pixels
+	 *            the pixel array.
+	 */
+	public void expandColors(int[] palettes, int[] indices, int blocks,
+			int[] pixels) {
+		expandColors(palettes, indices, 0, blocks, pixels);
+	}
+
+	/**
+	 * Applies explicit 4 bit alpha to pixels.
+	 *
+	 * @param alpha
+	 *            the block alpha words.
+	 * @param blocks
+	 *            the number of blocks.
+	 * @param pixels
+	 *            the pixel array.
+	 */
+	public void applyExplicitAlpha(int[] alpha, int blocks, int[] pixels) {
+		applyExplicitAlpha(alpha, 0, blocks, pixels);
+	}
+
+	/**
+	 * Applies interpolated alpha to pixels.
+	 *
+	 * @param ramps
+	 *            the block alpha ramps.
+	 * @param indices
+	 *            the block alpha index words.
+	 * @param blocks
+	 *            the number of blocks.
+	 * @param pixels
+	 *            the pixel array.
+	 */
+	public void applyInterpolatedAlpha(int[] ramps, int[] indices,
+			int blocks, int[] pixels) {
+		applyInterpolatedAlpha(ramps, indices, 0, blocks, pixels);
+	}
+
+	/**
+	 * Scalar color expansion of a range of blocks.
+	 *
+	 * @param palettes
+	 *            the block palettes.
+	 * @param indices
+	 *            the block color index words.
+	 * @param from
+	 *            the first block.
+	 * @param blocks
+	 *            the number of blocks in the row.
+	 * @param pixels
+	 *            the pixel array.
+	 */
+	protected static void expandColors(int[] palettes, int[] indices,
+			int from, int blocks, int[] pixels) {
+		final int scan = blocks * 4;
+		for (int b = from; b < blocks; b += 1) {
+			final int bits = indices[b];
+			final int pal = b * 4;
+			for (int py = 0; py < 4; py += 1) {
+				final int row = bits >>> py * 8;
+				final int i = py * scan + b * 4;
+				pixels[i] = palettes[pal + (row & 0x3)];
+				pixels[i + 1] = palettes[pal + (row >>> 2 & 0x3)];
+				pixels[i + 2] = palettes[pal + (row >>> 4 & 0x3)];
+				pixels[i + 3] = palettes[pal + (row >>> 6 & 0x3)];
+			}
+		}
+	}
+
+	/**
+	 * Scalar explicit alpha of a range of blocks.
+	 *
+	 * @param alpha
+	 *            the block alpha words.
+	 * @param from
+	 *            the first block.
+	 * @param blocks
+	 *            the number of blocks in the row.
+	 * @param pixels
+	 *            the pixel array.
+	 */
+	protected static void applyExplicitAlpha(int[] alpha, int from,
+			int blocks, int[] pixels) {
+		final int scan = blocks * 4;
+		for (int b = from; b < blocks; b += 1) {
+			for (int py = 0; py < 4; py += 1) {
+				final int row = alpha[b * 2 + (py >>> 1)] >>> (py & 1) * 16;
+				final int i = py * scan + b * 4;
+				for (int px = 0; px < 4; px += 1)
+					pixels[i + px] = pixels[i + px] & 0x00FFFFFF
+							| (row >>> px * 4 & 0xF) * 0x11 << 24;
+			}
+		}
+	}
+
+	/**
+	 * Scalar interpolated alpha of a range of blocks.
+	 *
+	 * @param ramps
+	 *            the block alpha ramps.
+	 * @param indices
+	 *            the block alpha index words.
+	 * @param from
+	 *            the first block.
+	 * @param blocks
+	 *            the number of blocks in the row.
+	 * @param pixels
+	 *            the pixel array.
+	 */
+	protected static void applyInterpolatedAlpha(int[] ramps, int[] indices,
+			int from, int blocks, int[] pixels) {
+		final int scan = blocks * 4;
+		for (int b = from; b < blocks; b += 1) {
+			final int ramp = b * 8;
+			for (int py = 0; py < 4; py += 1) {
+				final int row = indices[b * 2 + (py >>> 1)] >>> (py & 1) * 12;
+				final int i = py * scan + b * 4;
+				for (int px = 0; px < 4; px += 1)
+					pixels[i + px] = pixels[i + px] & 0x00FFFFFF
+							| ramps[ramp + (row >>> px * 3 & 0x7)];
+			}
+		}
+	}
+}
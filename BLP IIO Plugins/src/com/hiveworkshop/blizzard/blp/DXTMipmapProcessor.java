@@ -0,0 +1,502 @@
+package com.hiveworkshop.blizzard.blp;
+
+import static com.hiveworkshop.blizzard.blp.BLPCommon.INDEXED_PALETTE_SIZE;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import com.hiveworkshop.blizzard.blp.BLPWriteParam.DXTCompression;
+import com.hiveworkshop.lang.LocalizedFormatedString;
+
+/**
+ * A class that is responsible for processing between mipmap data and DXT
+ * block compressed content.
+ * <p>
+ * Mipmap data is a sequence of fixed size blocks each representing 4*4 pixels,
+ * ordered in rows of blocks. Blocks partially outside the image have their
+ * excess pixels ignored. Blocks are decoded into a pixel interleaved RGB or
+ * RGBA byte raster. Rows of blocks are decoded in parallel for large images.
+ * <p>
+ * Each row of blocks is decoded in two passes using per thread buffers that
+ * are reused between rows and images. First the palette, alpha ramp and index
+ * words of every block are prepared. Then a DXTKernel expands them into pixels
+ * for the whole row, using vector operations when available.
+ * <p>
+ * During decoding if the mipmap data is of incorrect size then it is resized to
+ * fit and a warning is generated. Missing blocks decode as black.
+ * <p>
+ * When alpha bits is 0 any decoded alpha is discarded.
+ * <p>
+ * Version 2 files always contain a palette after the mipmap chunk table. The
+ * palette has no meaning for DXT content so is skipped when read and written
+ * as all 0 values.
+ * <p>
+ * Encoding uses either range fit or cluster fit as specified by the
+ * BLPWriteParam, defaulting to cluster fit. Rows of blocks are encoded in
+ * parallel on the common ForkJoinPool. Pixels of partial blocks outside the
+ * image do not influence encoding.
+ *
+ * @author Imperial Good
+ */
+abstract class DXTMipmapProcessor extends MipmapProcessor {
+	/**
+	 * Minimum number of pixels before rows of blocks are decoded in parallel.
+	 */
+	private static final int PARALLEL_THRESHOLD = 256 * 256;
+
+	/**
+	 * Minimum number of pixels before rows of blocks are encoded in parallel.
+	 */
+	private static final int ENCODE_PARALLEL_THRESHOLD = 64 * 64;
+
+	/**
+	 * Bytes per compressed block.
+	 */
+	private final int blockBytes;
+
+	/**
+	 * The color model that the processor will use.
+	 */
+	private final ColorModel dxtColorModel;
+
+	/**
+	 * Number of bands of decoded pixels.
+	 */
+	private final int bandNumber;
+
+	/**
+	 * Constructs a MipmapProcessor for DXT content.
+	 *
+	 * @param encodingType
+	 *            the DXT encoding type.
+	 * @param alphaBits
+	 *            the alpha component bits, if any.
+	 * @param blockBytes
+	 *            the bytes per compressed block.
+	 * @throws IllegalArgumentException
+	 *             if alphaBits is not valid.
+	 */
+	protected DXTMipmapProcessor(BLPEncodingType encodingType, int alphaBits,
+			int blockBytes) {
+		if (!encodingType.isAlphaBitsValid(alphaBits))
+			throw new IllegalArgumentException("Unsupported alphaBits.");
+		this.blockBytes = blockBytes;
+		final boolean hasAlpha = alphaBits != 0;
+		bandNumber = hasAlpha ? 4 : 3;
+		dxtColorModel = new ComponentColorModel(
+				ColorSpace.getInstance(ColorSpace.CS_LINEAR_RGB), hasAlpha,
+				false, alphaBits == 1 ? Transparency.BITMASK
+						: hasAlpha ? Transparency.TRANSLUCENT
+								: Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+		canDecode = true;
+	}
+
+	/**
+	 * Expands a 16 bit BGR565 color into a 32 bit 0xAABBGGRR color with
+	 * opaque alpha.
+	 *
+	 * @param color
+	 *            the 16 bit color.
+	 * @return the 32 bit color.
+	 */
+	static int expand565(int color) {
+		final int r = color >>> 11 & 0x1F;
+		final int g = color >>> 5 & 0x3F;
+		final int b = color & 0x1F;
+		return 0xFF000000 | (b << 3 | b >>> 2) << 16 | (g << 2 | g >>> 4) << 8
+				| (r << 3 | r >>> 2);
+	}
+
+	/**
+	 * Interpolates between two 32 bit colors component wise.
+	 *
+	 * @param c0
+	 *            the first color.
+	 * @param c1
+	 *            the second color.
+	 * @param w0
+	 *            weight of first color.
+	 * @param w1
+	 *            weight of second color.
+	 * @return the interpolated color.
+	 */
+	static int lerp(int c0, int c1, int w0, int w1) {
+		final int div = w0 + w1;
+		int result = 0;
+		for (int shift = 0; shift < 32; shift += 8) {
+			final int v = ((c0 >>> shift & 0xFF) * w0 + (c1 >>> shift & 0xFF)
+					* w1)
+					/ div;
+			result |= v << shift;
+		}
+		return result;
+	}
+
+	/**
+	 * Reusable buffers holding the prepared block parameters and decoded
+	 * pixels of a row of blocks. Arrays are indexed as required by DXTKernel.
+	 */
+	static final class BlockRow {
+		/**
+		 * Block color palettes.
+		 */
+		int[] palettes = new int[0];
+
+		/**
+		 * Block color index words.
+		 */
+		int[] colorIndices = new int[0];
+
+		/**
+		 * Block alpha ramps.
+		 */
+		int[] ramps = new int[0];
+
+		/**
+		 * Block alpha words, either explicit alpha or alpha ramp indices.
+		 */
+		int[] alpha = new int[0];
+
+		/**
+		 * Decoded pixels of the 4 pixel rows.
+		 */
+		int[] pixels = new int[0];
+
+		/**
+		 * Number of blocks the buffers can currently hold.
+		 */
+		private int capacity = -1;
+
+		/**
+		 * Grows the buffers to hold at least the specified number of blocks.
+		 *
+		 * @param blocks
+		 *            the number of blocks.
+		 */
+		void ensureCapacity(int blocks) {
+			if (blocks <= capacity)
+				return;
+			palettes = new int[blocks * 4 + DXTKernel.PADDING];
+			colorIndices = new int[blocks + DXTKernel.PADDING];
+			ramps = new int[blocks * 8 + DXTKernel.PADDING];
+			alpha = new int[blocks * 2 + DXTKernel.PADDING];
+			pixels = new int[blocks * 16];
+			capacity = blocks;
+		}
+	}
+
+	/**
+	 * Block row buffers of each decoding thread.
+	 */
+	private static final ThreadLocal<BlockRow> BLOCK_ROWS = ThreadLocal
+			.withInitial(BlockRow::new);
+
+	/**
+	 * Prepares the palette and index word of a 64 bit DXT color block.
+	 *
+	 * @param src
+	 *            the little endian mipmap data.
+	 * @param off
+	 *            offset of the color block.
+	 * @param block
+	 *            the block index within the row.
+	 * @param row
+	 *            the block row buffers.
+	 * @param allowTransparent
+	 *            if the 3 color mode with transparent black can be used.
+	 */
+	static void prepareColorBlock(ByteBuffer src, int off, int block,
+			BlockRow row, boolean allowTransparent) {
+		final int[] palette = row.palettes;
+		final int pal = block * 4;
+		final int c0 = src.getShort(off) & 0xFFFF;
+		final int c1 = src.getShort(off + 2) & 0xFFFF;
+		palette[pal] = expand565(c0);
+		palette[pal + 1] = expand565(c1);
+		if (c0 > c1 || !allowTransparent) {
+			palette[pal + 2] = lerp(palette[pal], palette[pal + 1], 2, 1);
+			palette[pal + 3] = lerp(palette[pal], palette[pal + 1], 1, 2);
+		} else {
+			palette[pal + 2] = lerp(palette[pal], palette[pal + 1], 1, 1);
+			palette[pal + 3] = 0;
+		}
+		row.colorIndices[block] = src.getInt(off + 4);
+	}
+
+	/**
+	 * Prepares the parameters of a single block for decoding.
+	 *
+	 * @param src
+	 *            the little endian mipmap data.
+	 * @param off
+	 *            offset of the block.
+	 * @param block
+	 *            the block index within the row.
+	 * @param row
+	 *            the block row buffers.
+	 */
+	protected abstract void prepareBlock(ByteBuffer src, int off, int block,
+			BlockRow row);
+
+	/**
+	 * Expands the prepared parameters of a row of blocks into pixels.
+	 *
+	 * @param kernel
+	 *            the decode kernel to use.
+	 * @param row
+	 *            the block row buffers.
+	 * @param blocks
+	 *            the number of blocks in the row.
+	 */
+	protected abstract void expandBlocks(DXTKernel kernel, BlockRow row,
+			int blocks);
+
+	/**
+	 * Decodes a row of blocks into pixel interleaved bytes.
+	 *
+	 * @param src
+	 *            the mipmap data.
+	 * @param dest
+	 *            the pixel array.
+	 * @param blockRow
+	 *            the row of blocks to decode.
+	 * @param width
+	 *            the image width in pixels.
+	 * @param height
+	 *            the image height in pixels.
+	 */
+	private void decodeBlockRow(ByteBuffer src, byte[] dest, int blockRow,
+			int width, int height) {
+		final int blocksWide = (width + 3) / 4;
+		final BlockRow row = BLOCK_ROWS.get();
+		row.ensureCapacity(blocksWide);
+
+		// decode blocks
+		int srcOff = blockRow * blocksWide * blockBytes;
+		for (int bx = 0; bx < blocksWide; bx += 1, srcOff += blockBytes)
+			prepareBlock(src, srcOff, bx, row);
+		expandBlocks(DXTKernel.INSTANCE, row, blocksWide);
+
+		// write pixels
+		final int[] pixels = row.pixels;
+		final int scan = blocksWide * 4;
+		final int y0 = blockRow * 4;
+		final int rows = Math.min(4, height - y0);
+		for (int py = 0; py < rows; py += 1) {
+			int srcPixel = py * scan;
+			int destOff = (y0 + py) * width * bandNumber;
+			if (bandNumber == 4) {
+				ByteBuffer.wrap(dest, destOff, width * 4)
+						.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer()
+						.put(pixels, srcPixel, width);
+			} else {
+				for (int x = 0; x < width; x += 1, destOff += 3) {
+					final int color = pixels[srcPixel++];
+					dest[destOff] = (byte) color;
+					dest[destOff + 1] = (byte) (color >>> 8);
+					dest[destOff + 2] = (byte) (color >>> 16);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates the pixel interleaved sample model used by decoded images.
+	 *
+	 * @param width
+	 *            the image width in pixels.
+	 * @param height
+	 *            the image height in pixels.
+	 * @return the sample model.
+	 */
+	private PixelInterleavedSampleModel createSampleModel(int width, int height) {
+		final int[] bandOffsets = Arrays.copyOf(new int[] { 0, 1, 2, 3 },
+				bandNumber);
+		return new PixelInterleavedSampleModel(DataBuffer.TYPE_BYTE, width,
+				height, bandNumber, width * bandNumber, bandOffsets);
+	}
+
+	/**
+	 * Encodes a single block.
+	 *
+	 * @param encoder
+	 *            the block encoder to use.
+	 * @param pixels
+	 *            the 16 block pixels in row major order.
+	 * @param mask
+	 *            the pixels inside the image.
+	 * @param dest
+	 *            the mipmap data.
+	 * @param off
+	 *            offset of the block.
+	 */
+	protected abstract void encodeBlock(DXTBlockEncoder encoder, int[] pixels,
+			int mask, byte[] dest, int off);
+
+	/**
+	 * Gets the pixels of an image as 0xAABBGGRR colors. Bands are interpreted
+	 * as RGBA. Alpha is opaque if the image has no alpha band or alpha bits
+	 * is 0.
+	 *
+	 * @param img
+	 *            the image.
+	 * @return the pixels in row major order.
+	 */
+	private int[] getPixels(BufferedImage img) {
+		final int width = img.getWidth();
+		final int height = img.getHeight();
+		final int[] pixels = new int[width * height];
+		final Raster raster = img.getRaster();
+		final int srcBands = raster.getNumBands();
+		final int opaque = bandNumber == 4 ? 0 : 0xFF000000;
+		if (srcBands < 3) {
+			// convert through color model
+			img.getRGB(0, 0, width, height, pixels, 0, width);
+			for (int i = 0; i < pixels.length; i += 1) {
+				final int argb = pixels[i];
+				pixels[i] = argb & 0xFF00FF00 | (argb >>> 16 & 0xFF)
+						| (argb & 0xFF) << 16 | opaque;
+			}
+		} else {
+			int[] row = null;
+			for (int y = 0, i = 0; y < height; y += 1) {
+				row = raster.getPixels(0, y, width, 1, row);
+				for (int s = 0; s < row.length; s += srcBands, i += 1) {
+					final int alpha = srcBands > 3 ? row[s + 3] : 0xFF;
+					pixels[i] = (row[s] & 0xFF) | (row[s + 1] & 0xFF) << 8
+							| (row[s + 2] & 0xFF) << 16 | alpha << 24 | opaque;
+				}
+			}
+		}
+		return pixels;
+	}
+
+	/**
+	 * Encodes a row of blocks.
+	 *
+	 * @param pixels
+	 *            the image pixels.
+	 * @param dest
+	 *            the mipmap data.
+	 * @param blockRow
+	 *            the row of blocks to encode.
+	 * @param width
+	 *            the image width in pixels.
+	 * @param height
+	 *            the image height in pixels.
+	 * @param clusterFit
+	 *            if cluster fit is used.
+	 */
+	private void encodeBlockRow(int[] pixels, byte[] dest, int blockRow,
+			int width, int height, boolean clusterFit) {
+		final DXTBlockEncoder encoder = new DXTBlockEncoder(clusterFit);
+		final int[] block = new int[16];
+		final int blocksWide = (width + 3) / 4;
+		final int y0 = blockRow * 4;
+		int destOff = blockRow * blocksWide * blockBytes;
+		for (int bx = 0; bx < blocksWide; bx += 1, destOff += blockBytes) {
+			// gather block pixels inside image
+			final int x0 = bx * 4;
+			int mask = 0;
+			for (int py = 0; py < 4 && y0 + py < height; py += 1) {
+				for (int px = 0; px < 4 && x0 + px < width; px += 1) {
+					block[py * 4 + px] = pixels[(y0 + py) * width + x0 + px];
+					mask |= 1 << py * 4 + px;
+				}
+			}
+			encodeBlock(encoder, block, mask, dest, destOff);
+		}
+	}
+
+	@Override
+	public ByteBuffer encodeMipmap(BufferedImage img, ImageWriteParam param,
+			Consumer<LocalizedFormatedString> handler) throws IOException {
+		DXTCompression compression = DXTCompression.CLUSTER_FIT;
+		if (param instanceof BLPWriteParam)
+			compression = ((BLPWriteParam) param).getDXTCompression();
+		final boolean clusterFit = compression == DXTCompression.CLUSTER_FIT;
+		final int width = img.getWidth();
+		final int height = img.getHeight();
+		final int[] pixels = getPixels(img);
+
+		// encode blocks
+		final int blockRows = (height + 3) / 4;
+		final byte[] dest = new byte[(width + 3) / 4 * blockRows * blockBytes];
+		IntStream rows = IntStream.range(0, blockRows);
+		if ((long) width * height >= ENCODE_PARALLEL_THRESHOLD)
+			rows = rows.parallel();
+		rows.forEach(row -> encodeBlockRow(pixels, dest, row, width, height,
+				clusterFit));
+
+		return ByteBuffer.wrap(dest);
+	}
+
+	@Override
+	public BufferedImage decodeMipmap(ByteBuffer mmData, ImageReadParam param,
+			int width, int height, Consumer<LocalizedFormatedString> handler)
+			throws IOException {
+		// validate chunk size
+		final int blockRows = (height + 3) / 4;
+		final int expected = (width + 3) / 4 * blockRows * blockBytes;
+		if (mmData.remaining() != expected)
+			handler.accept(new LocalizedFormatedString(
+					"com.hiveworkshop.text.blp", "BadBuffer",
+					mmData.remaining(), expected));
+
+		// decode blocks in place, missing data decodes as 0
+		final ByteBuffer src = (mmData.remaining() < expected ? ByteBuffer
+				.wrap(toImageData(mmData, expected)) : mmData.slice())
+				.order(ByteOrder.LITTLE_ENDIAN);
+		final byte[] dest = new byte[width * height * bandNumber];
+		IntStream rows = IntStream.range(0, blockRows);
+		if ((long) width * height >= PARALLEL_THRESHOLD)
+			rows = rows.parallel();
+		rows.forEach(row -> decodeBlockRow(src, dest, row, width, height));
+
+		return new BufferedImage(dxtColorModel, Raster.createWritableRaster(
+				createSampleModel(width, height), new DataBufferByte(dest,
+						dest.length), null), false, null);
+	}
+
+	@Override
+	public Iterator<ImageTypeSpecifier> getSupportedImageTypes(int width,
+			int height) {
+		return Arrays.asList(
+				new ImageTypeSpecifier(dxtColorModel, createSampleModel(width,
+						height))).iterator();
+	}
+
+	@Override
+	public void readObject(ImageInputStream src,
+			Consumer<LocalizedFormatedString> warning) throws IOException {
+		// skip unused palette
+		src.seek(src.getStreamPosition() + INDEXED_PALETTE_SIZE * 4L);
+	}
+
+	@Override
+	public void writeObject(ImageOutputStream dst) throws IOException {
+		// write unused palette
+		dst.setByteOrder(ByteOrder.LITTLE_ENDIAN);
+		dst.writeInts(new int[INDEXED_PALETTE_SIZE], 0, INDEXED_PALETTE_SIZE);
+	}
+}
@@ -0,0 +1,116 @@
+package com.hiveworkshop.blizzard.blp;
+
+import java.awt.image.DataBuffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * DataBuffer backed by a direct ByteBuffer. Allows rasters to view image data
+ * held outside the Java heap without copying it.
+ * <p>
+ * Banks are stored one after another in the buffer, each holding size
+ * elements in native byte order. Byte, unsigned short and int elements are
+ * supported. Element access is slower than with the standard heap backed
+ * DataBuffer types as Java2D has no optimized paths for custom buffers.
+ *
+ * @author Imperial Good
+ */
+class DirectDataBuffer extends DataBuffer {
+	/**
+	 * Views of each bank if byte data type, otherwise null.
+	 */
+	private final ByteBuffer[] byteBanks;
+
+	/**
+	 * Views of each bank if unsigned short data type, otherwise null.
+	 */
+	private final ShortBuffer[] shortBanks;
+
+	/**
+	 * Views of each bank if int data type, otherwise null.
+	 */
+	private final IntBuffer[] intBanks;
+
+	/**
+	 * Constructs a DataBuffer viewing the specified buffer.
+	 *
+	 * @param dataType
+	 *            the element data type.
+	 * @param size
+	 *            the number of elements in each bank.
+	 * @param numBanks
+	 *            the number of banks.
+	 * @param data
+	 *            the direct buffer holding all banks from position 0.
+	 * @throws IllegalArgumentException
+	 *             if the data type is not supported or the buffer is too
+	 *             small.
+	 */
+	public DirectDataBuffer(int dataType, int size, int numBanks,
+			ByteBuffer data) {
+		super(dataType, size, numBanks);
+		final int elementSize = elementSize(dataType);
+		if ((long) size * numBanks * elementSize > data.capacity())
+			throw new IllegalArgumentException("Buffer too small.");
+
+		byteBanks = dataType == TYPE_BYTE ? new ByteBuffer[numBanks] : null;
+		shortBanks = dataType == TYPE_USHORT ? new ShortBuffer[numBanks]
+				: null;
+		intBanks = dataType == TYPE_INT ? new IntBuffer[numBanks] : null;
+		for (int i = 0; i < numBanks; i += 1) {
+			final ByteBuffer bank = data.duplicate()
+					.position(i * size * elementSize)
+					.limit((i + 1) * size * elementSize).slice()
+					.order(ByteOrder.nativeOrder());
+			if (byteBanks != null)
+				byteBanks[i] = bank;
+			else if (shortBanks != null)
+				shortBanks[i] = bank.asShortBuffer();
+			else
+				intBanks[i] = bank.asIntBuffer();
+		}
+	}
+
+	/**
+	 * Get the size in bytes of an element of a supported data type.
+	 *
+	 * @param dataType
+	 *            the element data type.
+	 * @return the element size in bytes.
+	 * @throws IllegalArgumentException
+	 *             if the data type is not supported.
+	 */
+	static int elementSize(int dataType) {
+		switch (dataType) {
+		case TYPE_BYTE:
+			return 1;
+		case TYPE_USHORT:
+			return 2;
+		case TYPE_INT:
+			return 4;
+		default:
+			throw new IllegalArgumentException("Unsupported data type.");
+		}
+	}
+
+	@Override
+	public int getElem(int bank, int i) {
+		if (byteBanks != null)
+			return byteBanks[bank].get(i) & 0xFF;
+		else if (shortBanks != null)
+			return shortBanks[bank].get(i) & 0xFFFF;
+		return intBanks[bank].get(i);
+	}
+
+	@Override
+	public void setElem(int bank, int i, int val) {
+		if (byteBanks != null)
+			byteBanks[bank].put(i, (byte) val);
+		else if (shortBanks != null)
+			shortBanks[bank].put(i, (short) val);
+		else
+			intBanks[bank].put(i, val);
+	}
+}
@@ -1,8 +1,25 @@
 package com.hiveworkshop.blizzard.blp;
 
+import static com.hiveworkshop.blizzard.blp.BLPCommon.MIPMAP_MAX;
+
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import javax.imageio.IIOException;
 
@@ -11,32 +28,66 @@ import javax.imageio.IIOException;
  * BLP0.
  * <p>
  * The retrieval and extraction of mipmap data chunks from accompanying files
- * are managed. Methods are provided to read or write mipmap data chunks.
+ * are managed. Methods are provided to read or write mipmap data chunks. The
+ * paths of all mipmap files are resolved once on construction.
+ * <p>
+ * By default each mipmap data chunk is read fully from its file when
+ * requested. In mapped mode mipmap files are instead memory mapped once and
+ * the mappings are retained, so repeated requests for the same level perform
+ * no I/O. Mapped mipmap files can be prefetched on an executor so that the
+ * file opens and page faults of levels likely to be requested next do not
+ * stall the requesting thread. Mipmap files must not be truncated while they
+ * are mapped.
+ * <p>
+ * Mipmap data chunks can also be staged for writing. Staged chunks are written
+ * concurrently on an executor to temporary files alongside the BLP0 file and
+ * forced to storage. Once all are written the set is committed by atomically
+ * renaming each temporary file to its mipmap file and deleting mipmap files of
+ * higher levels left by earlier writes. Existing mipmap files are never left
+ * partially written.
  * 
  * @author ImperialGood
  */
 class ExternalMipmapManager {
 	/**
-	 * Parent folder of the BLP0 file. Where the mipmaps files get saved.
+	 * Default executor to prefetch mipmap files with. A single daemon thread
+	 * is enough as prefetching is limited by file system I/O.
 	 */
-	private final Path root;
+	static final Executor PREFETCH_EXECUTOR = Executors
+			.newSingleThreadExecutor(task -> {
+				final Thread thread = new Thread(task, "BLP prefetch");
+				thread.setDaemon(true);
+				return thread;
+			});
 
 	/**
-	 * The base file name of the BLP0 file. All files for the same BLP0 file
-	 * share this name.
+	 * Paths of the mipmap files of each mipmap level.
 	 */
-	private final String name;
+	private final Path[] mipmapPaths = new Path[MIPMAP_MAX];
 
 	/**
-	 * Get the file for the specified mipmap level.
-	 * 
-	 * @param mipmap
-	 *            the mipmap level.
-	 * @return the file.
+	 * Mappings of mipmap files in mapped mode. Elements are null for levels
+	 * which have not yet been mapped.
 	 */
-	private Path getMipmapFilePath(int mipmap) {
-		return root.resolve(name + String.format(".b%02d", mipmap));
-	}
+	private final AtomicReferenceArray<CompletableFuture<ByteBuffer>> mappings =
+			new AtomicReferenceArray<>(MIPMAP_MAX);
+
+	/**
+	 * Whether mipmap files are memory mapped.
+	 */
+	private volatile boolean mapped = false;
+
+	/**
+	 * Temporary files of staged mipmap data chunks. Elements are null for
+	 * levels which have not been staged.
+	 */
+	private final Path[] stagedPaths = new Path[MIPMAP_MAX];
+
+	/**
+	 * Pending writes of staged mipmap data chunks.
+	 */
+	private final List<CompletableFuture<Void>> stagedWrites =
+			new ArrayList<CompletableFuture<Void>>();
 
 	/**
 	 * Constructs from a BLP0 file.
@@ -57,8 +108,110 @@ class ExternalMipmapManager {
 					"Malformed file path: Got '%s' expected '*.blp'.",
 					file.toString()));
 
-		root = file.getParent();
-		name = fileName.substring(0, fileName.length() - ".blp".length());
+		final String name = fileName.substring(0, fileName.length()
+				- ".blp".length());
+		for (int i = 0; i < MIPMAP_MAX; i += 1)
+			mipmapPaths[i] = file.resolveSibling(name + (i < 10 ? ".b0" : ".b")
+					+ i);
+	}
+
+	/**
+	 * Sets whether mipmap files are memory mapped. Turning mapped mode off
+	 * releases all retained mappings and skips prefetches not yet started.
+	 * 
+	 * @param mapped
+	 *            if mipmap files should be memory mapped.
+	 */
+	public void setMapped(boolean mapped) {
+		this.mapped = mapped;
+		if (!mapped)
+			for (int i = 0; i < MIPMAP_MAX; i += 1)
+				mappings.set(i, null);
+	}
+
+	/**
+	 * Returns if mipmap files are memory mapped.
+	 * 
+	 * @return true if in mapped mode.
+	 */
+	public boolean isMapped() {
+		return mapped;
+	}
+
+	/**
+	 * Memory maps the file of a mipmap level and loads its content into
+	 * physical memory.
+	 * 
+	 * @param mipmap
+	 *            the mipmap level.
+	 * @return a read-only buffer of the mipmap file content.
+	 * @throws IOException
+	 *             if an IOException occurs.
+	 */
+	private ByteBuffer mapMipmapFile(int mipmap) throws IOException {
+		try (FileChannel channel = FileChannel.open(mipmapPaths[mipmap],
+				StandardOpenOption.READ)) {
+			final MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0,
+					channel.size());
+			buffer.load();
+			return buffer;
+		}
+	}
+
+	/**
+	 * Gets the mapping of a mipmap level, starting it on the executor if it
+	 * has not been started already.
+	 * 
+	 * @param mipmap
+	 *            the mipmap level.
+	 * @param executor
+	 *            the executor to map with.
+	 * @return the mapping.
+	 */
+	private CompletableFuture<ByteBuffer> getMapping(int mipmap,
+			Executor executor) {
+		CompletableFuture<ByteBuffer> mapping = mappings.get(mipmap);
+		if (mapping != null)
+			return mapping;
+
+		final CompletableFuture<ByteBuffer> newMapping =
+				new CompletableFuture<ByteBuffer>();
+		if (!mappings.compareAndSet(mipmap, null, newMapping))
+			return mappings.get(mipmap);
+		executor.execute(() -> {
+			// skip if released before started
+			if (mappings.get(mipmap) != newMapping) {
+				newMapping.cancel(false);
+				return;
+			}
+			try {
+				newMapping.complete(mapMipmapFile(mipmap));
+			} catch (IOException | RuntimeException e) {
+				newMapping.completeExceptionally(e);
+			}
+		});
+		return newMapping;
+	}
+
+	/**
+	 * Starts mapping the files of the specified mipmap levels on the executor
+	 * so that they are ready when requested. Levels that are already mapped or
+	 * being mapped are skipped. Failures are reported when the level is
+	 * requested. Does nothing if not in mapped mode.
+	 * 
+	 * @param mipmap
+	 *            the first mipmap level to prefetch.
+	 * @param count
+	 *            the number of mipmap levels to prefetch.
+	 * @param executor
+	 *            the executor to map with.
+	 */
+	public void prefetch(int mipmap, int count, Executor executor) {
+		if (!mapped)
+			return;
+		final int end = Math.min(MIPMAP_MAX, mipmap + count);
+		for (int i = Math.max(mipmap, 0); i < end; i += 1)
+			getMapping(i, executor);
 	}
 
 	/**
@@ -72,7 +225,44 @@ class ExternalMipmapManager {
 	 *             if an IOException occurs.
 	 */
 	public byte[] getMipmapDataChunk(int mipmap) throws IOException {
-		return Files.readAllBytes(getMipmapFilePath(mipmap));
+		if (!mapped)
+			return Files.readAllBytes(mipmapPaths[mipmap]);
+
+		final ByteBuffer chunk = getMipmapDataBuffer(mipmap);
+		final byte[] buff = new byte[chunk.remaining()];
+		chunk.get(buff);
+		return buff;
+	}
+
+	/**
+	 * Extracts a mipmap data chunk for the requested mipmap level as a
+	 * buffer. In mapped mode the buffer is a read-only view of the mapping so
+	 * the data is not copied.
+	 * 
+	 * @param mipmap
+	 *            the mipmap level.
+	 * @return a buffer containing the mipmap data chunk between its position
+	 *         and limit.
+	 * @throws IOException
+	 *             if an IOException occurs.
+	 */
+	public ByteBuffer getMipmapDataBuffer(int mipmap) throws IOException {
+		if (!mapped)
+			return ByteBuffer.wrap(Files.readAllBytes(mipmapPaths[mipmap]));
+
+		// map on calling thread if not already prefetched
+		final CompletableFuture<ByteBuffer> mapping = getMapping(mipmap,
+				Runnable::run);
+		try {
+			return mapping.join().asReadOnlyBuffer();
+		} catch (CompletionException e) {
+			// forget failure so that the level can be retried
+			mappings.compareAndSet(mipmap, mapping, null);
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new IOException(cause);
+		}
 	}
 
 	/**
@@ -82,18 +272,157 @@ class ExternalMipmapManager {
 	 * @param mipmap
 	 *            the mipmap level.
 	 * @param chunk
-	 *            a byte array containing the mipmap data chunk.
+	 *            a buffer containing the mipmap data chunk between its
+	 *            position and limit.
 	 * @throws IOException
 	 *             if an IOException occurs.
 	 */
-	public void setMipmapDataChunk(int mipmap, byte[] chunk) throws IOException {
-		final Path filePath = getMipmapFilePath(mipmap);
+	public void setMipmapDataChunk(int mipmap, ByteBuffer chunk)
+			throws IOException {
+		final Path filePath = mipmapPaths[mipmap];
 
 		if (chunk == null) {
 			Files.deleteIfExists(filePath);
 			return;
 		}
 
-		Files.write(filePath, chunk);
+		try (SeekableByteChannel channel = Files.newByteChannel(filePath,
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			writeFully(channel, chunk);
+		}
+	}
+
+	/**
+	 * Writes the content of a buffer fully to a channel.
+	 * 
+	 * @param channel
+	 *            the channel to write to.
+	 * @param chunk
+	 *            a buffer containing the data between its position and limit.
+	 * @throws IOException
+	 *             if an IOException occurs.
+	 */
+	private static void writeFully(SeekableByteChannel channel,
+			ByteBuffer chunk) throws IOException {
+		final ByteBuffer src = chunk.duplicate();
+		while (src.hasRemaining())
+			channel.write(src);
+	}
+
+	/**
+	 * Stages a mipmap data chunk for the requested mipmap level. The chunk is
+	 * written to a temporary file and forced to storage on the executor. It
+	 * only replaces the mipmap file when commitStaged is called.
+	 * <p>
+	 * Each mipmap level can be staged only once until the staged chunks are
+	 * committed or discarded. The chunk content must not be modified until
+	 * then.
+	 * 
+	 * @param mipmap
+	 *            the mipmap level.
+	 * @param chunk
+	 *            a buffer containing the mipmap data chunk between its
+	 *            position and limit.
+	 * @param executor
+	 *            the executor to write with.
+	 * @throws IOException
+	 *             if the temporary file cannot be created.
+	 * @throws IllegalStateException
+	 *             if the mipmap level is already staged.
+	 */
+	public void stageMipmapDataChunk(int mipmap, ByteBuffer chunk,
+			Executor executor) throws IOException {
+		if (stagedPaths[mipmap] != null)
+			throw new IllegalStateException("Mipmap level already staged.");
+		final Path target = mipmapPaths[mipmap];
+		final Path temp = Files.createTempFile(target.toAbsolutePath()
+				.getParent(), target.getFileName().toString(), ".tmp");
+		stagedPaths[mipmap] = temp;
+
+		stagedWrites.add(CompletableFuture.runAsync(() -> {
+			try (FileChannel channel = FileChannel.open(temp,
+					StandardOpenOption.WRITE)) {
+				writeFully(channel, chunk);
+				channel.force(true);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, executor));
+	}
+
+	/**
+	 * Commits all staged mipmap data chunks. Waits for all staged writes to
+	 * complete and then renames each temporary file to its mipmap file. Mipmap
+	 * files of the specified level and higher are deleted.
+	 * <p>
+	 * If any staged write failed then all temporary files are deleted, no
+	 * mipmap file is changed and the failure is thrown.
+	 * 
+	 * @param mipmapCount
+	 *            the number of mipmap levels of the BLP0 file.
+	 * @throws IOException
+	 *             if an IOException occurs.
+	 */
+	public void commitStaged(int mipmapCount) throws IOException {
+		// wait for all writes to be durable
+		try {
+			CompletableFuture.allOf(
+					stagedWrites.toArray(new CompletableFuture<?>[0])).join();
+		} catch (CompletionException e) {
+			discardStaged();
+			final Throwable cause = e.getCause();
+			if (cause instanceof UncheckedIOException)
+				throw ((UncheckedIOException) cause).getCause();
+			throw new IOException(cause);
+		}
+		stagedWrites.clear();
+
+		// replace mipmap files
+		for (int i = 0; i < MIPMAP_MAX; i += 1) {
+			if (stagedPaths[i] != null) {
+				Files.move(stagedPaths[i], mipmapPaths[i],
+						StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+				stagedPaths[i] = null;
+			} else if (i >= mipmapCount) {
+				Files.deleteIfExists(mipmapPaths[i]);
+			}
+		}
+
+		// make renames durable where supported
+		try (FileChannel dir = FileChannel.open(mipmapPaths[0]
+				.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+			dir.force(true);
+		} catch (IOException e) {
+			// directories cannot be opened on some platforms
+		}
+	}
+
+	/**
+	 * Discards all staged mipmap data chunks, deleting their temporary files.
+	 * Mipmap files are not changed. Does nothing if no chunks are staged.
+	 */
+	public void discardStaged() {
+		// wait for writes so that temporary files are not recreated
+		for (final CompletableFuture<Void> write : stagedWrites) {
+			try {
+				write.join();
+			} catch (CompletionException e) {
+				// failure is irrelevant when discarding
+			}
+		}
+		stagedWrites.clear();
+
+		for (int i = 0; i < MIPMAP_MAX; i += 1) {
+			if (stagedPaths[i] != null) {
+				try {
+					Files.deleteIfExists(stagedPaths[i]);
+				} catch (IOException e) {
+					// leave undeletable temporary file behind
+				}
+				stagedPaths[i] = null;
+			}
+		}
 	}
 }
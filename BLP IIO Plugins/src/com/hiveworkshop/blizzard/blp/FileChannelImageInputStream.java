@@ -0,0 +1,164 @@
+package com.hiveworkshop.blizzard.blp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+
+/**
+ * ImageInputStream that reads from a file using a FileChannel.
+ * <p>
+ * Unlike FileImageInputStream, which issues a separate read for every small
+ * request, data is read ahead into a direct buffer so that a run of small
+ * reads such as the BLP header fields, mipmap chunk table and palette is
+ * served by a single read operation. Reads at least as large as the buffer
+ * bypass it and go directly into the destination array.
+ * <p>
+ * All reads are positional so the channel position is never used or changed.
+ * The stream owns the channel, which is closed when the stream is closed.
+ *
+ * @author Imperial Good
+ */
+class FileChannelImageInputStream extends ImageInputStreamImpl {
+	/**
+	 * Default read-ahead buffer capacity in bytes. Large enough to hold the
+	 * header of all BLP versions including a palette or shared JPEG header.
+	 */
+	private static final int DEFAULT_BUFFER_CAPACITY = 8192;
+
+	/**
+	 * The channel data is read from.
+	 */
+	private final FileChannel channel;
+
+	/**
+	 * The read-ahead buffer. Valid data is between 0 and the limit.
+	 */
+	private final ByteBuffer buffer;
+
+	/**
+	 * Stream position of the first byte in buffer.
+	 */
+	private long bufferPos = 0;
+
+	/**
+	 * Constructs a stream reading from the file at the specified path with
+	 * the default buffer capacity.
+	 *
+	 * @param path
+	 *            the file path.
+	 * @throws IOException
+	 *             if the file cannot be opened.
+	 */
+	public FileChannelImageInputStream(Path path) throws IOException {
+		this(FileChannel.open(path, StandardOpenOption.READ),
+				DEFAULT_BUFFER_CAPACITY);
+	}
+
+	/**
+	 * Constructs a stream reading from the specified channel. The stream takes
+	 * ownership of the channel.
+	 *
+	 * @param channel
+	 *            the channel to read from.
+	 * @param capacity
+	 *            the read-ahead buffer capacity in bytes.
+	 * @throws IllegalArgumentException
+	 *             if capacity is not positive.
+	 */
+	public FileChannelImageInputStream(FileChannel channel, int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Capacity must be positive.");
+		this.channel = channel;
+		buffer = ByteBuffer.allocateDirect(capacity);
+		buffer.limit(0);
+	}
+
+	/**
+	 * Positions the buffer at the stream position, refilling it from the
+	 * channel if the stream position is outside the buffered data.
+	 *
+	 * @return true if data is available, false if at end of file.
+	 * @throws IOException
+	 *             if an IOException occurs.
+	 */
+	private boolean fillBuffer() throws IOException {
+		final long offset = streamPos - bufferPos;
+		if (offset >= 0 && offset < buffer.limit()) {
+			buffer.position((int) offset);
+			return true;
+		}
+
+		buffer.clear();
+		bufferPos = streamPos;
+		int num;
+		do {
+			num = channel.read(buffer, bufferPos + buffer.position());
+		} while (num == 0 && buffer.hasRemaining());
+		buffer.flip();
+		return buffer.hasRemaining();
+	}
+
+	@Override
+	public int read() throws IOException {
+		checkClosed();
+		bitOffset = 0;
+		if (!fillBuffer())
+			return -1;
+		streamPos += 1;
+		return buffer.get() & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		checkClosed();
+		if (off < 0 || len < 0 || off + len > b.length || off + len < 0)
+			throw new IndexOutOfBoundsException();
+		bitOffset = 0;
+		if (len == 0)
+			return 0;
+
+		int total = 0;
+		while (total < len) {
+			final int remaining = len - total;
+			final long offset = streamPos - bufferPos;
+			if (remaining >= buffer.capacity()
+					&& (offset < 0 || offset >= buffer.limit())) {
+				// large read directly into destination
+				final int num = channel.read(
+						ByteBuffer.wrap(b, off + total, remaining), streamPos);
+				if (num < 0)
+					break;
+				streamPos += num;
+				total += num;
+			} else {
+				if (!fillBuffer())
+					break;
+				final int num = Math.min(remaining, buffer.remaining());
+				buffer.get(b, off + total, num);
+				streamPos += num;
+				total += num;
+			}
+		}
+
+		return total == 0 ? -1 : total;
+	}
+
+	@Override
+	public long length() {
+		try {
+			return channel.size();
+		} catch (IOException e) {
+			return -1L;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		super.close();
+		channel.close();
+	}
+}
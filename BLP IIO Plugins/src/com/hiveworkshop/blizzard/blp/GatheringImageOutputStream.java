@@ -0,0 +1,219 @@
+package com.hiveworkshop.blizzard.blp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.imageio.stream.ImageOutputStreamImpl;
+
+/**
+ * ImageOutputStream that assembles a file in memory and writes it to a
+ * channel with a single gathering write when closed.
+ * <p>
+ * The stream content is a head followed by a sequence of appended buffers.
+ * The head holds everything written with the standard stream methods, such as
+ * the header, mipmap chunk table and palette or JPEG header, and can be sought
+ * and rewritten freely. Large blocks such as mipmap data chunks are appended
+ * by reference without copying. Once a buffer has been appended the head can
+ * no longer grow, only be rewritten.
+ * <p>
+ * Nothing is written to the channel until the stream is closed, at which point
+ * the head and all appended buffers are written in order by one gathering
+ * write. The stream owns the channel, which is closed when the stream is
+ * closed.
+ *
+ * @author Imperial Good
+ */
+class GatheringImageOutputStream extends ImageOutputStreamImpl {
+	/**
+	 * Initial head capacity in bytes. Large enough to hold the header of all
+	 * BLP versions including a palette.
+	 */
+	private static final int INITIAL_HEAD_CAPACITY = 2048;
+
+	/**
+	 * The channel to write to when closed.
+	 */
+	private final WritableByteChannel channel;
+
+	/**
+	 * Head content. Valid data is between 0 and headLength.
+	 */
+	private byte[] head = new byte[INITIAL_HEAD_CAPACITY];
+
+	/**
+	 * Length of the head in bytes.
+	 */
+	private int headLength = 0;
+
+	/**
+	 * Buffers appended after the head, each with content between position and
+	 * limit.
+	 */
+	private final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+
+	/**
+	 * Total length of all appended buffers in bytes.
+	 */
+	private long buffersLength = 0;
+
+	/**
+	 * Constructs a stream writing to the specified channel when closed. The
+	 * stream takes ownership of the channel.
+	 *
+	 * @param channel
+	 *            the channel to write to.
+	 */
+	public GatheringImageOutputStream(WritableByteChannel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * Makes room in the head for a write at the stream position.
+	 *
+	 * @param len
+	 *            the number of bytes to be written.
+	 * @throws IOException
+	 *             if the write would grow the head after buffers have been
+	 *             appended.
+	 */
+	private void ensureHead(int len) throws IOException {
+		final long end = streamPos + len;
+		if (end <= headLength)
+			return;
+		else if (!buffers.isEmpty())
+			throw new IOException("Cannot grow head after appending buffers.");
+		else if (end > Integer.MAX_VALUE)
+			throw new IOException("Head too big.");
+
+		if (end > head.length)
+			head = Arrays.copyOf(head,
+					(int) Math.min(Math.max(end, head.length * 2L),
+							Integer.MAX_VALUE));
+		if (streamPos > headLength)
+			Arrays.fill(head, headLength, (int) streamPos, (byte) 0);
+		headLength = (int) end;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		checkClosed();
+		flushBits();
+		ensureHead(1);
+		head[(int) streamPos++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		checkClosed();
+		if (off < 0 || len < 0 || off + len > b.length || off + len < 0)
+			throw new IndexOutOfBoundsException();
+		flushBits();
+		ensureHead(len);
+		System.arraycopy(b, off, head, (int) streamPos, len);
+		streamPos += len;
+	}
+
+	/**
+	 * Appends a buffer to the end of the stream without copying its content.
+	 * The content between the buffer position and limit is written when the
+	 * stream is closed so must not be modified until then. The stream position
+	 * is moved to the end of the stream.
+	 *
+	 * @param buffer
+	 *            the buffer to append.
+	 * @throws IOException
+	 *             if the stream is closed.
+	 */
+	public void append(ByteBuffer buffer) throws IOException {
+		checkClosed();
+		flushBits();
+		if (!buffer.hasRemaining())
+			return;
+		buffers.add(buffer.duplicate());
+		buffersLength += buffer.remaining();
+		streamPos = length();
+	}
+
+	@Override
+	public int read() throws IOException {
+		final byte[] b = new byte[1];
+		return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		checkClosed();
+		if (off < 0 || len < 0 || off + len > b.length || off + len < 0)
+			throw new IndexOutOfBoundsException();
+		bitOffset = 0;
+		if (len == 0)
+			return 0;
+		if (streamPos >= length())
+			return -1;
+
+		// read from head
+		if (streamPos < headLength) {
+			final int num = (int) Math.min(len, headLength - streamPos);
+			System.arraycopy(head, (int) streamPos, b, off, num);
+			streamPos += num;
+			return num;
+		}
+
+		// read from the appended buffer containing stream position
+		long bufferPos = headLength;
+		for (final ByteBuffer buffer : buffers) {
+			final int size = buffer.remaining();
+			if (streamPos < bufferPos + size) {
+				final int offset = (int) (streamPos - bufferPos);
+				final int num = Math.min(len, size - offset);
+				buffer.duplicate().position(buffer.position() + offset)
+						.get(b, off, num);
+				streamPos += num;
+				return num;
+			}
+			bufferPos += size;
+		}
+		return -1;
+	}
+
+	@Override
+	public long length() {
+		return headLength + buffersLength;
+	}
+
+	/**
+	 * Writes the head and all appended buffers to the channel with a gathering
+	 * write and then closes the channel.
+	 */
+	@Override
+	public void close() throws IOException {
+		checkClosed();
+		try {
+			final ByteBuffer[] content = new ByteBuffer[buffers.size() + 1];
+			content[0] = ByteBuffer.wrap(head, 0, headLength);
+			for (int i = 0; i < buffers.size(); i += 1)
+				content[i + 1] = buffers.get(i).duplicate();
+			final ByteBuffer last = content[content.length - 1];
+
+			if (channel instanceof GatheringByteChannel) {
+				final GatheringByteChannel gatherer = (GatheringByteChannel) channel;
+				while (last.hasRemaining())
+					gatherer.write(content);
+			} else {
+				for (final ByteBuffer buffer : content)
+					while (buffer.hasRemaining())
+						channel.write(buffer);
+			}
+		} finally {
+			super.close();
+			head = null;
+			buffers.clear();
+			channel.close();
+		}
+	}
+}
@@ -10,6 +10,7 @@ import java.awt.image.Raster;
 import java.awt.image.SampleModel;
 import java.awt.image.WritableRaster;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Arrays;
 import java.util.Iterator;
@@ -75,7 +76,7 @@ public class IndexedMipmapProcessor extends MipmapProcessor {
 	}
 
 	@Override
-	public byte[] encodeMipmap(BufferedImage img, ImageWriteParam param,
+	public ByteBuffer encodeMipmap(BufferedImage img, ImageWriteParam param,
 			Consumer<LocalizedFormatedString> handler) throws IOException {
 		final WritableRaster srcWR = img.getRaster();
 		final ColorModel srcCM = img.getColorModel();
@@ -97,12 +98,11 @@ public class IndexedMipmapProcessor extends MipmapProcessor {
 				final int[] srcCMap = new int[iCM.getMapSize()];
 				iCM.getRGBs(srcCMap);
 
-				// color space conversion
+				// copy color components raw, as with other content
 				final ColorModel srcCMapCM = ColorModel.getRGBdefault();
 				final ColorModel destCMapCM = BLPIndexColorModel.createPaletteColorModel(ColorSpace.getInstance(ColorSpace.CS_LINEAR_RGB));
 				final int[] destCMap = new int[srcCMap.length];
-				final int[] components = new int[srcCMapCM
-						.getNumColorComponents()];
+				final int[] components = new int[srcCMapCM.getNumComponents()];
 				for (int i = 0; i < srcCMap.length; i += 1) {
 					destCMap[i] = destCMapCM.getDataElement(
 							srcCMapCM.getComponents(srcCMap[i], components, 0),
@@ -125,35 +125,36 @@ public class IndexedMipmapProcessor extends MipmapProcessor {
 		final WritableRaster destWR = WritableRaster
 				.createWritableRaster(destSM, destDB, null);
 
-		// copy bands
+		// copy bands a row at a time
 		final boolean hasAlpha = bandSizes.length > 1;
 		final boolean srcHasAlpha = hasAlpha && srcSM.getNumBands() > 1;
-		final boolean rescaleAlpha = srcHasAlpha
-				&& srcSM.getSampleSize(1) != bandSizes[1];
 		final int alphaMask = hasAlpha ? (1 << bandSizes[1]) - 1 : 0;
+		final int srcAlphaMask = srcHasAlpha ? (1 << srcSM.getSampleSize(1)) - 1
+				: 0;
+		final boolean rescaleAlpha = srcHasAlpha && srcAlphaMask != alphaMask;
+		int[] row = new int[w];
 		for (int y = 0; y < h; y += 1) {
-			for (int x = 0; x < w; x += 1) {
-				destWR.setSample(x, y, 0, srcWR.getSample(x, y, 0));
-				if (hasAlpha) {
-					if (srcHasAlpha) {
-						int alphaSample = srcWR.getSample(x, y, 1);
-						if (rescaleAlpha)
-							alphaSample = (int) ((float) alphaMask
-									* (float) alphaSample
-									/ (float) (srcSM.getSampleSize(1) - 1));
-						destWR.setSample(x, y, 1, alphaSample);
-					} else
-						destWR.setSample(x, y, 1, alphaMask);
-				}
+			row = srcWR.getSamples(0, y, w, 1, 0, row);
+			destWR.setSamples(0, y, w, 1, 0, row);
+			if (hasAlpha) {
+				if (srcHasAlpha) {
+					row = srcWR.getSamples(0, y, w, 1, 1, row);
+					if (rescaleAlpha)
+						for (int x = 0; x < w; x += 1)
+							row[x] = (row[x] * alphaMask + srcAlphaMask / 2)
+									/ srcAlphaMask;
+				} else
+					Arrays.fill(row, alphaMask);
+				destWR.setSamples(0, y, w, 1, 1, row);
 			}
 		}
 
 		// return destination results
-		return ((DataBufferByte) srcWR.getDataBuffer()).getData();
+		return ByteBuffer.wrap(((DataBufferByte) destDB).getData());
 	}
 
 	@Override
-	public BufferedImage decodeMipmap(byte[] mmData, ImageReadParam param,
+	public BufferedImage decodeMipmap(ByteBuffer mmData, ImageReadParam param,
 			int width, int height, Consumer<LocalizedFormatedString> handler)
 			throws IOException {
 		// create sample model
@@ -162,15 +163,14 @@ public class IndexedMipmapProcessor extends MipmapProcessor {
 
 		// validate chunk size
 		final int expected = sm.getBufferSize();
-		if (mmData.length != expected) {
+		if (mmData.remaining() != expected)
 			handler.accept(
 					new LocalizedFormatedString("com.hiveworkshop.text.blp",
-							"BadBuffer", mmData.length, expected));
-			mmData = Arrays.copyOf(mmData, expected);
-		}
+							"BadBuffer", mmData.remaining(), expected));
 
 		// produce image WritableRaster
-		final DataBuffer db = new DataBufferByte(mmData, mmData.length);
+		final byte[] data = toImageData(mmData, expected);
+		final DataBuffer db = new DataBufferByte(data, data.length);
 		final WritableRaster raster = Raster.createWritableRaster(sm, db, null);
 
 		// produce buffered image
@@ -180,6 +180,35 @@ public class IndexedMipmapProcessor extends MipmapProcessor {
 		return img;
 	}
 
+	@Override
+	public boolean canDecodeDirect() {
+		return true;
+	}
+
+	@Override
+	public BLPDirectMipmap decodeMipmapDirect(ByteBuffer mmData, int width,
+			int height, Consumer<LocalizedFormatedString> handler)
+			throws IOException {
+		// create sample model
+		final BLPPackedSampleModel sm = new BLPPackedSampleModel(width, height,
+				bandSizes, null);
+
+		// validate chunk size
+		final int expected = sm.getBufferSize();
+		if (mmData.remaining() != expected)
+			handler.accept(
+					new LocalizedFormatedString("com.hiveworkshop.text.blp",
+							"BadBuffer", mmData.remaining(), expected));
+
+		// copy mipmap data, missing data remains 0
+		final BLPDirectMipmap store = BLPDirectMipmap.allocate(
+				indexedBLPColorModel, sm, expected);
+		final ByteBuffer src = mmData.duplicate();
+		src.limit(src.position() + Math.min(src.remaining(), expected));
+		store.getData().put(src);
+		return store;
+	}
+
 	@Override
 	public Iterator<ImageTypeSpecifier> getSupportedImageTypes(int width,
 			int height) {
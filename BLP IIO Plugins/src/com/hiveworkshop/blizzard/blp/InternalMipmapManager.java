@@ -3,8 +3,12 @@ package com.hiveworkshop.blizzard.blp;
 import static com.hiveworkshop.blizzard.blp.BLPCommon.MIPMAP_MAX;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
 import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 
 import javax.imageio.stream.ImageInputStream;
@@ -97,6 +101,123 @@ class InternalMipmapManager {
 		return buff;
 	}
 
+	/**
+	 * Extracts a mipmap data chunk for the requested mipmap level from the
+	 * given in memory stream without copying. The returned buffer is a read
+	 * only slice of the stream content. A warning handler must be provided to
+	 * process any warnings that occur during extraction.
+	 * <p>
+	 * If the chunk extends beyond the end of the stream a warning will be
+	 * emitted and the slice will be truncated.
+	 * 
+	 * @param src
+	 *            stream to source mipmap data chunks from.
+	 * @param mipmap
+	 *            the mipmap level.
+	 * @param warning
+	 *            warning handler function.
+	 * @return a buffer containing the mipmap data chunk.
+	 * @throws IOException
+	 *             if an IOException occurs.
+	 */
+	public ByteBuffer getMipmapDataChunk(ByteBufferImageInputStream src,
+			int mipmap, Consumer<LocalizedFormatedString> warning)
+			throws IOException {
+		final long offset = chunkOffsets[mipmap] & 0xFFFFFFFFL;
+		final long sizeLong = chunkSizes[mipmap] & 0xFFFFFFFFL;
+
+		// process chunk size
+		final int size;
+		final int sizeMax = Integer.MAX_VALUE;
+		if (sizeLong > sizeMax) {
+			warning.accept(new LocalizedFormatedString("com.hiveworkshop.text.blp",
+					"BadChunkSize", sizeLong, sizeMax));
+			size = sizeMax;
+		} else {
+			size = (int) sizeLong;
+		}
+
+		// slice data
+		final ByteBuffer chunk = src.slice(size > 0 ? offset : 0, size);
+		if (chunk.remaining() < size)
+			warning.accept(new LocalizedFormatedString("com.hiveworkshop.text.blp",
+					"BadChunkPos", size, chunk.remaining()));
+
+		return chunk;
+	}
+
+	/**
+	 * Extracts a mipmap data chunk for the requested mipmap level from the
+	 * given file channel asynchronously. The returned future completes with
+	 * the unprocessed data once the read completes. A warning handler must be
+	 * provided to process any warnings that occur during extraction.
+	 * <p>
+	 * Warnings are the same as for reading from a stream. Chunks with 0 size
+	 * generate no I/O.
+	 * 
+	 * @param src
+	 *            channel to source mipmap data chunks from.
+	 * @param mipmap
+	 *            the mipmap level.
+	 * @param warning
+	 *            warning handler function.
+	 * @return a future of a byte array containing the mipmap data chunk.
+	 */
+	public CompletableFuture<byte[]> getMipmapDataChunk(
+			AsynchronousFileChannel src, int mipmap,
+			Consumer<LocalizedFormatedString> warning) {
+		final long offset = chunkOffsets[mipmap] & 0xFFFFFFFFL;
+		final long sizeLong = chunkSizes[mipmap] & 0xFFFFFFFFL;
+
+		// process chunk size
+		final int size;
+		final int sizeMax = Integer.MAX_VALUE;
+		if (sizeLong > sizeMax) {
+			warning.accept(new LocalizedFormatedString("com.hiveworkshop.text.blp",
+					"BadChunkSize", sizeLong, sizeMax));
+			size = sizeMax;
+		} else {
+			size = (int) sizeLong;
+		}
+
+		// read data until full or end of file
+		final CompletableFuture<byte[]> result = new CompletableFuture<byte[]>();
+		final ByteBuffer buff = ByteBuffer.allocate(size);
+		final CompletionHandler<Integer, Void> handler =
+				new CompletionHandler<Integer, Void>() {
+			@Override
+			public void completed(Integer read, Void attachment) {
+				if (read == -1) {
+					// end of file before full read
+					warning.accept(new LocalizedFormatedString(
+							"com.hiveworkshop.text.blp", "BadChunkPos", size,
+							buff.position()));
+					result.complete(Arrays.copyOf(buff.array(),
+							buff.position()));
+				} else if (buff.hasRemaining()) {
+					src.read(buff, offset + buff.position(), null, this);
+				} else {
+					result.complete(buff.array());
+				}
+			}
+
+			@Override
+			public void failed(Throwable exc, Void attachment) {
+				result.completeExceptionally(exc);
+			}
+		};
+		if (size > 0) {
+			try {
+				src.read(buff, offset, null, handler);
+			} catch (RuntimeException e) {
+				result.completeExceptionally(e);
+			}
+		} else
+			result.complete(buff.array());
+
+		return result;
+	}
+
 	/**
 	 * Inserts a mipmap data chunk for the requested mipmap level to the given
 	 * stream. An empty array can be used to remove chunks.
@@ -112,30 +233,116 @@ class InternalMipmapManager {
 	 * @param mipmap
 	 *            the mipmap level.
 	 * @param chunk
-	 *            a byte array containing the mipmap data chunk.
+	 *            a buffer containing the mipmap data chunk between its
+	 *            position and limit.
 	 * @throws IOException
 	 *             if an IOException occurs.
 	 */
 	public void setMipmapDataChunk(ImageOutputStream dst, int mipmap,
-			byte[] chunk) throws IOException {
-		final int len = chunk.length;
+			ByteBuffer chunk) throws IOException {
+		final int len = chunk.remaining();
 
 		// TODO compact/defragment stream
 
 		// chunk logical position
-		chunkSizes[mipmap] = len;
-		final long offset = len > 0 ? chunkStreamPos : 0;
-		if (offset > 0xFFFFFFFFL)
-			throw new IOException("Stream offset too big.");
-		chunkOffsets[mipmap] = (int) offset;
+		final long offset = allocateMipmapDataChunk(mipmap, len);
 
 		// write chunk
 		if (len > 0) {
-			dst.seek(chunkStreamPos);
-			dst.write(chunk);
+			dst.seek(offset);
+			if (chunk.hasArray()) {
+				dst.write(chunk.array(),
+						chunk.arrayOffset() + chunk.position(), len);
+			} else {
+				final byte[] buff = new byte[len];
+				chunk.duplicate().get(buff);
+				dst.write(buff);
+			}
 		}
+	}
+
+	/**
+	 * Inserts a mipmap data chunk for the requested mipmap level to the given
+	 * gathering stream without copying. The chunk is appended to the stream
+	 * by reference so its content must not be modified until the stream is
+	 * closed. An empty buffer can be used to remove chunks.
+	 * <p>
+	 * The mipmap data chunk block offset must be set before calling this and
+	 * mipmaps must be set only once in rising numeric order, as chunks can
+	 * only be appended to the end of the stream.
+	 * 
+	 * @param dst
+	 *            stream to place mipmap data chunks to.
+	 * @param mipmap
+	 *            the mipmap level.
+	 * @param chunk
+	 *            a buffer containing the mipmap data chunk between its
+	 *            position and limit.
+	 * @throws IOException
+	 *             if the chunk does not follow the end of the stream.
+	 */
+	public void setMipmapDataChunk(GatheringImageOutputStream dst, int mipmap,
+			ByteBuffer chunk) throws IOException {
+		final int len = chunk.remaining();
 
-		chunkStreamPos += len;
+		// chunk logical position
+		final long offset = allocateMipmapDataChunk(mipmap, len);
+
+		// append chunk
+		if (len > 0) {
+			if (offset != dst.length())
+				throw new IOException("Mipmap data chunk not at end of stream.");
+			dst.append(chunk);
+		}
+	}
+
+	/**
+	 * Allocates space for a mipmap data chunk for the requested mipmap level
+	 * without writing it. The chunk content must then be written at the
+	 * returned stream offset by other means.
+	 * <p>
+	 * The same requirements as setMipmapDataChunk apply.
+	 * 
+	 * @param mipmap
+	 *            the mipmap level.
+	 * @param size
+	 *            the chunk size in bytes.
+	 * @return the stream offset of the chunk.
+	 * @throws IOException
+	 *             if the chunk offset is too big.
+	 */
+	public long allocateMipmapDataChunk(int mipmap, int size)
+			throws IOException {
+		final long offset = size > 0 ? chunkStreamPos : 0;
+		if (offset > 0xFFFFFFFFL)
+			throw new IOException("Stream offset too big.");
+		chunkSizes[mipmap] = size;
+		chunkOffsets[mipmap] = (int) offset;
+		chunkStreamPos += size;
+		return offset;
+	}
+
+	/**
+	 * Get the stream offset of the mipmap data chunk for the requested mipmap
+	 * level.
+	 * 
+	 * @param mipmap
+	 *            the mipmap level.
+	 * @return the chunk offset.
+	 */
+	public long getMipmapDataChunkOffset(int mipmap) {
+		return chunkOffsets[mipmap] & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * Get the size of the mipmap data chunk for the requested mipmap level.
+	 * 
+	 * @param mipmap
+	 *            the mipmap level.
+	 * @return the chunk size in bytes.
+	 */
+	public long getMipmapDataChunkSize(int mipmap) {
+		return chunkSizes[mipmap] & 0xFFFFFFFFL;
 	}
 
 	/**
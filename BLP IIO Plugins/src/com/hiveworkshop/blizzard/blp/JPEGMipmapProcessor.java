@@ -10,10 +10,8 @@ import java.awt.image.DataBuffer;
 import java.awt.image.Raster;
 import java.awt.image.SampleModel;
 import java.awt.image.WritableRaster;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -31,10 +29,12 @@ import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
 import javax.imageio.event.IIOReadWarningListener;
 import javax.imageio.event.IIOWriteWarningListener;
+import javax.imageio.plugins.jpeg.JPEGHuffmanTable;
+import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+import javax.imageio.plugins.jpeg.JPEGQTable;
+import javax.imageio.spi.ImageWriterSpi;
 import javax.imageio.stream.ImageInputStream;
 import javax.imageio.stream.ImageOutputStream;
-import javax.imageio.stream.MemoryCacheImageInputStream;
-import javax.imageio.stream.MemoryCacheImageOutputStream;
 
 import com.hiveworkshop.lang.LocalizedFormatedString;
 
@@ -59,7 +59,19 @@ import com.hiveworkshop.lang.LocalizedFormatedString;
  * The JPEG ImageReader used can be controlled by a BLPReadParam. Likewise the
  * JPEG ImageWriter used can be controlled by a BLPWriteParam. For best encoding
  * results it is recommended the JPEG ImageWriter be kept constant for all
- * mipmap levels.
+ * mipmap levels. The JPEG ImageWriter and its write parameters are reused for
+ * all mipmap levels encoded by the same processor, which is confined to a
+ * single BLPWriter and so to a single writer thread.
+ * <p>
+ * Encoding can optionally use fixed JPEG tables. Explicit quantization tables
+ * scaled to the compression quality and the standard Huffman tables are then
+ * given to the JPEG ImageWriter, so all mipmap levels of the same quality
+ * share identical tables. The shared header is taken to be the tables, known
+ * once the first level is encoded, and mipmap data is the abbreviated JPEG
+ * stream following them. This avoids buffering all mipmap levels to compare
+ * them. A warning is generated for levels whose tables differ from the shared
+ * header, such as when encoded at another quality, which keep their own
+ * tables.
  * 
  * @author Imperial Good
  */
@@ -72,6 +84,38 @@ class JPEGMipmapProcessor extends MipmapProcessor {
 	 */
 	private static final int MAX_SHARED_HEADER_LENGTH = 0x270;
 
+	/**
+	 * JPEG start of image marker.
+	 */
+	private static final int JPEG_SOI = 0xD8;
+
+	/**
+	 * JPEG start of scan marker.
+	 */
+	private static final int JPEG_SOS = 0xDA;
+
+	/**
+	 * JPEG define quantization table marker.
+	 */
+	private static final int JPEG_DQT = 0xDB;
+
+	/**
+	 * JPEG define Huffman table marker.
+	 */
+	private static final int JPEG_DHT = 0xC4;
+
+	/**
+	 * Huffman tables for DC coefficients used by fixed table encoding.
+	 */
+	private static final JPEGHuffmanTable[] FIXED_DC_HUFFMAN_TABLES = {
+			JPEGHuffmanTable.StdDCLuminance, JPEGHuffmanTable.StdDCChrominance };
+
+	/**
+	 * Huffman tables for AC coefficients used by fixed table encoding.
+	 */
+	private static final JPEGHuffmanTable[] FIXED_AC_HUFFMAN_TABLES = {
+			JPEGHuffmanTable.StdACLuminance, JPEGHuffmanTable.StdACChrominance };
+
 	/**
 	 * BLP JPEG content band mapping array.
 	 */
@@ -87,6 +131,36 @@ class JPEGMipmapProcessor extends MipmapProcessor {
 	 */
 	private byte[] jpegHeader = null;
 
+	/**
+	 * JPEG ImageWriter reused for all mipmap levels encoded by this processor.
+	 */
+	private ImageWriter jpegWriter = null;
+
+	/**
+	 * The ImageWriterSpi that was requested when jpegWriter was created.
+	 */
+	private ImageWriterSpi jpegWriterSpi = null;
+
+	/**
+	 * ImageWriteParam reused with jpegWriter.
+	 */
+	private ImageWriteParam jpegWriteParam = null;
+
+	/**
+	 * Warning handler for the mipmap currently being encoded.
+	 */
+	private Consumer<LocalizedFormatedString> encodeWarningHandler = null;
+
+	/**
+	 * Encoded length of the previous mipmap level, or -1 if none.
+	 */
+	private int lastEncodedLength = -1;
+
+	/**
+	 * Encode using fixed JPEG tables placed in the shared header.
+	 */
+	private final boolean fixedTables;
+
 	/**
 	 * Constructs a MipmapProcessor for JPEG content.
 	 * 
@@ -96,6 +170,27 @@ class JPEGMipmapProcessor extends MipmapProcessor {
 	 *             if alphaBits is not valid.
 	 */
 	public JPEGMipmapProcessor(int alphaBits) {
+		this(alphaBits, false);
+	}
+
+	/**
+	 * Constructs a MipmapProcessor for JPEG content, optionally encoding with
+	 * fixed JPEG tables.
+	 * <p>
+	 * When using fixed tables the shared header is made up of the JPEG
+	 * quantization and Huffman tables and is known as soon as the first mipmap
+	 * level is encoded. Encoded mipmap data then does not need post processing
+	 * and can be written out immediately.
+	 * 
+	 * @param alphaBits
+	 *            the alpha component bits, if any.
+	 * @param fixedTables
+	 *            if fixed JPEG tables should be used for encoding.
+	 * @throws IllegalArgumentException
+	 *             if alphaBits is not valid.
+	 */
+	public JPEGMipmapProcessor(int alphaBits, boolean fixedTables) {
+		this.fixedTables = fixedTables;
 		if (!BLPEncodingType.JPEG.isAlphaBitsValid(alphaBits))
 			throw new IllegalArgumentException("Unsupported alphaBits.");
 		final boolean hasAlpha = alphaBits == 8;
@@ -105,22 +200,33 @@ class JPEGMipmapProcessor extends MipmapProcessor {
 						: Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
 	}
 
+	/**
+	 * Get the length of the shared JPEG header.
+	 * 
+	 * @return the shared header length in bytes, 0 if not yet produced.
+	 */
+	public int getSharedHeaderLength() {
+		return jpegHeader != null ? jpegHeader.length : 0;
+	}
+
 	@Override
 	public boolean mustPostProcess() {
-		return true;
+		return !fixedTables;
 	}
 
 	@Override
-	public List<byte[]> postProcessMipmapData(List<byte[]> mmDataList,
+	public List<ByteBuffer> postProcessMipmapData(List<ByteBuffer> mmDataList,
 			Consumer<LocalizedFormatedString> handler) {
 		// determine maximum shared header
-		byte[] sharedHeader = mmDataList.get(0).clone();
-		int sharedLength = sharedHeader.length;
+		final ByteBuffer sharedHeader = mmDataList.get(0);
+		int sharedLength = sharedHeader.remaining();
 		final int mmDataNum = mmDataList.size();
 		for (int i = 1; i < mmDataNum; i += 1) {
-			final byte[] mmData = mmDataList.get(i);
+			final ByteBuffer mmData = mmDataList.get(i);
+			sharedLength = Math.min(sharedLength, mmData.remaining());
 			for (int shared = 0; shared < sharedLength; shared += 1) {
-				if (mmData[shared] != sharedHeader[shared]) {
+				if (mmData.get(mmData.position() + shared) != sharedHeader
+						.get(sharedHeader.position() + shared)) {
 					sharedLength = shared;
 					break;
 				}
@@ -136,53 +242,100 @@ class JPEGMipmapProcessor extends MipmapProcessor {
 		}
 
 		// produce shared header
-		jpegHeader = Arrays.copyOf(sharedHeader, sharedLength);
+		jpegHeader = new byte[sharedLength];
+		sharedHeader.duplicate().get(jpegHeader);
 		canDecode = true;
 
 		// process mipmap data
 		if (sharedLength == 0)
 			return mmDataList;
-		List<byte[]> mmDataListOut = new ArrayList<byte[]>(mmDataNum);
+		List<ByteBuffer> mmDataListOut = new ArrayList<ByteBuffer>(mmDataNum);
 		for (int i = 0; i < mmDataNum; i += 1) {
-			final byte[] mmData = mmDataList.get(i);
-			mmDataListOut.add(Arrays.copyOfRange(mmData, sharedLength,
-					mmData.length));
+			final ByteBuffer mmData = mmDataList.get(i).duplicate();
+			mmData.position(mmData.position() + sharedLength);
+			mmDataListOut.add(mmData.slice());
 		}
 
 		return mmDataListOut;
 	}
 
-	@Override
-	public byte[] encodeMipmap(BufferedImage img, ImageWriteParam param,
-			Consumer<LocalizedFormatedString> handler) throws IOException {
-		// resolve a JPEG ImageWriter
-		ImageWriter jpegWriter = null;
-		if (param instanceof BLPWriteParam
-				&& ((BLPWriteParam) param).getJPEGSpi() != null) {
-			// use explicit JPEG reader
-			jpegWriter = ((BLPWriteParam) param).getJPEGSpi()
-					.createWriterInstance();
+	/**
+	 * Resolves the JPEG ImageWriter to use for encoding, reusing the previous
+	 * one when possible.
+	 * 
+	 * @param param
+	 *            image write parameter to control encode behavior.
+	 * @throws IIOException
+	 *             if no suitable JPEG ImageWriter is available.
+	 */
+	private void resolveJPEGWriter(ImageWriteParam param) throws IOException {
+		// resolve requested JPEG ImageWriterSpi
+		final ImageWriterSpi spi = param instanceof BLPWriteParam ? ((BLPWriteParam) param)
+				.getJPEGSpi() : null;
+		if (jpegWriter != null && spi == jpegWriterSpi)
+			return;
+		if (jpegWriter != null)
+			jpegWriter.dispose();
+		jpegWriter = null;
+		jpegWriteParam = null;
+
+		ImageWriter writer = null;
+		if (spi != null) {
+			// use explicit JPEG writer
+			writer = spi.createWriterInstance();
 		} else {
-			// find a JPEG reader
+			// find a JPEG writer
 			Iterator<ImageWriter> jpegWriters = ImageIO
 					.getImageWritersByFormatName("jpeg");
 			while (jpegWriters.hasNext()) {
-				final ImageWriter writer = jpegWriters.next();
-				if (writer.canWriteRasters()) {
-					jpegWriter = writer;
+				final ImageWriter candidate = jpegWriters.next();
+				if (candidate.canWriteRasters()) {
+					writer = candidate;
 					break;
 				}
 			}
 		}
 		// validate JPEG writer
-		if (jpegWriter == null)
+		if (writer == null)
 			throw new IIOException("No suitable JPEG ImageWriter installed.");
-		else if (!jpegWriter.canWriteRasters()) {
+		else if (!writer.canWriteRasters()) {
 			throw new IIOException(String.format(
 					"JPEG ImageWriter cannot write raster: vendor = %s.",
-					jpegWriter.getOriginatingProvider().getVendorName()));
+					writer.getOriginatingProvider().getVendorName()));
 		}
 
+		// prepare reusable write state
+		final ImageWriteParam writeParam = writer.getDefaultWriteParam();
+		writeParam.setSourceBands(JPEG_BAND_ARRAY);
+		writeParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+		final String[] compressionTypes = writeParam.getCompressionTypes();
+		if (compressionTypes != null && compressionTypes.length > 0) {
+			writeParam.setCompressionType(compressionTypes[0]);
+		}
+		if (fixedTables && writeParam instanceof JPEGImageWriteParam) {
+			// tables are taken from the param when no metadata is given
+			writeParam.setCompressionMode(
+					ImageWriteParam.MODE_COPY_FROM_METADATA);
+		}
+		writer.addIIOWriteWarningListener(new IIOWriteWarningListener() {
+			@Override
+			public void warningOccurred(ImageWriter source, int imageIndex,
+					String warning) {
+				encodeWarningHandler.accept(new LocalizedFormatedString(
+						"com.hiveworkshop.text.blp", "JPEGWarning", warning));
+			}
+		});
+
+		jpegWriter = writer;
+		jpegWriterSpi = spi;
+		jpegWriteParam = writeParam;
+	}
+
+	@Override
+	public ByteBuffer encodeMipmap(BufferedImage img, ImageWriteParam param,
+			Consumer<LocalizedFormatedString> handler) throws IOException {
+		resolveJPEGWriter(param);
+
 		// prepare raster
 		final WritableRaster srcWR = img.getRaster();
 		final SampleModel srcSM = srcWR.getSampleModel();
@@ -208,45 +361,159 @@ class JPEGMipmapProcessor extends MipmapProcessor {
 			}
 		}
 
-		// prepare buffered JPEG file
-		final ByteArrayOutputStream bos = new ByteArrayOutputStream(100 << 10);
-		final ImageOutputStream ios = new MemoryCacheImageOutputStream(bos);
+		// prepare buffered JPEG file sized from previous mipmap level
+		final int capacity = lastEncodedLength >= 0 ? lastEncodedLength / 2
+				+ MAX_SHARED_HEADER_LENGTH : Math.max(w * h, 0x1000);
+		final ByteArrayImageOutputStream ios = new ByteArrayImageOutputStream(
+				capacity);
 		jpegWriter.setOutput(ios);
 
 		// write JPEG file
-		final ImageWriteParam jpegParam = jpegWriter.getDefaultWriteParam();
-		jpegParam.setSourceBands(JPEG_BAND_ARRAY);
-		jpegParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-		final String[] compressionTypes = jpegParam.getCompressionTypes();
-		if (compressionTypes != null && compressionTypes.length > 0) {
-			jpegParam.setCompressionType(compressionTypes[0]);
-		}
-		if (param != null && param.canWriteCompressed()
-				&& param.getCompressionMode() == ImageWriteParam.MODE_EXPLICIT) {
-			jpegParam.setCompressionQuality(param.getCompressionQuality());
-		} else {
-			jpegParam.setCompressionQuality(BLPWriteParam.DEFAULT_QUALITY);
+		final float quality = param != null && param.canWriteCompressed()
+				&& param.getCompressionMode() == ImageWriteParam.MODE_EXPLICIT ? param
+				.getCompressionQuality() : BLPWriteParam.DEFAULT_QUALITY;
+		if (jpegWriteParam.getCompressionMode() == ImageWriteParam.MODE_EXPLICIT)
+			jpegWriteParam.setCompressionQuality(quality);
+		else
+			((JPEGImageWriteParam) jpegWriteParam).setEncodeTables(
+					createQTables(quality), FIXED_DC_HUFFMAN_TABLES,
+					FIXED_AC_HUFFMAN_TABLES);
+		encodeWarningHandler = handler;
+		try {
+			jpegWriter.write(null, new IIOImage(destWR, null, null),
+					jpegWriteParam);
+		} finally {
+			jpegWriter.setOutput(null);
+			encodeWarningHandler = null;
 		}
-		jpegWriter.addIIOWriteWarningListener(new IIOWriteWarningListener() {
-			@Override
-			public void warningOccurred(ImageWriter source, int imageIndex,
-					String warning) {
-				handler.accept(new LocalizedFormatedString(
-						"com.hiveworkshop.text.blp", "JPEGWarning", warning));
+
+		ByteBuffer mmData = ios.toByteBuffer();
+		lastEncodedLength = mmData.remaining();
+		if (fixedTables)
+			mmData = extractTables(mmData, handler);
+		return mmData;
+	}
+
+	/**
+	 * Creates the fixed quantization tables for a compression quality. The
+	 * standard tables are scaled the same way as the IJG library and the
+	 * standard Java JPEG ImageWriter do for an explicit quality.
+	 * 
+	 * @param quality
+	 *            the compression quality from 0 to 1.
+	 * @return the luminance and chrominance quantization tables.
+	 */
+	private static JPEGQTable[] createQTables(float quality) {
+		final float clamped = Math.max(0.01f, Math.min(quality, 1f));
+		final float scale = clamped < 0.5f ? 0.5f / clamped
+				: 2f - 2f * clamped;
+		return new JPEGQTable[] {
+				JPEGQTable.K1Luminance.getScaledInstance(scale, true),
+				JPEGQTable.K2Chrominance.getScaledInstance(scale, true) };
+	}
+
+	/**
+	 * Separates the JPEG tables from an encoded JPEG file to produce mipmap
+	 * data for use with a fixed table shared header.
+	 * <p>
+	 * The marker segments before the start of scan are reordered in place so
+	 * that all quantization and Huffman table segments immediately follow the
+	 * start of image marker. If no shared header has been produced yet then
+	 * the start of image marker and tables become the shared header. If the
+	 * tables match the shared header then the mipmap data is everything after
+	 * them. Otherwise a warning is generated and the mipmap data keeps its own
+	 * tables, which replace those of the shared header when decoded.
+	 * 
+	 * @param jpeg
+	 *            array backed buffer containing a JPEG file.
+	 * @param handler
+	 *            warning handler.
+	 * @return the mipmap data.
+	 * @throws IIOException
+	 *             if the JPEG file structure is not understood.
+	 */
+	private ByteBuffer extractTables(ByteBuffer jpeg,
+			Consumer<LocalizedFormatedString> handler) throws IOException {
+		final byte[] data = jpeg.array();
+		final int base = jpeg.arrayOffset() + jpeg.position();
+		final int end = base + jpeg.remaining();
+
+		// validate start of image
+		if (end - base < 4 || (data[base] & 0xFF) != 0xFF
+				|| (data[base + 1] & 0xFF) != JPEG_SOI)
+			throw new IIOException("Encoded JPEG missing start of image.");
+
+		// partition marker segments before start of scan
+		final byte[] tables = new byte[MAX_SHARED_HEADER_LENGTH - 2];
+		int tablesLength = 0;
+		final byte[] others = new byte[0x1000];
+		int othersLength = 0;
+		int pos = base + 2;
+		while (true) {
+			// skip fill bytes
+			while (pos + 1 < end && (data[pos] & 0xFF) == 0xFF
+					&& (data[pos + 1] & 0xFF) == 0xFF)
+				pos += 1;
+			if (pos + 4 > end || (data[pos] & 0xFF) != 0xFF)
+				throw new IIOException("Encoded JPEG marker malformed.");
+			final int marker = data[pos + 1] & 0xFF;
+			if (marker == JPEG_SOS)
+				break;
+			final int segmentLength = 2 + ((data[pos + 2] & 0xFF) << 8
+					| data[pos + 3] & 0xFF);
+			if (pos + segmentLength > end)
+				throw new IIOException("Encoded JPEG marker malformed.");
+			final boolean isTable = marker == JPEG_DQT || marker == JPEG_DHT;
+			if (isTable && tablesLength + segmentLength <= tables.length) {
+				System.arraycopy(data, pos, tables, tablesLength, segmentLength);
+				tablesLength += segmentLength;
+			} else if (othersLength + segmentLength <= others.length) {
+				System.arraycopy(data, pos, others, othersLength, segmentLength);
+				othersLength += segmentLength;
+			} else {
+				throw new IIOException("Encoded JPEG header too big.");
 			}
-		});
-		jpegWriter.write(null, new IIOImage(destWR, null, null), jpegParam);
+			pos += segmentLength;
+		}
 
-		// cleanup
-		jpegWriter.dispose();
-		ios.close();
-		bos.close();
+		// reorder header with tables first
+		System.arraycopy(tables, 0, data, base + 2, tablesLength);
+		System.arraycopy(others, 0, data, base + 2 + tablesLength, othersLength);
+		final int headerLength = 2 + tablesLength;
 
-		return bos.toByteArray();
+		// produce shared header from first tables
+		if (jpegHeader == null) {
+			jpegHeader = Arrays.copyOfRange(data, base, base + headerLength);
+			canDecode = true;
+		}
+
+		// remove shared part
+		final int sharedLength;
+		if (Arrays.equals(jpegHeader, 0, jpegHeader.length, data, base, base
+				+ headerLength)) {
+			sharedLength = headerLength;
+		} else {
+			handler.accept(new LocalizedFormatedString(
+					"com.hiveworkshop.text.blp", "JPEGTablesMismatch"));
+			sharedLength = 2;
+		}
+		final ByteBuffer mmData = jpeg.duplicate();
+		mmData.position(mmData.position() + sharedLength);
+		return mmData.slice();
+	}
+
+	@Override
+	public void dispose() {
+		if (jpegWriter != null) {
+			jpegWriter.dispose();
+			jpegWriter = null;
+			jpegWriterSpi = null;
+			jpegWriteParam = null;
+		}
 	}
 
 	@Override
-	public BufferedImage decodeMipmap(byte[] mmData, ImageReadParam param,
+	public BufferedImage decodeMipmap(ByteBuffer mmData, ImageReadParam param,
 			int width, int height, Consumer<LocalizedFormatedString> handler)
 			throws IOException {
 		final boolean directRead = param == null
@@ -283,13 +550,13 @@ class JPEGMipmapProcessor extends MipmapProcessor {
 
 		// create a buffered JPEG file in memory
 		byte[] jpegBuffer = Arrays.copyOf(jpegHeader, jpegHeader.length
-				+ mmData.length);
-		System.arraycopy(mmData, 0, jpegBuffer, jpegHeader.length,
-				mmData.length);
+				+ mmData.remaining());
+		mmData.duplicate().get(jpegBuffer, jpegHeader.length,
+				mmData.remaining());
 
 		// input buffered JPEG file
-		InputStream bis = new ByteArrayInputStream(jpegBuffer);
-		ImageInputStream iis = new MemoryCacheImageInputStream(bis);
+		ImageInputStream iis = new ByteBufferImageInputStream(
+				ByteBuffer.wrap(jpegBuffer));
 		jpegReader.setInput(iis, true, true);
 
 		// read source raster
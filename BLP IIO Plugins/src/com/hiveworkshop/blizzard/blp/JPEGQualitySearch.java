@@ -0,0 +1,422 @@
+package com.hiveworkshop.blizzard.blp;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+import javax.imageio.IIOException;
+
+import com.hiveworkshop.lang.LocalizedFormatedString;
+
+/**
+ * Searches for the best JPEG compression quality that meets a byte budget.
+ * <p>
+ * Several quality values are tried concurrently in each search round, each
+ * trial encoding the same pre-computed mipmap images. The quality interval is
+ * narrowed after every round until it is smaller than the search precision.
+ * The compression quality of the BLPWriteParam is used as the maximum quality.
+ * <p>
+ * A budget can either be for the total file size or for each mipmap level. A
+ * total file size budget uses the same quality for all mipmap levels. A per
+ * level budget finds a separate quality for each mipmap level, comparing the
+ * size of each complete encoded JPEG file before shared header removal.
+ * <p>
+ * Warnings from trials are only passed on for the chosen result.
+ *
+ * @author Imperial Good
+ */
+class JPEGQualitySearch {
+	/**
+	 * Quality interval size at which the search stops.
+	 */
+	private static final float PRECISION = 1.0f / 64.0f;
+
+	/**
+	 * Maximum number of quality values tried concurrently in a search round.
+	 */
+	private static final int MAX_CANDIDATES = 8;
+
+	/**
+	 * The result of a quality search. Holds the MipmapProcessor to write with
+	 * and its processed mipmap data.
+	 */
+	static final class Result {
+		/**
+		 * The MipmapProcessor which can decode the mipmap data.
+		 */
+		final JPEGMipmapProcessor processor;
+
+		/**
+		 * Processed mipmap data ready to be written.
+		 */
+		final List<ByteBuffer> mmDataList;
+
+		/**
+		 * The chosen quality for each mipmap level.
+		 */
+		final float[] qualities;
+
+		private Result(JPEGMipmapProcessor processor,
+				List<ByteBuffer> mmDataList, float[] qualities) {
+			this.processor = processor;
+			this.mmDataList = mmDataList;
+			this.qualities = qualities;
+		}
+	}
+
+	/**
+	 * The encoding of one or more mipmap levels at a single quality.
+	 */
+	private static final class Trial {
+		final float quality;
+		final JPEGMipmapProcessor processor;
+		final List<ByteBuffer> mmDataList;
+		final List<LocalizedFormatedString> warnings;
+		final long size;
+
+		Trial(float quality, JPEGMipmapProcessor processor,
+				List<ByteBuffer> mmDataList,
+				List<LocalizedFormatedString> warnings, long size) {
+			this.quality = quality;
+			this.processor = processor;
+			this.mmDataList = mmDataList;
+			this.warnings = warnings;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Encodes a trial at a given quality.
+	 */
+	private interface TrialEncoder {
+		Trial encode(float quality) throws IOException;
+	}
+
+	/**
+	 * Search state of a single quality interval.
+	 */
+	private static final class Interval {
+		/**
+		 * Highest quality known to be within budget, or -1 if none.
+		 */
+		float lo = -1.0f;
+
+		/**
+		 * Lowest quality known to exceed budget, or the maximum quality.
+		 */
+		float hi;
+
+		/**
+		 * Trial of lo.
+		 */
+		Trial best = null;
+
+		/**
+		 * Trial with smallest size, used if budget cannot be met.
+		 */
+		Trial smallest = null;
+
+		/**
+		 * No trials have been run yet.
+		 */
+		boolean first = true;
+
+		/**
+		 * The lowest possible quality has been tried.
+		 */
+		boolean triedMinimum = false;
+
+		Interval(float hi) {
+			this.hi = hi;
+		}
+
+		boolean isDone() {
+			if (best != null)
+				return best.quality >= hi || hi - lo <= PRECISION;
+			return triedMinimum;
+		}
+
+		float[] candidates(int count) {
+			final float[] qualities = new float[count];
+			if (first) {
+				// maximum quality and evenly spaced values below it
+				first = false;
+				for (int i = 0; i < count; i += 1)
+					qualities[i] = hi * (i + 1) / count;
+			} else if (best == null && hi <= PRECISION) {
+				// lowest possible quality as last resort
+				triedMinimum = true;
+				return new float[] { 0.0f };
+			} else {
+				final float base = Math.max(lo, 0.0f);
+				for (int i = 0; i < count; i += 1)
+					qualities[i] = base + (hi - base) * (i + 1) / (count + 1);
+			}
+			return qualities;
+		}
+
+		void update(Trial trial, long budget) {
+			if (smallest == null || trial.size < smallest.size)
+				smallest = trial;
+			if (trial.size <= budget) {
+				if (trial.quality > lo) {
+					lo = trial.quality;
+					best = trial;
+				}
+			} else if (trial.quality < hi) {
+				hi = trial.quality;
+			}
+		}
+
+		Trial result() {
+			return best != null ? best : smallest;
+		}
+	}
+
+	/**
+	 * The alpha bits of the JPEG content.
+	 */
+	private final int alphaBits;
+
+	/**
+	 * Write param to derive trial write params from.
+	 */
+	private final BLPWriteParam param;
+
+	/**
+	 * The mipmap images to encode, in mipmap level order.
+	 */
+	private final List<BufferedImage> mipmaps;
+
+	/**
+	 * Executor used to run trials.
+	 */
+	private final Executor executor;
+
+	/**
+	 * Number of trials per search round.
+	 */
+	private final int candidateCount;
+
+	/**
+	 * Constructs a quality search for the given mipmap images.
+	 *
+	 * @param alphaBits
+	 *            the alpha component bits of the JPEG content.
+	 * @param param
+	 *            the write param to encode with.
+	 * @param mipmaps
+	 *            the images of all mipmap levels to encode.
+	 * @param executor
+	 *            the executor to run trials with.
+	 */
+	public JPEGQualitySearch(int alphaBits, BLPWriteParam param,
+			List<BufferedImage> mipmaps, Executor executor) {
+		this.alphaBits = alphaBits;
+		this.param = param;
+		this.mipmaps = mipmaps;
+		this.executor = executor;
+		candidateCount = Math.max(2, Math.min(MAX_CANDIDATES, Runtime
+				.getRuntime().availableProcessors()));
+	}
+
+	/**
+	 * Creates a write param for a trial quality.
+	 *
+	 * @param quality
+	 *            the compression quality.
+	 * @return the trial write param.
+	 */
+	private BLPWriteParam createTrialParam(float quality) {
+		final BLPWriteParam trialParam = new BLPWriteParam();
+		trialParam.setJPEGSpi(param.getJPEGSpi());
+		trialParam.setCompressionQuality(quality);
+		return trialParam;
+	}
+
+	/**
+	 * Gets the maximum quality to search.
+	 *
+	 * @return the maximum quality.
+	 */
+	private float getMaximumQuality() {
+		return param.getCompressionMode() == BLPWriteParam.MODE_EXPLICIT ? param
+				.getCompressionQuality() : BLPWriteParam.DEFAULT_QUALITY;
+	}
+
+	/**
+	 * Searches the given intervals until all are done. All trials of a search
+	 * round, across all intervals, are run concurrently.
+	 *
+	 * @param intervals
+	 *            the intervals to search.
+	 * @param encoders
+	 *            the trial encoder of each interval.
+	 * @param budget
+	 *            the byte budget of each interval.
+	 * @throws IOException
+	 *             if a trial failed.
+	 */
+	private void search(Interval[] intervals, TrialEncoder[] encoders,
+			long budget) throws IOException {
+		final List<CompletableFuture<Trial>> futures = new ArrayList<CompletableFuture<Trial>>();
+		final List<Interval> owners = new ArrayList<Interval>();
+		while (true) {
+			// start trials of all unfinished intervals
+			futures.clear();
+			owners.clear();
+			for (int i = 0; i < intervals.length; i += 1) {
+				final Interval interval = intervals[i];
+				if (interval.isDone())
+					continue;
+				final TrialEncoder encoder = encoders[i];
+				for (float quality : interval.candidates(candidateCount)) {
+					futures.add(CompletableFuture.supplyAsync(() -> {
+						try {
+							return encoder.encode(quality);
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					}, executor));
+					owners.add(interval);
+				}
+			}
+			if (futures.isEmpty())
+				break;
+
+			// process round results
+			try {
+				for (int i = 0; i < futures.size(); i += 1)
+					owners.get(i).update(futures.get(i).join(), budget);
+			} catch (CompletionException e) {
+				final Throwable cause = e.getCause();
+				if (cause instanceof UncheckedIOException)
+					throw ((UncheckedIOException) cause).getCause();
+				throw new IIOException("JPEG quality search failed.", cause);
+			}
+		}
+	}
+
+	/**
+	 * Searches for the highest quality that keeps the total file size within
+	 * budget. All mipmap levels use the same quality.
+	 * <p>
+	 * If the budget cannot be met then the smallest result is returned and a
+	 * warning generated.
+	 *
+	 * @param maxSize
+	 *            maximum total file size in bytes.
+	 * @param overhead
+	 *            bytes of the file which are not JPEG content.
+	 * @param fixedTables
+	 *            if fixed JPEG tables should be used.
+	 * @param handler
+	 *            warning handler.
+	 * @return the search result.
+	 * @throws IOException
+	 *             if encoding fails.
+	 */
+	public Result searchTotalSize(long maxSize, long overhead,
+			boolean fixedTables, Consumer<LocalizedFormatedString> handler)
+			throws IOException {
+		final TrialEncoder encoder = quality -> {
+			final BLPWriteParam trialParam = createTrialParam(quality);
+			final JPEGMipmapProcessor processor = new JPEGMipmapProcessor(
+					alphaBits, fixedTables);
+			final List<LocalizedFormatedString> warnings = new ArrayList<LocalizedFormatedString>();
+			List<ByteBuffer> mmDataList = new ArrayList<ByteBuffer>(
+					mipmaps.size());
+			for (BufferedImage mipmap : mipmaps)
+				mmDataList.add(processor.encodeMipmap(mipmap, trialParam,
+						warnings::add));
+			processor.dispose();
+			if (processor.mustPostProcess())
+				mmDataList = processor.postProcessMipmapData(mmDataList,
+						warnings::add);
+
+			// shared header and its length field
+			long size = overhead + 4 + processor.getSharedHeaderLength();
+			for (ByteBuffer mmData : mmDataList)
+				size += mmData.remaining();
+			return new Trial(quality, processor, mmDataList, warnings, size);
+		};
+
+		final Interval interval = new Interval(getMaximumQuality());
+		search(new Interval[] { interval }, new TrialEncoder[] { encoder },
+				maxSize);
+
+		final Trial trial = interval.result();
+		if (interval.best == null)
+			handler.accept(new LocalizedFormatedString(
+					"com.hiveworkshop.text.blp", "JPEGTargetMissed",
+					trial.size, maxSize));
+		trial.warnings.forEach(handler);
+		final float[] qualities = new float[mipmaps.size()];
+		Arrays.fill(qualities, trial.quality);
+		return new Result(trial.processor, trial.mmDataList, qualities);
+	}
+
+	/**
+	 * Searches for the highest quality of each mipmap level that keeps its
+	 * encoded JPEG file within budget.
+	 * <p>
+	 * Mipmap levels which cannot meet the budget use their smallest result and
+	 * a warning is generated.
+	 *
+	 * @param levelBudget
+	 *            maximum encoded JPEG file size of each mipmap level in bytes.
+	 * @param handler
+	 *            warning handler.
+	 * @return the search result.
+	 * @throws IOException
+	 *             if encoding fails.
+	 */
+	public Result searchLevelSize(int levelBudget,
+			Consumer<LocalizedFormatedString> handler) throws IOException {
+		final int levels = mipmaps.size();
+		final Interval[] intervals = new Interval[levels];
+		final TrialEncoder[] encoders = new TrialEncoder[levels];
+		for (int i = 0; i < levels; i += 1) {
+			final BufferedImage mipmap = mipmaps.get(i);
+			intervals[i] = new Interval(getMaximumQuality());
+			encoders[i] = quality -> {
+				final JPEGMipmapProcessor processor = new JPEGMipmapProcessor(
+						alphaBits);
+				final List<LocalizedFormatedString> warnings = new ArrayList<LocalizedFormatedString>();
+				final ByteBuffer mmData = processor.encodeMipmap(mipmap,
+						createTrialParam(quality), warnings::add);
+				processor.dispose();
+				return new Trial(quality, processor, Arrays.asList(mmData),
+						warnings, mmData.remaining());
+			};
+		}
+
+		search(intervals, encoders, levelBudget);
+
+		// combine levels and produce shared header
+		final List<ByteBuffer> mmDataList = new ArrayList<ByteBuffer>(levels);
+		final float[] qualities = new float[levels];
+		for (int i = 0; i < levels; i += 1) {
+			final Trial trial = intervals[i].result();
+			if (intervals[i].best == null)
+				handler.accept(new LocalizedFormatedString(
+						"com.hiveworkshop.text.blp", "JPEGTargetMissed",
+						trial.size, levelBudget));
+			trial.warnings.forEach(handler);
+			mmDataList.add(trial.mmDataList.get(0));
+			qualities[i] = trial.quality;
+		}
+		final JPEGMipmapProcessor processor = new JPEGMipmapProcessor(
+				alphaBits);
+		return new Result(processor, processor.postProcessMipmapData(
+				mmDataList, handler), qualities);
+	}
+}
@@ -2,6 +2,7 @@ package com.hiveworkshop.blizzard.blp;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.List;
 import java.util.function.Consumer;
@@ -54,6 +55,7 @@ abstract class MipmapProcessor {
 	 * The order which the mipmap data is provided does not matter. The List
 	 * returned can be the same as the input and the mipmap data might not be
 	 * modified. The ordering of mipmap data in the output List is not changed.
+	 * Returned mipmap data buffers may share content with the input buffers.
 	 * <p>
 	 * If mustFinalize is true then after calling successfully canDecode will be
 	 * true.
@@ -68,7 +70,7 @@ abstract class MipmapProcessor {
 	 * @throws IllegalArgumentException
 	 *             if encodedmmData does not contain at least 1 element.
 	 */
-	public List<byte[]> postProcessMipmapData(List<byte[]> mmDataList,
+	public List<ByteBuffer> postProcessMipmapData(List<ByteBuffer> mmDataList,
 			Consumer<LocalizedFormatedString> handler) {
 		if (mmDataList.size() < 1)
 			throw new IllegalArgumentException("No mipmap data.");
@@ -90,6 +92,10 @@ abstract class MipmapProcessor {
 	 * <p>
 	 * If mustFinalize is false then after calling successfully canDecode will
 	 * be true.
+	 * <p>
+	 * The encoded mipmap data is the content between the position and limit of
+	 * the returned buffer. The buffer may be backed by a larger array to avoid
+	 * copying the data.
 	 * 
 	 * @param img
 	 *            input image to encode.
@@ -101,7 +107,7 @@ abstract class MipmapProcessor {
 	 * @throws IIOException
 	 *             if an image cannot be encoded.
 	 */
-	public abstract byte[] encodeMipmap(BufferedImage img,
+	public abstract ByteBuffer encodeMipmap(BufferedImage img,
 			ImageWriteParam param, Consumer<LocalizedFormatedString> handler)
 			throws IOException;
 
@@ -122,9 +128,12 @@ abstract class MipmapProcessor {
 	 * <p>
 	 * The image produced has very strict requirements. It must be exactly the
 	 * dimensions of width and height. It must also be in the format of one of
-	 * the ImageTypeSpecifier advertised by the class. The returned image might
-	 * be backed by the mipmap data array for efficiency, hence the data it
-	 * contains should be considered final after calling.
+	 * the ImageTypeSpecifier advertised by the class.
+	 * <p>
+	 * The buffer may be a view of the source input, such as a slice of the
+	 * byte array being read, so it is decoded in place and must not be
+	 * modified. Only a writable buffer wrapping an entire array may back the
+	 * returned image, see toImageData. Read only buffers are never retained.
 	 * <p>
 	 * There is no guarantee that mmData contains exactly the data needed to
 	 * fully produce an image. An attempt should be made to produce an image
@@ -135,10 +144,12 @@ abstract class MipmapProcessor {
 	 * be in a CS_LINEAR_RGB ColorSpace with no automatic ColorSpace conversion.
 	 * <p>
 	 * Calling when canDecode is false results in unspecified behavior, usually
-	 * an exception.
+	 * an exception. Once canDecode is true this method may be called
+	 * concurrently from several threads, such as when reading asynchronously.
 	 * 
 	 * @param mmData
-	 *            the mipmap data to decode.
+	 *            a buffer containing the mipmap data between its position and
+	 *            limit.
 	 * @param param
 	 *            image read parameter to control decode behavior.
 	 * @param width
@@ -151,10 +162,81 @@ abstract class MipmapProcessor {
 	 * @throws IIOException
 	 *             if an image cannot be produced.
 	 */
-	public abstract BufferedImage decodeMipmap(byte[] mmData,
+	public abstract BufferedImage decodeMipmap(ByteBuffer mmData,
 			ImageReadParam param, int width, int height,
 			Consumer<LocalizedFormatedString> handler) throws IOException;
 
+	/**
+	 * Produces an image data array holding exactly length bytes of mipmap
+	 * data.
+	 * <p>
+	 * The array of a writable buffer wrapping an entire array of the right
+	 * length is used as is. Otherwise the mipmap data is copied into a new
+	 * array with any missing bytes left as 0. The position of mmData is not
+	 * changed.
+	 * 
+	 * @param mmData
+	 *            a buffer containing the mipmap data between its position and
+	 *            limit.
+	 * @param length
+	 *            the image data length in bytes.
+	 * @return the image data array.
+	 */
+	static byte[] toImageData(ByteBuffer mmData, int length) {
+		if (mmData.hasArray() && mmData.arrayOffset() == 0
+				&& mmData.position() == 0 && mmData.remaining() == length
+				&& mmData.array().length == length)
+			return mmData.array();
+
+		final byte[] data = new byte[length];
+		mmData.duplicate().get(data, 0, Math.min(length, mmData.remaining()));
+		return data;
+	}
+
+	/**
+	 * Determines whether this MipmapProcessor can call decodeMipmapDirect.
+	 * Only content whose decoded image data is the mipmap data as stored can
+	 * be decoded directly.
+	 * <p>
+	 * Default assumes false.
+	 * 
+	 * @return true if calls to decodeMipmapDirect are valid.
+	 */
+	public boolean canDecodeDirect() {
+		return false;
+	}
+
+	/**
+	 * Decodes mipmap data directly into a store outside the Java heap,
+	 * without producing a heap image.
+	 * <p>
+	 * The mipmap data is copied into the store, which holds the same image
+	 * decodeMipmap would produce. The same requirements as decodeMipmap
+	 * apply.
+	 * <p>
+	 * Default throws UnsupportedOperationException.
+	 * 
+	 * @param mmData
+	 *            a buffer containing the mipmap data between its position and
+	 *            limit.
+	 * @param width
+	 *            the width of the decoded image in pixels.
+	 * @param height
+	 *            the height of the decoded image in pixels.
+	 * @param handler
+	 *            warning handler.
+	 * @return the store holding 1 reference.
+	 * @throws IIOException
+	 *             if an image cannot be produced.
+	 * @throws UnsupportedOperationException
+	 *             if canDecodeDirect is false.
+	 */
+	public BLPDirectMipmap decodeMipmapDirect(ByteBuffer mmData, int width,
+			int height, Consumer<LocalizedFormatedString> handler)
+			throws IOException {
+		throw new UnsupportedOperationException("Cannot decode directly.");
+	}
+
 	/**
 	 * Am iterator of the image types supported by this processor.
 	 * <p>
@@ -169,6 +251,17 @@ abstract class MipmapProcessor {
 	public abstract Iterator<ImageTypeSpecifier> getSupportedImageTypes(
 			int width, int height);
 
+	/**
+	 * Releases any resources held for encoding or decoding.
+	 * <p>
+	 * Called once the processor is no longer needed. The processor must not
+	 * be used afterwards.
+	 * <p>
+	 * Default does nothing.
+	 */
+	public void dispose() {
+	}
+
 	public abstract void readObject(ImageInputStream src,
 			Consumer<LocalizedFormatedString> warning) throws IOException;
 
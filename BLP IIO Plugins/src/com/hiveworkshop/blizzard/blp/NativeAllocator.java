@@ -0,0 +1,73 @@
+package com.hiveworkshop.blizzard.blp;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Allocator of memory outside the Java heap.
+ * <p>
+ * Each allocation is a block viewed as a direct ByteBuffer in native byte
+ * order, with content initialized to 0. A block is freed explicitly, after
+ * which neither its buffer nor any view of it may be used.
+ * <p>
+ * Blocks are direct ByteBuffers. Freeing a block only drops it, the memory
+ * being returned once the garbage collector collects the buffer and every view
+ * of it. Returning the memory immediately would need the foreign memory API,
+ * which is not final on the Java versions supported.
+ *
+ * @author Imperial Good
+ */
+final class NativeAllocator {
+	/**
+	 * Allocator used for native memory.
+	 */
+	static final NativeAllocator INSTANCE = new NativeAllocator();
+
+	/**
+	 * A block of allocated memory.
+	 */
+	static final class Block {
+		/**
+		 * View of the memory.
+		 */
+		private final ByteBuffer buffer;
+
+		/**
+		 * Constructs a block viewed by the specified buffer.
+		 * 
+		 * @param buffer
+		 *            the direct buffer viewing the memory.
+		 */
+		Block(ByteBuffer buffer) {
+			this.buffer = buffer.order(ByteOrder.nativeOrder());
+		}
+
+		/**
+		 * Get the view of the memory. The buffer is shared so should be
+		 * duplicated before changing its position or limit.
+		 * 
+		 * @return the direct buffer.
+		 */
+		ByteBuffer getBuffer() {
+			return buffer;
+		}
+
+		/**
+		 * Frees the memory. Must be called at most once and only when the
+		 * memory is no longer accessed.
+		 */
+		void free() {
+		}
+	}
+
+	/**
+	 * Allocates a block of memory.
+	 * 
+	 * @param size
+	 *            the size in bytes.
+	 * @return the block.
+	 */
+	Block allocate(int size) {
+		return new Block(ByteBuffer.allocateDirect(size));
+	}
+}
@@ -0,0 +1,447 @@
+package com.hiveworkshop.blizzard.blp;
+
+import static com.hiveworkshop.blizzard.blp.BLPCommon.INDEXED_PALETTE_SIZE;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import com.hiveworkshop.lang.LocalizedFormatedString;
+
+/**
+ * A class that is responsible for processing between mipmap data and
+ * uncompressed 16 bit BGRA5551, BGRA4444 and BGR565 content.
+ * <p>
+ * Mipmap data is a sequence of little endian 16 bit pixels in row major order.
+ * Components are packed from the least significant bit in blue, green, red and
+ * alpha order. Pixels are decoded into a pixel interleaved RGB or RGBA byte
+ * raster. Each component is expanded to 8 bits by bit replication using a
+ * lookup table of at most 64 entries, so decoding a row is a single pass
+ * without per pixel branching. Rows are decoded in parallel for large images.
+ * <p>
+ * Encoding quantizes each component to the nearest value the decoder
+ * produces, again using lookup tables. Rows are encoded in parallel for large
+ * images. If dithering is enabled by the BLPWriteParam then Floyd-Steinberg
+ * error diffusion is applied to all components except 1 bit alpha, which
+ * encoding does sequentially.
+ * <p>
+ * During decoding if the mipmap data is of incorrect size then it is resized to
+ * fit and a warning is generated. Missing pixels decode as transparent black.
+ * <p>
+ * When alpha bits is 0 any decoded alpha is discarded and encoded alpha is
+ * opaque.
+ * <p>
+ * Version 2 files always contain a palette after the mipmap chunk table. The
+ * palette has no meaning for this content so is skipped when read and written
+ * as all 0 values.
+ *
+ * @author Imperial Good
+ */
+class PackedMipmapProcessor extends MipmapProcessor {
+	/**
+	 * Minimum number of pixels before rows are processed in parallel.
+	 */
+	private static final int PARALLEL_THRESHOLD = 256 * 256;
+
+	/**
+	 * Bytes per pixel.
+	 */
+	private static final int PIXEL_BYTES = 2;
+
+	/**
+	 * Bit shift of red, green, blue and alpha components.
+	 */
+	private final int[] shifts;
+
+	/**
+	 * Bit precision of red, green, blue and alpha components.
+	 */
+	private final int[] bits;
+
+	/**
+	 * Tables expanding red, green, blue and alpha component values to 8 bits.
+	 */
+	private final byte[][] expandTables = new byte[4][];
+
+	/**
+	 * Tables quantizing 8 bit red, green, blue and alpha values to component
+	 * values.
+	 */
+	private final int[][] quantizeTables = new int[4][];
+
+	/**
+	 * Component bits that are always set, used for discarded alpha.
+	 */
+	private final int opaqueBits;
+
+	/**
+	 * The color model that the processor will use.
+	 */
+	private final ColorModel packedColorModel;
+
+	/**
+	 * Number of bands of decoded pixels.
+	 */
+	private final int bandNumber;
+
+	/**
+	 * Constructs a MipmapProcessor for 16 bit packed content.
+	 *
+	 * @param encodingType
+	 *            the packed encoding type.
+	 * @param alphaBits
+	 *            the alpha component bits, if any.
+	 * @throws IllegalArgumentException
+	 *             if encodingType is not a packed encoding type or alphaBits
+	 *             is not valid.
+	 */
+	public PackedMipmapProcessor(BLPEncodingType encodingType, int alphaBits) {
+		switch (encodingType) {
+		case BGRA5551:
+			shifts = new int[] { 10, 5, 0, 15 };
+			bits = new int[] { 5, 5, 5, 1 };
+			break;
+		case BGRA4444:
+			shifts = new int[] { 8, 4, 0, 12 };
+			bits = new int[] { 4, 4, 4, 4 };
+			break;
+		case BGR565:
+			shifts = new int[] { 11, 5, 0, 16 };
+			bits = new int[] { 5, 6, 5, 0 };
+			break;
+		default:
+			throw new IllegalArgumentException("Unsupported encodingType.");
+		}
+		if (!encodingType.isAlphaBitsValid(alphaBits))
+			throw new IllegalArgumentException("Unsupported alphaBits.");
+
+		// build lookup tables
+		for (int band = 0; band < 4; band += 1) {
+			final int n = Math.max(bits[band], 1);
+			final byte[] expand = new byte[1 << n];
+			for (int value = 0; value < expand.length; value += 1) {
+				// replicate bits to fill 8 bits
+				int result = 0;
+				for (int s = 8 - n; s > -n; s -= n)
+					result |= s >= 0 ? value << s : value >>> -s;
+				expand[value] = (byte) result;
+			}
+			final int[] quantize = new int[256];
+			for (int v = 0, value = 0; v < quantize.length; v += 1) {
+				while (value + 1 < expand.length
+						&& (expand[value + 1] & 0xFF) - v < v
+								- (expand[value] & 0xFF))
+					value += 1;
+				quantize[v] = value;
+			}
+			expandTables[band] = expand;
+			quantizeTables[band] = quantize;
+		}
+
+		final boolean hasAlpha = alphaBits != 0;
+		opaqueBits = hasAlpha ? 0 : (1 << bits[3]) - 1 << shifts[3] & 0xFFFF;
+		bandNumber = hasAlpha ? 4 : 3;
+		packedColorModel = new ComponentColorModel(
+				ColorSpace.getInstance(ColorSpace.CS_LINEAR_RGB), hasAlpha,
+				false, alphaBits == 1 ? Transparency.BITMASK
+						: hasAlpha ? Transparency.TRANSLUCENT
+								: Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+		canDecode = true;
+	}
+
+	/**
+	 * Decodes a row of pixels into pixel interleaved bytes.
+	 *
+	 * @param src
+	 *            the little endian mipmap data.
+	 * @param dest
+	 *            the pixel array.
+	 * @param y
+	 *            the row to decode.
+	 * @param width
+	 *            the image width in pixels.
+	 */
+	private void decodeRow(ByteBuffer src, byte[] dest, int y, int width) {
+		final byte[] red = expandTables[0];
+		final byte[] green = expandTables[1];
+		final byte[] blue = expandTables[2];
+		final int rs = shifts[0], rm = red.length - 1;
+		final int gs = shifts[1], gm = green.length - 1;
+		final int bs = shifts[2], bm = blue.length - 1;
+		int srcOff = y * width * PIXEL_BYTES;
+		int destOff = y * width * bandNumber;
+		final int end = srcOff + width * PIXEL_BYTES;
+		if (bandNumber == 4) {
+			final byte[] alpha = expandTables[3];
+			final int as = shifts[3], am = alpha.length - 1;
+			for (; srcOff < end; srcOff += PIXEL_BYTES, destOff += 4) {
+				final int p = src.getShort(srcOff) & 0xFFFF;
+				dest[destOff] = red[p >>> rs & rm];
+				dest[destOff + 1] = green[p >>> gs & gm];
+				dest[destOff + 2] = blue[p >>> bs & bm];
+				dest[destOff + 3] = alpha[p >>> as & am];
+			}
+		} else {
+			for (; srcOff < end; srcOff += PIXEL_BYTES, destOff += 3) {
+				final int p = src.getShort(srcOff) & 0xFFFF;
+				dest[destOff] = red[p >>> rs & rm];
+				dest[destOff + 1] = green[p >>> gs & gm];
+				dest[destOff + 2] = blue[p >>> bs & bm];
+			}
+		}
+	}
+
+	/**
+	 * Creates the pixel interleaved sample model used by decoded images.
+	 *
+	 * @param width
+	 *            the image width in pixels.
+	 * @param height
+	 *            the image height in pixels.
+	 * @return the sample model.
+	 */
+	private PixelInterleavedSampleModel createSampleModel(int width, int height) {
+		final int[] bandOffsets = Arrays.copyOf(new int[] { 0, 1, 2, 3 },
+				bandNumber);
+		return new PixelInterleavedSampleModel(DataBuffer.TYPE_BYTE, width,
+				height, bandNumber, width * bandNumber, bandOffsets);
+	}
+
+	/**
+	 * Gets a row of pixels of an image as RGBA components. Bands are
+	 * interpreted as RGBA. Alpha is opaque if the image has no alpha band.
+	 *
+	 * @param img
+	 *            the image.
+	 * @param y
+	 *            the row.
+	 * @param rgba
+	 *            the component array.
+	 * @param scratch
+	 *            a scratch array from createScratch.
+	 */
+	private static void getRow(BufferedImage img, int y, int[] rgba,
+			int[] scratch) {
+		final int width = img.getWidth();
+		final Raster raster = img.getRaster();
+		final int srcBands = raster.getNumBands();
+		if (srcBands < 3) {
+			// convert through color model
+			img.getRGB(0, y, width, 1, scratch, 0, width);
+			for (int x = 0, i = 0; x < width; x += 1, i += 4) {
+				final int argb = scratch[x];
+				rgba[i] = argb >>> 16 & 0xFF;
+				rgba[i + 1] = argb >>> 8 & 0xFF;
+				rgba[i + 2] = argb & 0xFF;
+				rgba[i + 3] = argb >>> 24;
+			}
+		} else {
+			raster.getPixels(0, y, width, 1, scratch);
+			for (int s = 0, i = 0; i < width * 4; s += srcBands, i += 4) {
+				rgba[i] = scratch[s] & 0xFF;
+				rgba[i + 1] = scratch[s + 1] & 0xFF;
+				rgba[i + 2] = scratch[s + 2] & 0xFF;
+				rgba[i + 3] = srcBands > 3 ? scratch[s + 3] & 0xFF : 0xFF;
+			}
+		}
+	}
+
+	/**
+	 * Creates a scratch array large enough for getRow.
+	 *
+	 * @param img
+	 *            the image.
+	 * @return the scratch array.
+	 */
+	private static int[] createScratch(BufferedImage img) {
+		return new int[img.getWidth()
+				* Math.max(img.getRaster().getNumBands(), 4)];
+	}
+
+	/**
+	 * Writes a row of packed pixels.
+	 *
+	 * @param codes
+	 *            the component values of the row in RGBA order.
+	 * @param dest
+	 *            the mipmap data.
+	 * @param y
+	 *            the row.
+	 * @param width
+	 *            the image width in pixels.
+	 */
+	private void packRow(int[] codes, byte[] dest, int y, int width) {
+		final int rs = shifts[0], gs = shifts[1], bs = shifts[2];
+		// discarded alpha is shifted out of the pixel
+		final int as = bandNumber == 4 ? shifts[3] : 16;
+		int destOff = y * width * PIXEL_BYTES;
+		for (int i = 0; i < width * 4; i += 4, destOff += PIXEL_BYTES) {
+			final int p = codes[i] << rs | codes[i + 1] << gs
+					| codes[i + 2] << bs | codes[i + 3] << as | opaqueBits;
+			dest[destOff] = (byte) p;
+			dest[destOff + 1] = (byte) (p >>> 8);
+		}
+	}
+
+	/**
+	 * Encodes a row of pixels by quantizing to the nearest component values.
+	 *
+	 * @param img
+	 *            the image.
+	 * @param dest
+	 *            the mipmap data.
+	 * @param y
+	 *            the row.
+	 */
+	private void encodeRow(BufferedImage img, byte[] dest, int y) {
+		final int width = img.getWidth();
+		final int[] rgba = new int[width * 4];
+		getRow(img, y, rgba, createScratch(img));
+		final int[] red = quantizeTables[0];
+		final int[] green = quantizeTables[1];
+		final int[] blue = quantizeTables[2];
+		final int[] alpha = quantizeTables[3];
+		for (int i = 0; i < rgba.length; i += 4) {
+			rgba[i] = red[rgba[i]];
+			rgba[i + 1] = green[rgba[i + 1]];
+			rgba[i + 2] = blue[rgba[i + 2]];
+			rgba[i + 3] = alpha[rgba[i + 3]];
+		}
+		packRow(rgba, dest, y, width);
+	}
+
+	/**
+	 * Encodes an image using Floyd-Steinberg error diffusion. Errors are held
+	 * in sixteenths of a component value.
+	 *
+	 * @param img
+	 *            the image.
+	 * @param dest
+	 *            the mipmap data.
+	 */
+	private void encodeDithered(BufferedImage img, byte[] dest) {
+		final int width = img.getWidth();
+		final int height = img.getHeight();
+		final int[] rgba = new int[width * 4];
+		final int[] scratch = createScratch(img);
+		// error rows have a pixel of padding at each end
+		int[] errors = new int[(width + 2) * 4];
+		int[] nextErrors = new int[(width + 2) * 4];
+		final int ditherBands = bits[3] > 1 ? 4 : 3;
+		for (int y = 0; y < height; y += 1) {
+			getRow(img, y, rgba, scratch);
+			for (int x = 0, i = 0; x < width; x += 1) {
+				for (int band = 0; band < 4; band += 1, i += 1) {
+					final int[] quantize = quantizeTables[band];
+					if (band >= ditherBands) {
+						rgba[i] = quantize[rgba[i]];
+						continue;
+					}
+					final int e = i + 4;
+					final int v = Math.min(Math.max(
+							rgba[i] + (errors[e] + 8 >> 4), 0), 255);
+					final int code = quantize[v];
+					final int error = v - (expandTables[band][code] & 0xFF);
+					errors[e + 4] += error * 7;
+					nextErrors[e - 4] += error * 3;
+					nextErrors[e] += error * 5;
+					nextErrors[e + 4] += error;
+					rgba[i] = code;
+				}
+			}
+			packRow(rgba, dest, y, width);
+
+			// advance error rows
+			final int[] swap = errors;
+			errors = nextErrors;
+			nextErrors = swap;
+			Arrays.fill(nextErrors, 0);
+		}
+	}
+
+	@Override
+	public ByteBuffer encodeMipmap(BufferedImage img, ImageWriteParam param,
+			Consumer<LocalizedFormatedString> handler) throws IOException {
+		final int width = img.getWidth();
+		final int height = img.getHeight();
+		final byte[] dest = new byte[width * height * PIXEL_BYTES];
+		if (param instanceof BLPWriteParam
+				&& ((BLPWriteParam) param).isDithering()) {
+			encodeDithered(img, dest);
+		} else {
+			IntStream rows = IntStream.range(0, height);
+			if ((long) width * height >= PARALLEL_THRESHOLD)
+				rows = rows.parallel();
+			rows.forEach(y -> encodeRow(img, dest, y));
+		}
+
+		return ByteBuffer.wrap(dest);
+	}
+
+	@Override
+	public BufferedImage decodeMipmap(ByteBuffer mmData, ImageReadParam param,
+			int width, int height, Consumer<LocalizedFormatedString> handler)
+			throws IOException {
+		// validate chunk size
+		final int expected = width * height * PIXEL_BYTES;
+		if (mmData.remaining() != expected)
+			handler.accept(new LocalizedFormatedString(
+					"com.hiveworkshop.text.blp", "BadBuffer",
+					mmData.remaining(), expected));
+
+		// decode rows in place, missing data decodes as 0
+		final ByteBuffer src = (mmData.remaining() < expected ? ByteBuffer
+				.wrap(toImageData(mmData, expected)) : mmData.slice())
+				.order(ByteOrder.LITTLE_ENDIAN);
+		final byte[] dest = new byte[width * height * bandNumber];
+		IntStream rows = IntStream.range(0, height);
+		if ((long) width * height >= PARALLEL_THRESHOLD)
+			rows = rows.parallel();
+		rows.forEach(y -> decodeRow(src, dest, y, width));
+
+		return new BufferedImage(packedColorModel, Raster.createWritableRaster(
+				createSampleModel(width, height), new DataBufferByte(dest,
+						dest.length), null), false, null);
+	}
+
+	@Override
+	public Iterator<ImageTypeSpecifier> getSupportedImageTypes(int width,
+			int height) {
+		return Arrays.asList(
+				new ImageTypeSpecifier(packedColorModel, createSampleModel(
+						width, height))).iterator();
+	}
+
+	@Override
+	public void readObject(ImageInputStream src,
+			Consumer<LocalizedFormatedString> warning) throws IOException {
+		// skip unused palette
+		src.seek(src.getStreamPosition() + INDEXED_PALETTE_SIZE * 4L);
+	}
+
+	@Override
+	public void writeObject(ImageOutputStream dst) throws IOException {
+		// write unused palette
+		dst.setByteOrder(ByteOrder.LITTLE_ENDIAN);
+		dst.writeInts(new int[INDEXED_PALETTE_SIZE], 0, INDEXED_PALETTE_SIZE);
+	}
+}
@@ -37,7 +37,9 @@
  * <p>
  * Version 2 is used by 'World of Warcraft'. It extends on version 1 by adding
  * support for storing mipmaps as 32 bit colour bitmaps or with DXTC
- * compression. Reading of this version is currently not supported.
+ * compression. Reading and writing of this version is currently only
+ * supported for indexed color content, DXT1, DXT3 and DXT5 compressed content
+ * and uncompressed BGRA8888, BGRA5551, BGRA4444 and BGR565 content.
  * <p>
  * BLP specific image formating related classes are included. These are used to
  * hold and process images from/to BLP files. The classes are intended to
@@ -0,0 +1,112 @@
+package com.hiveworkshop.blizzard.blp;
+
+import static com.hiveworkshop.blizzard.blp.BLPTestImages.createImage;
+import static com.hiveworkshop.blizzard.blp.BLPTestImages.createMetadata;
+import static com.hiveworkshop.blizzard.blp.BLPTestImages.createReader;
+import static com.hiveworkshop.blizzard.blp.BLPTestImages.sameSamples;
+import static com.hiveworkshop.blizzard.blp.BLPTestImages.write;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests that decoded caches serve repeated reads and are invalidated when
+ * the source file changes.
+ *
+ * @author Imperial Good
+ */
+class BLPDecodedCacheTest {
+	@TempDir
+	Path dir;
+
+	/**
+	 * Writes a BLP file and moves its modification time so that a rewrite
+	 * within the file system timestamp resolution is still seen as a change.
+	 */
+	static void writeSource(Path file, int seed) throws IOException {
+		final BufferedImage src = createImage(64, 32, seed);
+		Files.write(file, write(createMetadata(2, BLPEncodingType.BGRA8888, 8,
+				src), src));
+		Files.setLastModifiedTime(file, FileTime.fromMillis(System
+				.currentTimeMillis() + seed * 10000L));
+	}
+
+	static BufferedImage read(Path file, BLPReadParam param)
+			throws IOException {
+		return createReader(file).read(0, param);
+	}
+
+	@Test
+	void repeatedReadsHit() throws IOException {
+		final Path file = dir.resolve("hit.blp");
+		writeSource(file, 1);
+		final BLPDecodedCache cache = new BLPDecodedCache(1 << 20);
+		final BLPReadParam param = new BLPReadParam();
+		param.setDecodedCache(cache);
+
+		final BufferedImage first = read(file, param);
+		final BufferedImage second = read(file, param);
+		assertEquals(1, cache.getMissCount(), "misses");
+		assertEquals(1, cache.getHitCount(), "hits");
+		assertTrue(sameSamples(first.getRaster(), second.getRaster()),
+				"hit decodes the same");
+		assertNotSame(first, second, "hits are copies");
+
+		// modifying a returned image must not affect the cache
+		first.getRaster().setSample(0, 0, 0, 0x5A);
+		assertTrue(sameSamples(second.getRaster(), read(file, param)
+				.getRaster()), "cache is unchanged");
+
+		param.setCacheSharing(true);
+		assertSame(read(file, param), read(file, param),
+				"sharing returns the cached image");
+	}
+
+	@Test
+	void changedSourceMisses() throws IOException {
+		final Path file = dir.resolve("change.blp");
+		writeSource(file, 1);
+		final BLPDecodedCache cache = new BLPDecodedCache(1 << 20);
+		final BLPReadParam param = new BLPReadParam();
+		param.setDecodedCache(cache);
+		final BufferedImage before = read(file, param);
+
+		writeSource(file, 2);
+		final BufferedImage after = read(file, param);
+		assertEquals(2, cache.getMissCount(), "changed file misses");
+		assertFalse(sameSamples(before.getRaster(), after.getRaster()),
+				"new content is read");
+		assertTrue(sameSamples(read(file, null).getRaster(), after
+				.getRaster()), "matches an uncached read");
+	}
+
+	@Test
+	void capacityEvicts() throws IOException {
+		final int levelSize = 64 * 32 * 4;
+		final BLPDecodedCache cache = new BLPDecodedCache(levelSize * 2, 1);
+		final BLPReadParam param = new BLPReadParam();
+		param.setDecodedCache(cache);
+		for (int i = 0; i < 4; i += 1) {
+			final Path file = dir.resolve("evict" + i + ".blp");
+			writeSource(file, i);
+			read(file, param);
+		}
+
+		assertTrue(cache.getSize() <= cache.getCapacity(), "within capacity");
+		assertEquals(2, cache.getEvictionCount(), "evictions");
+
+		cache.clear();
+		assertEquals(0, cache.getSize(), "cleared");
+	}
+}
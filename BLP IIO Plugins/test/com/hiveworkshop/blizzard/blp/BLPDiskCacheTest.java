@@ -0,0 +1,104 @@
+package com.hiveworkshop.blizzard.blp;
+
+import static com.hiveworkshop.blizzard.blp.BLPDecodedCacheTest.read;
+import static com.hiveworkshop.blizzard.blp.BLPDecodedCacheTest.writeSource;
+import static com.hiveworkshop.blizzard.blp.BLPTestImages.sameSamples;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests that disk caches persist decoded mipmap levels between instances and
+ * discard them when the source file changes.
+ *
+ * @author Imperial Good
+ */
+class BLPDiskCacheTest {
+	@TempDir
+	Path dir;
+
+	private static long countEntries(Path directory) throws IOException {
+		try (Stream<Path> entries = Files.list(directory)) {
+			return entries.count();
+		}
+	}
+
+	@Test
+	void entriesPersist() throws IOException {
+		final Path file = dir.resolve("persist.blp");
+		final Path cacheDir = dir.resolve("cache");
+		writeSource(file, 1);
+		final BufferedImage expected = read(file, null);
+
+		final BLPReadParam param = new BLPReadParam();
+		param.setDiskCache(new BLPDiskCache(cacheDir, 1 << 20));
+		assertTrue(sameSamples(expected.getRaster(), read(file, param)
+				.getRaster()), "first read decodes");
+		assertEquals(1, countEntries(cacheDir), "entry stored");
+
+		// a new instance finds the entry left by the earlier one
+		final BLPDiskCache reopened = new BLPDiskCache(cacheDir, 1 << 20);
+		assertTrue(reopened.getSize() > 0, "size includes existing entries");
+		param.setDiskCache(reopened);
+		assertTrue(sameSamples(expected.getRaster(), read(file, param)
+				.getRaster()), "entry reads back");
+		assertEquals(1, countEntries(cacheDir), "entry reused");
+	}
+
+	@Test
+	void changedSourceDiscards() throws IOException {
+		final Path file = dir.resolve("change.blp");
+		writeSource(file, 1);
+		final BLPReadParam param = new BLPReadParam();
+		param.setDiskCache(new BLPDiskCache(dir.resolve("cache"), 1 << 20));
+		final BufferedImage before = read(file, param);
+
+		writeSource(file, 2);
+		final BufferedImage after = read(file, param);
+		assertFalse(sameSamples(before.getRaster(), after.getRaster()),
+				"new content is read");
+		assertTrue(sameSamples(read(file, null).getRaster(), after
+				.getRaster()), "matches an uncached read");
+	}
+
+	@Test
+	void corruptEntryDecodes() throws IOException {
+		final Path file = dir.resolve("corrupt.blp");
+		final Path cacheDir = dir.resolve("cache");
+		writeSource(file, 1);
+		final BLPReadParam param = new BLPReadParam();
+		param.setDiskCache(new BLPDiskCache(cacheDir, 1 << 20));
+		read(file, param);
+
+		try (Stream<Path> entries = Files.list(cacheDir)) {
+			for (final Path entry : (Iterable<Path>) entries::iterator)
+				Files.write(entry, new byte[] { 1, 2, 3 });
+		}
+		assertTrue(sameSamples(read(file, null).getRaster(), read(file,
+				param).getRaster()), "corrupt entry is decoded again");
+	}
+
+	@Test
+	void clearRemovesEntries() throws IOException {
+		final Path file = dir.resolve("clear.blp");
+		final Path cacheDir = dir.resolve("cache");
+		writeSource(file, 1);
+		final BLPDiskCache cache = new BLPDiskCache(cacheDir, 1 << 20);
+		final BLPReadParam param = new BLPReadParam();
+		param.setDiskCache(cache);
+		read(file, param);
+
+		cache.clear();
+		assertEquals(0, cache.getSize(), "size");
+		assertEquals(0, countEntries(cacheDir), "entries deleted");
+	}
+}
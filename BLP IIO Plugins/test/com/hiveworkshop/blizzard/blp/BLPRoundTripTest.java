@@ -0,0 +1,174 @@
+package com.hiveworkshop.blizzard.blp;
+
+import static com.hiveworkshop.blizzard.blp.BLPTestImages.createImage;
+import static com.hiveworkshop.blizzard.blp.BLPTestImages.createMetadata;
+import static com.hiveworkshop.blizzard.blp.BLPTestImages.createReader;
+import static com.hiveworkshop.blizzard.blp.BLPTestImages.maxAlphaError;
+import static com.hiveworkshop.blizzard.blp.BLPTestImages.maxError;
+import static com.hiveworkshop.blizzard.blp.BLPTestImages.meanError;
+import static com.hiveworkshop.blizzard.blp.BLPTestImages.sameSamples;
+import static com.hiveworkshop.blizzard.blp.BLPTestImages.write;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import javax.imageio.ImageReader;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Writes images with each encoding and reads them back, checking the decoded
+ * images against the source within the precision of the encoding.
+ *
+ * @author Imperial Good
+ */
+class BLPRoundTripTest {
+	private static final int WIDTH = 61;
+
+	private static final int HEIGHT = 34;
+
+	@TempDir
+	Path dir;
+
+	/**
+	 * Writes the test image, checks the mipmap chain and returns the full
+	 * resolution level as read back from byte[], ByteBuffer and File input,
+	 * which must all decode the same.
+	 */
+	private static BufferedImage roundTrip(BLPStreamMetadata meta,
+			BufferedImage src, Path dir) throws IOException {
+		final byte[] blp = write(meta, src);
+		final Path file = dir.resolve("round.blp");
+		Files.write(file, blp);
+
+		final ImageReader reader = createReader(blp);
+		final int mipmaps = reader.getNumImages(true);
+		assertEquals(6, mipmaps, "mipmap levels");
+		for (int i = 0; i < mipmaps; i += 1) {
+			final BufferedImage level = reader.read(i);
+			assertEquals(Math.max(WIDTH >> i, 1), level.getWidth(), "width");
+			assertEquals(Math.max(HEIGHT >> i, 1), level.getHeight(),
+					"height");
+		}
+
+		final BufferedImage img = reader.read(0);
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(blp.length);
+		buffer.put(blp).flip();
+		assertTrue(sameSamples(img.getRaster(), createReader(buffer).read(0)
+				.getRaster()), "ByteBuffer input decodes the same");
+		assertTrue(sameSamples(img.getRaster(), createReader(file.toFile())
+				.read(0).getRaster()), "File input decodes the same");
+		return img;
+	}
+
+	@Test
+	void jpeg() throws IOException {
+		final BufferedImage src = createImage(WIDTH, HEIGHT, 1);
+		for (int version = 1; version <= 2; version += 1) {
+			final BufferedImage img = roundTrip(createMetadata(version,
+					BLPEncodingType.JPEG, 8, src), src, dir);
+			assertTrue(meanError(src, img) < 4.0, "JPEG color error");
+		}
+	}
+
+	@Test
+	void indexed() throws IOException {
+		final BLPIndexColorModel cm = new BLPIndexColorModel(null, 8);
+		final WritableRaster raster = cm.createCompatibleWritableRaster(WIDTH,
+				HEIGHT);
+		final Random random = new Random(2);
+		for (int y = 0; y < HEIGHT; y += 1) {
+			for (int x = 0; x < WIDTH; x += 1) {
+				raster.setSample(x, y, 0, random.nextInt(256));
+				raster.setSample(x, y, 1, random.nextInt(256));
+			}
+		}
+		final BufferedImage src = new BufferedImage(cm, raster, false, null);
+
+		final BufferedImage img = roundTrip(createMetadata(1,
+				BLPEncodingType.INDEXED, 8, src), src, dir);
+		assertTrue(sameSamples(src.getRaster(), img.getRaster()),
+				"indexes and alpha are stored exactly");
+	}
+
+	@Test
+	void dxt1() throws IOException {
+		final BufferedImage src = createImage(WIDTH, HEIGHT, 3);
+		final BufferedImage img = roundTrip(createMetadata(2,
+				BLPEncodingType.DXT1, 0, src), src, dir);
+		assertTrue(meanError(src, img) < 6.0, "DXT1 color error");
+	}
+
+	@Test
+	void dxt3() throws IOException {
+		final BufferedImage src = createImage(WIDTH, HEIGHT, 4);
+		final BufferedImage img = roundTrip(createMetadata(2,
+				BLPEncodingType.DXT3, 8, src), src, dir);
+		assertTrue(meanError(src, img) < 6.0, "DXT3 color error");
+		assertTrue(maxAlphaError(src, img) <= 9, "DXT3 alpha error");
+	}
+
+	@Test
+	void dxt5() throws IOException {
+		final BufferedImage src = createImage(WIDTH, HEIGHT, 5);
+		final BufferedImage img = roundTrip(createMetadata(2,
+				BLPEncodingType.DXT5, 8, src), src, dir);
+		assertTrue(meanError(src, img) < 6.0, "DXT5 color error");
+		assertTrue(maxAlphaError(src, img) <= 9, "DXT5 alpha error");
+	}
+
+	@Test
+	void bgra8888() throws IOException {
+		final BufferedImage src = createImage(WIDTH, HEIGHT, 6);
+		final BufferedImage img = roundTrip(createMetadata(2,
+				BLPEncodingType.BGRA8888, 8, src), src, dir);
+		assertEquals(0, maxError(src, img, true), "BGRA8888 is lossless");
+	}
+
+	@Test
+	void bgra5551() throws IOException {
+		final BufferedImage src = createImage(WIDTH, HEIGHT, 7);
+		final BufferedImage img = roundTrip(createMetadata(2,
+				BLPEncodingType.BGRA5551, 1, src), src, dir);
+		assertTrue(maxError(src, img, false) <= 8, "BGRA5551 color error");
+	}
+
+	@Test
+	void bgra4444() throws IOException {
+		final BufferedImage src = createImage(WIDTH, HEIGHT, 8);
+		final BufferedImage img = roundTrip(createMetadata(2,
+				BLPEncodingType.BGRA4444, 4, src), src, dir);
+		assertTrue(maxError(src, img, true) <= 17, "BGRA4444 error");
+	}
+
+	@Test
+	void bgr565() throws IOException {
+		final BufferedImage src = createImage(WIDTH, HEIGHT, 9);
+		final BufferedImage img = roundTrip(createMetadata(2,
+				BLPEncodingType.BGR565, 0, src), src, dir);
+		assertTrue(maxError(src, img, false) <= 8, "BGR565 color error");
+	}
+
+	@Test
+	void externalMipmaps() throws IOException {
+		final BufferedImage src = createImage(WIDTH, HEIGHT, 10);
+		final Path file = dir.resolve("external.blp");
+		write(createMetadata(0, BLPEncodingType.JPEG, 8, src), src, file,
+				null);
+
+		final ImageReader reader = createReader(file);
+		assertEquals(6, reader.getNumImages(true), "mipmap levels");
+		assertTrue(Files.exists(dir.resolve("external.b05")),
+				"mipmap files are written");
+		assertTrue(meanError(src, reader.read(0)) < 4.0,
+				"BLP0 JPEG color error");
+	}
+}
@@ -0,0 +1,262 @@
+package com.hiveworkshop.blizzard.blp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Shared helpers for the BLP tests. Produces deterministic test images and
+ * writes and reads BLP files through the ImageIO plugins.
+ *
+ * @author Imperial Good
+ */
+final class BLPTestImages {
+	private BLPTestImages() {
+	}
+
+	/**
+	 * Creates a deterministic ARGB test image of smooth gradients with a
+	 * little noise, which all encodings can represent reasonably.
+	 *
+	 * @param width
+	 *            the image width.
+	 * @param height
+	 *            the image height.
+	 * @param seed
+	 *            varies the image content.
+	 * @return the test image.
+	 */
+	static BufferedImage createImage(int width, int height, int seed) {
+		final BufferedImage img = new BufferedImage(width, height,
+				BufferedImage.TYPE_INT_ARGB);
+		final Random random = new Random(seed);
+		for (int y = 0; y < height; y += 1) {
+			for (int x = 0; x < width; x += 1) {
+				final int a = 255 - y * 255 / height;
+				final int r = x * 255 / width;
+				final int g = (y * 255 / height + seed * 40) & 0xFF;
+				final int b = (x + y) * 127 / (width + height) + random
+						.nextInt(8);
+				img.setRGB(x, y, a << 24 | r << 16 | g << 8 | b);
+			}
+		}
+		return img;
+	}
+
+	/**
+	 * Creates metadata for a BLP file of the specified encoding.
+	 *
+	 * @param version
+	 *            the BLP version.
+	 * @param encodingType
+	 *            the encoding type.
+	 * @param alphaBits
+	 *            the alpha bits.
+	 * @param img
+	 *            the image to be written.
+	 * @return the stream metadata.
+	 */
+	static BLPStreamMetadata createMetadata(int version,
+			BLPEncodingType encodingType, int alphaBits, BufferedImage img) {
+		final BLPStreamMetadata meta = new BLPStreamMetadata();
+		meta.setVersion(version);
+		meta.setEncoding(encodingType, (byte) alphaBits);
+		meta.setWidth(img.getWidth());
+		meta.setHeight(img.getHeight());
+		return meta;
+	}
+
+	/**
+	 * Writes an image with all mipmap levels into BLP file content.
+	 *
+	 * @param meta
+	 *            the stream metadata.
+	 * @param img
+	 *            the full resolution image.
+	 * @return the BLP file content.
+	 * @throws IOException
+	 *             if writing fails.
+	 */
+	static byte[] write(BLPStreamMetadata meta, BufferedImage img)
+			throws IOException {
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		final ImageWriter writer = createWriter();
+		try (ImageOutputStream ios = ImageIO.createImageOutputStream(bos)) {
+			writer.setOutput(ios);
+			writer.write(meta, new IIOImage(img, null, null),
+					createWriteParam(writer));
+		} finally {
+			writer.dispose();
+		}
+		return bos.toByteArray();
+	}
+
+	/**
+	 * Writes an image with all mipmap levels into a BLP file.
+	 *
+	 * @param meta
+	 *            the stream metadata.
+	 * @param img
+	 *            the full resolution image.
+	 * @param file
+	 *            the BLP file.
+	 * @param param
+	 *            the write parameter, or null for defaults.
+	 * @throws IOException
+	 *             if writing fails.
+	 */
+	static void write(BLPStreamMetadata meta, BufferedImage img, Path file,
+			BLPWriteParam param) throws IOException {
+		final ImageWriter writer = createWriter();
+		try {
+			writer.setOutput(file);
+			writer.write(meta, new IIOImage(img, null, null),
+					param != null ? param : createWriteParam(writer));
+		} finally {
+			writer.dispose();
+		}
+	}
+
+	/**
+	 * Creates a BLP ImageWriter.
+	 *
+	 * @return the writer.
+	 */
+	static ImageWriter createWriter() {
+		return ImageIO.getImageWritersByFormatName("blp").next();
+	}
+
+	/**
+	 * Creates a write parameter that generates all mipmap levels.
+	 *
+	 * @param writer
+	 *            the BLP writer.
+	 * @return the write parameter.
+	 */
+	static BLPWriteParam createWriteParam(ImageWriter writer) {
+		final BLPWriteParam param = (BLPWriteParam) writer
+				.getDefaultWriteParam();
+		param.setAutoMipmap(true);
+		return param;
+	}
+
+	/**
+	 * Creates a BLP ImageReader for the specified input.
+	 *
+	 * @param input
+	 *            the input.
+	 * @return the reader.
+	 */
+	static ImageReader createReader(Object input) {
+		final ImageReader reader = ImageIO.getImageReadersByFormatName("blp")
+				.next();
+		reader.setInput(input);
+		return reader;
+	}
+
+	/**
+	 * Returns the largest difference of any band between 2 images. Raster
+	 * samples are compared as decoded images use a linear RGB color space, so
+	 * converting through their color models would distort the comparison.
+	 * Bands are in RGBA order.
+	 *
+	 * @param expected
+	 *            the expected image.
+	 * @param actual
+	 *            the actual image.
+	 * @param alpha
+	 *            if alpha is compared.
+	 * @return the largest band difference.
+	 */
+	static int maxError(BufferedImage expected, BufferedImage actual,
+			boolean alpha) {
+		int max = 0;
+		for (int b = alpha ? 3 : 2; b >= 0; b -= 1)
+			max = Math.max(max, maxBandError(expected, actual, b));
+		return max;
+	}
+
+	/**
+	 * Returns the largest difference of the alpha band between 2 images.
+	 *
+	 * @param expected
+	 *            the expected image.
+	 * @param actual
+	 *            the actual image.
+	 * @return the largest alpha difference.
+	 */
+	static int maxAlphaError(BufferedImage expected, BufferedImage actual) {
+		return maxBandError(expected, actual, 3);
+	}
+
+	private static int maxBandError(BufferedImage expected,
+			BufferedImage actual, int band) {
+		assertEquals(expected.getWidth(), actual.getWidth(), "width");
+		assertEquals(expected.getHeight(), actual.getHeight(), "height");
+		final Raster e = expected.getRaster();
+		final Raster a = actual.getRaster();
+		int max = 0;
+		for (int y = 0; y < expected.getHeight(); y += 1)
+			for (int x = 0; x < expected.getWidth(); x += 1)
+				max = Math.max(max, Math.abs(e.getSample(x, y, band)
+						- a.getSample(x, y, band)));
+		return max;
+	}
+
+	/**
+	 * Returns the mean difference of the color bands between 2 images.
+	 *
+	 * @param expected
+	 *            the expected image.
+	 * @param actual
+	 *            the actual image.
+	 * @return the mean band difference.
+	 */
+	static double meanError(BufferedImage expected, BufferedImage actual) {
+		assertEquals(expected.getWidth(), actual.getWidth(), "width");
+		assertEquals(expected.getHeight(), actual.getHeight(), "height");
+		final Raster e = expected.getRaster();
+		final Raster a = actual.getRaster();
+		long sum = 0;
+		for (int b = 0; b < 3; b += 1)
+			for (int y = 0; y < expected.getHeight(); y += 1)
+				for (int x = 0; x < expected.getWidth(); x += 1)
+					sum += Math.abs(e.getSample(x, y, b)
+							- a.getSample(x, y, b));
+		return (double) sum / (expected.getWidth() * expected.getHeight() * 3);
+	}
+
+	/**
+	 * Tests if 2 rasters hold the same samples.
+	 *
+	 * @param expected
+	 *            the expected raster.
+	 * @param actual
+	 *            the actual raster.
+	 * @return true if all samples are equal.
+	 */
+	static boolean sameSamples(Raster expected, Raster actual) {
+		if (expected.getWidth() != actual.getWidth()
+				|| expected.getHeight() != actual.getHeight()
+				|| expected.getNumBands() != actual.getNumBands())
+			return false;
+		for (int b = 0; b < expected.getNumBands(); b += 1)
+			for (int y = 0; y < expected.getHeight(); y += 1)
+				for (int x = 0; x < expected.getWidth(); x += 1)
+					if (expected.getSample(x, y, b) != actual.getSample(x,
+							y, b))
+						return false;
+		return true;
+	}
+}
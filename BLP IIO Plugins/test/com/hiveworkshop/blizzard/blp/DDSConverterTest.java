@@ -0,0 +1,106 @@
+package com.hiveworkshop.blizzard.blp;
+
+import static com.hiveworkshop.blizzard.blp.BLPTestImages.createImage;
+import static com.hiveworkshop.blizzard.blp.BLPTestImages.createMetadata;
+import static com.hiveworkshop.blizzard.blp.BLPTestImages.createReader;
+import static com.hiveworkshop.blizzard.blp.BLPTestImages.sameSamples;
+import static com.hiveworkshop.blizzard.blp.BLPTestImages.write;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageReader;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Converts BLP files to DDS and back, checking that the mipmap data survives
+ * both conversions unchanged.
+ *
+ * @author Imperial Good
+ */
+class DDSConverterTest {
+	@TempDir
+	Path dir;
+
+	/**
+	 * Converts a BLP file of the specified encoding to DDS and back and checks
+	 * that the result is identical to the original.
+	 */
+	private void roundTrip(BLPEncodingType encodingType, int alphaBits)
+			throws IOException {
+		final BufferedImage src = createImage(45, 30, alphaBits);
+		final byte[] blp = write(createMetadata(2, encodingType, alphaBits,
+				src), src);
+		final Path blpFile = dir.resolve("src.blp");
+		final Path ddsFile = dir.resolve("conv.dds");
+		final Path backFile = dir.resolve("back.blp");
+		Files.write(blpFile, blp);
+
+		DDSConverter.convertBLPToDDS(blpFile, ddsFile);
+		final byte[] dds = Files.readAllBytes(ddsFile);
+		assertEquals(0x20534444, (dds[0] & 0xFF | (dds[1] & 0xFF) << 8
+				| (dds[2] & 0xFF) << 16 | (dds[3] & 0xFF) << 24),
+				"DDS magic");
+
+		DDSConverter.convertDDSToBLP(ddsFile, backFile);
+		assertArrayEquals(blp, Files.readAllBytes(backFile),
+				encodingType + " survives conversion");
+
+		final ImageReader original = createReader(blpFile);
+		final ImageReader converted = createReader(backFile);
+		assertEquals(original.getNumImages(true), converted.getNumImages(true),
+				"mipmap levels");
+		for (int i = 0; i < original.getNumImages(true); i += 1)
+			assertTrue(sameSamples(original.read(i).getRaster(), converted
+					.read(i).getRaster()), "level " + i + " decodes the same");
+	}
+
+	@Test
+	void dxt1() throws IOException {
+		roundTrip(BLPEncodingType.DXT1, 0);
+		roundTrip(BLPEncodingType.DXT1, 1);
+	}
+
+	@Test
+	void dxt3() throws IOException {
+		roundTrip(BLPEncodingType.DXT3, 8);
+	}
+
+	@Test
+	void dxt5() throws IOException {
+		roundTrip(BLPEncodingType.DXT5, 8);
+	}
+
+	@Test
+	void bgra8888() throws IOException {
+		roundTrip(BLPEncodingType.BGRA8888, 8);
+		roundTrip(BLPEncodingType.BGRA8888, 0);
+	}
+
+	@Test
+	void packed() throws IOException {
+		roundTrip(BLPEncodingType.BGRA5551, 1);
+		roundTrip(BLPEncodingType.BGRA4444, 4);
+		roundTrip(BLPEncodingType.BGR565, 0);
+	}
+
+	@Test
+	void rejectsVersion1() throws IOException {
+		final BufferedImage src = createImage(16, 16, 0);
+		final Path blpFile = dir.resolve("v1.blp");
+		Files.write(blpFile, write(createMetadata(1, BLPEncodingType.JPEG, 0,
+				src), src));
+
+		assertThrows(IIOException.class, () -> DDSConverter.convertBLPToDDS(
+				blpFile, dir.resolve("v1.dds")));
+	}
+}
@@ -0,0 +1,132 @@
+package com.hiveworkshop.blizzard.blp;
+
+import static com.hiveworkshop.blizzard.blp.BLPTestImages.createImage;
+import static com.hiveworkshop.blizzard.blp.BLPTestImages.createMetadata;
+import static com.hiveworkshop.blizzard.blp.BLPTestImages.createWriteParam;
+import static com.hiveworkshop.blizzard.blp.BLPTestImages.createWriter;
+import static com.hiveworkshop.blizzard.blp.BLPTestImages.write;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageWriter;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests that atomically written BLP0 mipmap files are either all replaced or
+ * all left unchanged, with no temporary files left behind.
+ *
+ * @author Imperial Good
+ */
+class ExternalMipmapManagerTest {
+	@TempDir
+	Path dir;
+
+	private List<String> listFiles() throws IOException {
+		try (Stream<Path> files = Files.list(dir)) {
+			final List<String> names = new ArrayList<String>();
+			files.forEach(file -> names.add(file.getFileName().toString()));
+			names.sort(null);
+			return names;
+		}
+	}
+
+	private boolean hasTemporaryFiles() throws IOException {
+		return listFiles().stream().anyMatch(name -> name.endsWith(".tmp"));
+	}
+
+	@Test
+	void commitReplacesAll() throws IOException {
+		final Path file = dir.resolve("tex.blp");
+		Files.write(file, new byte[0]);
+		final ExternalMipmapManager emm = new ExternalMipmapManager(file);
+		emm.setMipmapDataChunk(2, ByteBuffer.wrap(new byte[] { 9 }));
+
+		emm.stageMipmapDataChunk(0, ByteBuffer.wrap(new byte[] { 1, 2 }),
+				Runnable::run);
+		emm.stageMipmapDataChunk(1, ByteBuffer.wrap(new byte[] { 3 }),
+				Runnable::run);
+		emm.commitStaged(2);
+
+		assertArrayEquals(new byte[] { 1, 2 }, Files.readAllBytes(dir
+				.resolve("tex.b00")), "level 0");
+		assertArrayEquals(new byte[] { 3 }, Files.readAllBytes(dir
+				.resolve("tex.b01")), "level 1");
+		assertFalse(Files.exists(dir.resolve("tex.b02")),
+				"stale higher level deleted");
+		assertFalse(hasTemporaryFiles(), "no temporary files");
+	}
+
+	@Test
+	void failedWriteCleansUp() throws IOException {
+		final Path file = dir.resolve("tex.blp");
+		Files.write(file, new byte[0]);
+		final ExternalMipmapManager emm = new ExternalMipmapManager(file);
+		emm.setMipmapDataChunk(0, ByteBuffer.wrap(new byte[] { 7 }));
+		emm.setMipmapDataChunk(1, ByteBuffer.wrap(new byte[] { 8 }));
+		final List<String> before = listFiles();
+
+		// hold back the writes so that one temporary file can be removed
+		final List<Runnable> writes = new ArrayList<Runnable>();
+		emm.stageMipmapDataChunk(0, ByteBuffer.wrap(new byte[] { 1, 2 }),
+				writes::add);
+		emm.stageMipmapDataChunk(1, ByteBuffer.wrap(new byte[] { 3 }),
+				writes::add);
+		try (Stream<Path> files = Files.list(dir)) {
+			final Path temp = files.filter(p -> p.getFileName().toString()
+					.startsWith("tex.b01")
+					&& p.getFileName().toString().endsWith(".tmp"))
+					.findFirst().get();
+			Files.delete(temp);
+		}
+		writes.forEach(Runnable::run);
+
+		assertThrows(NoSuchFileException.class, () -> emm.commitStaged(2));
+		assertEquals(before, listFiles(), "only the original files remain");
+		assertArrayEquals(new byte[] { 7 }, Files.readAllBytes(dir
+				.resolve("tex.b00")), "level 0 unchanged");
+		assertArrayEquals(new byte[] { 8 }, Files.readAllBytes(dir
+				.resolve("tex.b01")), "level 1 unchanged");
+	}
+
+	@Test
+	void abandonedWriteCleansUp() throws IOException {
+		final Path file = dir.resolve("tex.blp");
+		final BufferedImage src = createImage(32, 16, 1);
+		write(createMetadata(0, BLPEncodingType.JPEG, 0, src), src, file,
+				null);
+		final List<String> before = listFiles();
+		final byte[] level0 = Files.readAllBytes(dir.resolve("tex.b00"));
+
+		// write only the first level of an atomic write then give up
+		Files.delete(file);
+		final ImageWriter writer = createWriter();
+		final BLPWriteParam param = createWriteParam(writer);
+		param.setAutoMipmap(false);
+		param.setAtomicMipmapFiles(true);
+		writer.setOutput(file);
+		final BufferedImage other = createImage(32, 16, 2);
+		writer.write(createMetadata(0, BLPEncodingType.JPEG, 0, other),
+				new IIOImage(other, null, null), param);
+		writer.setOutput(null);
+		writer.dispose();
+
+		assertEquals(before, listFiles(), "no files added or removed");
+		assertArrayEquals(level0, Files.readAllBytes(dir.resolve("tex.b00")),
+				"level 0 unchanged");
+	}
+}